@@ -0,0 +1,82 @@
+package app;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.concurrent.*;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Durable appends through Task.execute for each write-ahead log sync mode, from one thread and from
+ * eight threads writing different objects so that group commit can share syncs.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class AppendBenchmark {
+    @Param({ "ALWAYS", "GROUP", "OS" })
+    String sync;
+
+    @Param({ "32" })
+    int valueLength;
+
+    Path dir;
+    LogStorageEngine storage;
+    String value;
+
+    @State(Scope.Thread)
+    public static class Writer {
+        Task task;
+
+        @Setup(Level.Trial)
+        public void setup(AppendBenchmark bench) {
+            String obj = String.format("f%s", Thread.currentThread().getId());
+
+            this.task = new Task("C1", "S1", obj, bench.value, 0);
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        this.dir = Files.createTempDirectory("append");
+        this.storage = new LogStorageEngine(this.dir.toString(), WriteAheadLog.Sync.valueOf(this.sync), 2);
+
+        StringBuilder value = new StringBuilder();
+
+        for (int i = 0; i < this.valueLength; i++) {
+            value.append((char) ('a' + i % 26));
+        }
+
+        this.value = value.toString();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        this.storage.close();
+
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(this.dir)) {
+            for (Path path : files) Files.delete(path);
+        }
+
+        Files.delete(this.dir);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void execute(Writer writer) throws IOException {
+        writer.task.timestamp++; // Storage ignores values that are not newer
+
+        writer.task.execute(this.storage);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public void executeConcurrent(Writer writer) throws IOException {
+        writer.task.timestamp++;
+
+        writer.task.execute(this.storage);
+    }
+}
@@ -0,0 +1,77 @@
+package app;
+
+import java.io.*;
+import java.net.*;
+import java.util.concurrent.*;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Request-response round trip over a loopback Channel in text and binary format, against a thread that
+ * answers every request as the blocking front end does.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ChannelBenchmark {
+    @Param({ "text", "binary" })
+    String format;
+
+    @Param({ "32", "4096" })
+    int valueLength;
+
+    ServerSocket serverSocket;
+    Channel chnl;
+    String[] request;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        this.serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+
+        Thread responder = new Thread(this::respond, "responder");
+        responder.setDaemon(true);
+        responder.start();
+
+        this.chnl = new Channel("127.0.0.1", this.serverSocket.getLocalPort(), "S1", this.format.equals("binary"));
+        this.chnl.sock.setTcpNoDelay(true);
+
+        StringBuilder value = new StringBuilder();
+
+        for (int i = 0; i < this.valueLength; i++) {
+            value.append((char) ('a' + i % 26));
+        }
+
+        this.request = new String[] { "CLIENT", "C1", "WRITE", "f1", value.toString(), "1700000000000", "S1,S2,S3" };
+    }
+
+    private void respond() {
+        try (Socket sock = this.serverSocket.accept()) {
+            sock.setTcpNoDelay(true);
+
+            Channel server = new Channel(sock);
+
+            while (server.recvRequest(false) != null) {
+                server.sendResponse(0, "ACK");
+            }
+        }
+        catch (IOException ex) {
+            /* connection closed at tear down */
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        this.chnl.close();
+        this.serverSocket.close();
+    }
+
+    @Benchmark
+    public String roundTrip() throws IOException {
+        this.chnl.sendRequest(0, this.request);
+
+        return this.chnl.recvResponse();
+    }
+}
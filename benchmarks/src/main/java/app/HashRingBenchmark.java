@@ -0,0 +1,136 @@
+package app;
+
+import java.util.*;
+
+/**
+ * Measures how evenly the hash ring spreads objects over servers and how many objects change replicas
+ * when a server joins or leaves, next to the old keyHash % n placement.
+ *
+ * Usage: java app.HashRingBenchmark [servers] [keys] [virtual-nodes]
+ */
+public class HashRingBenchmark {
+    public static void main(String[] args) {
+        int servers = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+        int keys = args.length > 1 ? Integer.parseInt(args[1]) : 1000000;
+        int vnodes = args.length > 2 ? Integer.parseInt(args[2]) : HashRing.VIRTUAL_NODES;
+
+        List<String> ids = serverIds(servers);
+        List<String> grown = serverIds(servers + 1);
+        List<String> shrunk = serverIds(servers - 1);
+
+        String[] keyList = new String[keys];
+
+        for (int i = 0; i < keys; i++) {
+            keyList[i] = String.format("k%s", i);
+        }
+
+        System.out.println(String.format("%s servers, %s keys, %s virtual nodes per server", servers, keys, vnodes));
+
+        for (int v : new int[] { 1, 16, vnodes }) {
+            HashRing ring = new HashRing(ids, v);
+
+            System.out.println(String.format(
+                "ring vnodes=%-4s  primary load %s  replica load %s  moved on join %.3f  moved on leave %.3f",
+                v,
+                balance(ids, keyList, key -> ring.replicasFor(key, 1)),
+                balance(ids, keyList, key -> ring.replicasFor(key)),
+                moved(keyList, ring, new HashRing(grown, v)),
+                moved(keyList, ring, new HashRing(shrunk, v))
+            ));
+        }
+
+        System.out.println(String.format(
+            "modulo            primary load %s  replica load %s  moved on join %.3f  moved on leave %.3f",
+            balance(ids, keyList, key -> modulo(key, ids, 1)),
+            balance(ids, keyList, key -> modulo(key, ids, HashRing.REPLICATION_FACTOR)),
+            movedModulo(keyList, ids, grown),
+            movedModulo(keyList, ids, shrunk)
+        ));
+    }
+
+    interface Placement {
+        List<String> replicasFor(String key);
+    }
+
+    static List<String> serverIds(int count) {
+        List<String> ids = new ArrayList<String>();
+
+        for (int i = 1; i <= count; i++) {
+            ids.add(String.format("S%s", i));
+        }
+
+        return ids;
+    }
+
+    /**
+     * Old client placement, with the sign of the hash fixed so that it does not fail on negative hashes
+     */
+    static List<String> modulo(String key, List<String> ids, int count) {
+        List<String> replicas = new ArrayList<String>();
+
+        int keyHash = Math.floorMod(key.hashCode(), ids.size());
+
+        for (int i = 0; i < count; i++) {
+            replicas.add(ids.get((keyHash + i) % ids.size()));
+        }
+
+        return replicas;
+    }
+
+    /**
+     * Keys per server as min/max relative to mean and coefficient of variation
+     */
+    static String balance(List<String> ids, String[] keys, Placement placement) {
+        Map<String, Integer> load = new HashMap<String, Integer>();
+
+        for (String id : ids) {
+            load.put(id, 0);
+        }
+
+        for (String key : keys) {
+            for (String id : placement.replicasFor(key)) {
+                load.merge(id, 1, Integer::sum);
+            }
+        }
+
+        double mean = load.values().stream().mapToInt(Integer::intValue).average().getAsDouble();
+        double variance = load.values().stream().mapToDouble(l -> (l - mean) * (l - mean)).average().getAsDouble();
+
+        return String.format(
+            "min %.2f max %.2f cv %.3f",
+            Collections.min(load.values()) / mean,
+            Collections.max(load.values()) / mean,
+            Math.sqrt(variance) / mean
+        );
+    }
+
+    /**
+     * Fraction of keys whose replica set changes between two rings
+     */
+    static double moved(String[] keys, HashRing before, HashRing after) {
+        int moved = 0;
+
+        for (String key : keys) {
+            if (!new HashSet<String>(before.replicasFor(key)).equals(new HashSet<String>(after.replicasFor(key)))) {
+                moved++;
+            }
+        }
+
+        return (double) moved / keys.length;
+    }
+
+    static double movedModulo(String[] keys, List<String> ids, List<String> changed) {
+        int moved = 0;
+
+        for (String key : keys) {
+            Set<String> before = new HashSet<String>(modulo(key, ids, HashRing.REPLICATION_FACTOR));
+            Set<String> after = new HashSet<String>(modulo(key, changed, HashRing.REPLICATION_FACTOR));
+
+            if (!before.equals(after)) {
+                moved++;
+            }
+        }
+
+        return (double) moved / keys.length;
+    }
+}
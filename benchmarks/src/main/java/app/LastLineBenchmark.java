@@ -0,0 +1,141 @@
+package app;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.concurrent.*;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Reading the current value of an object: LogStorageEngine.getLastLine, which seeks backwards one byte
+ * at a time, against reading the whole file, reading backwards in blocks and a read served by the
+ * storage engine read cache.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class LastLineBenchmark {
+    @Param({ "10", "10000" })
+    int lines;
+
+    @Param({ "16", "1024" })
+    int valueLength;
+
+    Path dir;
+    File file;
+    LogStorageEngine storage;
+
+    static int BLOCK_SIZE = 4096;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        this.dir = Files.createTempDirectory("lastline");
+        this.file = this.dir.resolve("f1").toFile();
+
+        StringBuilder value = new StringBuilder();
+
+        for (int i = 0; i < this.valueLength; i++) {
+            value.append((char) ('a' + i % 26));
+        }
+
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(this.file))) {
+            for (int i = 0; i < this.lines; i++) {
+                writer.write(String.format("%s%s\n", i, value));
+            }
+        }
+
+        this.storage = new LogStorageEngine(this.dir.toString(), WriteAheadLog.Sync.OS, 0);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        this.storage.close();
+
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(this.dir)) {
+            for (Path path : files) Files.delete(path);
+        }
+
+        Files.delete(this.dir);
+    }
+
+    @Benchmark
+    public String seekBackwards() throws IOException {
+        return LogStorageEngine.getLastLine(this.file);
+    }
+
+    @Benchmark
+    public String readAllLines() throws IOException {
+        String last = null;
+
+        try (BufferedReader reader = new BufferedReader(new FileReader(this.file))) {
+            String line;
+
+            while ((line = reader.readLine()) != null) {
+                last = line;
+            }
+        }
+
+        return last;
+    }
+
+    @Benchmark
+    public String readBackwardsInBlocks() throws IOException {
+        try (FileChannel channel = FileChannel.open(this.file.toPath(), StandardOpenOption.READ)) {
+            long end = channel.size();
+
+            // Skip trailing newline
+            if (end > 0) {
+                ByteBuffer last = ByteBuffer.allocate(1);
+                channel.read(last, end - 1);
+
+                if (last.get(0) == '\n') end--;
+            }
+
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            ByteBuffer block = ByteBuffer.allocate(BLOCK_SIZE);
+
+            long position = end;
+
+            while (position > 0) {
+                int length = (int) Math.min(BLOCK_SIZE, position);
+
+                position -= length;
+
+                block.clear().limit(length);
+                channel.read(block, position);
+
+                for (int i = length - 1; i >= 0; i--) {
+                    if (block.get(i) == '\n') {
+                        byte[] tail = line.toByteArray();
+                        byte[] result = new byte[length - 1 - i + tail.length];
+
+                        System.arraycopy(block.array(), i + 1, result, 0, length - 1 - i);
+                        System.arraycopy(tail, 0, result, length - 1 - i, tail.length);
+
+                        return new String(result, StandardCharsets.UTF_8);
+                    }
+                }
+
+                // Whole block belongs to the last line, keep it ahead of what was read so far
+                byte[] tail = line.toByteArray();
+
+                line.reset();
+                line.write(block.array(), 0, length);
+                line.write(tail);
+            }
+
+            return line.toString(StandardCharsets.UTF_8.name());
+        }
+    }
+
+    @Benchmark
+    public String indexRead() throws IOException {
+        return this.storage.read("f1").value;
+    }
+}
@@ -0,0 +1,82 @@
+package app;
+
+import java.io.*;
+import java.util.concurrent.*;
+import java.util.logging.Logger;
+import java.util.logging.SimpleFormatter;
+import java.util.logging.StreamHandler;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Cost of a requestHandler log call on the request thread, formatted eagerly and written synchronously
+ * as before against the level-guarded lazy call through Applog's asynchronous handler. Run with
+ * -prof gc and compare gc.alloc.rate.norm, bytes allocated per call by the request thread.
+ *
+ * With INFO enabled the writer thread cannot keep up with a tight loop, so the lazy path mostly
+ * measures handing records to a full ring buffer.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class LoggingBenchmark {
+    @Param({ "INFO", "WARNING" })
+    String level;
+
+    Logger eagerLogger = Logger.getLogger("bench.eager");
+    Logger lazyLogger = Logger.getLogger("bench.lazy");
+
+    Applog.AsyncHandler handler;
+
+    String requesterId = "C1";
+    String serverId = "S2";
+    Task task = new Task("C1", "S1", "f1", "client C1 write count 42", 1700000000000L);
+
+    @Setup(Level.Trial)
+    public void setup() {
+        System.setProperty("java.util.logging.SimpleFormatter.format", "[%4$-7s] %5$s %6$s%n");
+
+        java.util.logging.Level logLevel = java.util.logging.Level.parse(this.level);
+
+        StreamHandler stream = new StreamHandler(OutputStream.nullOutputStream(), new SimpleFormatter());
+
+        this.eagerLogger.setUseParentHandlers(false);
+        this.eagerLogger.addHandler(stream);
+        this.eagerLogger.setLevel(logLevel);
+
+        this.handler = new Applog.AsyncHandler(OutputStream.nullOutputStream(), Applog.BUFFER_SIZE);
+
+        this.lazyLogger.setUseParentHandlers(false);
+        this.lazyLogger.addHandler(this.handler);
+        this.lazyLogger.setLevel(logLevel);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        this.handler.close();
+    }
+
+    @Benchmark
+    public void eager() {
+        String message = String.format("received accept from %s for task %s", this.serverId, this.task);
+
+        this.eagerLogger.info(String.format("%s: %s: %s", this.requesterId, Thread.currentThread().getId(), message));
+    }
+
+    @Benchmark
+    public void lazy() {
+        if (this.lazyLogger.isLoggable(java.util.logging.Level.INFO)) {
+            Applog.log(
+                this.lazyLogger,
+                java.util.logging.Level.INFO,
+                this.requesterId,
+                "received accept from %s for task %s",
+                new Object[] { this.serverId, this.task },
+                null
+            );
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package app;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.concurrent.*;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Reading the last value of object files of 1 KB, 1 MB and 1 GB: LogStorageEngine.getLastLine, which
+ * seeks backwards one byte at a time through RandomAccessFile, against getLastLineMapped, which maps the
+ * file tail, and getLastLineRead, which reads the file tail with positional reads.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MappedReadBenchmark {
+    @Param({ "1024", "1048576", "1073741824" })
+    long fileSize;
+
+    @Param({ "64" })
+    int valueLength;
+
+    Path dir;
+    File file;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        this.dir = Files.createTempDirectory("mappedread");
+        this.file = this.dir.resolve("f1").toFile();
+
+        StringBuilder value = new StringBuilder();
+
+        for (int i = 0; i < this.valueLength; i++) {
+            value.append((char) ('a' + i % 26));
+        }
+
+        long written = 0;
+
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(this.file), 1 << 20)) {
+            for (long ts = 1; written < this.fileSize; ts++) {
+                byte[] line = String.format("%s\n", new Versioned(value.toString(), ts, "S1").encode()).getBytes(StandardCharsets.UTF_8);
+
+                out.write(line);
+
+                written += line.length;
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(this.dir)) {
+            for (Path path : files) Files.delete(path);
+        }
+
+        Files.delete(this.dir);
+    }
+
+    @Benchmark
+    public String seekBackwards() throws IOException {
+        return LogStorageEngine.getLastLine(this.file);
+    }
+
+    @Benchmark
+    public String mapTail() throws IOException {
+        return LogStorageEngine.getLastLineMapped(this.file);
+    }
+
+    @Benchmark
+    public String readTail() throws IOException {
+        return LogStorageEngine.getLastLineRead(this.file);
+    }
+}
@@ -0,0 +1,94 @@
+package app;
+
+import java.util.*;
+
+/**
+ * Hit ratio of the read cache for Zipfian reads at capacities from 1% to 50% of the values, to size
+ * READ_CACHE_BYTES. Segmented LRU is compared with a plain LRU, alone and with a scan reading every object
+ * once interleaved, as anti-entropy fetches and hint replay do.
+ *
+ * Usage: java app.ReadCacheBenchmark [keys] [reads] [value-length] [zipf-exponent]
+ */
+public class ReadCacheBenchmark {
+    public static void main(String[] args) {
+        int keys = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        int reads = args.length > 1 ? Integer.parseInt(args[1]) : 2000000;
+        int valueLength = args.length > 2 ? Integer.parseInt(args[2]) : 256;
+        double exponent = args.length > 3 ? Double.parseDouble(args[3]) : 0.99;
+
+        String[] keyList = new String[keys];
+        Versioned[] values = new Versioned[keys];
+
+        char[] value = new char[valueLength];
+
+        Arrays.fill(value, 'v');
+
+        for (int i = 0; i < keys; i++) {
+            keyList[i] = String.format("k%s", i);
+            values[i] = new Versioned(new String(value), 1, "S1");
+        }
+
+        long total = 0;
+
+        for (int i = 0; i < keys; i++) {
+            total += ValueCache.weight(keyList[i], values[i]);
+        }
+
+        System.out.println(String.format("%s keys, %s reads, %s byte values, zipf %s, %s bytes cached at most", keys, reads, valueLength, exponent, total));
+
+        ZipfianGenerator zipf = new ZipfianGenerator(keys, exponent);
+
+        for (int percent : new int[] { 1, 5, 10, 20, 50 }) {
+            long capacity = total * percent / 100;
+
+            System.out.println(String.format(
+                "cache %2s%%  slru %.3f  lru %.3f  with scan: slru %.3f  lru %.3f",
+                percent,
+                hitRatio(new ValueCache(capacity), keyList, values, reads, zipf, false),
+                hitRatio(new ValueCache(capacity, 0), keyList, values, reads, zipf, false),
+                hitRatio(new ValueCache(capacity), keyList, values, reads, zipf, true),
+                hitRatio(new ValueCache(capacity, 0), keyList, values, reads, zipf, true)
+            ));
+        }
+    }
+
+    /**
+     * Hit ratio of Zipfian reads, loading every miss, the first tenth of reads warming the cache up
+     *
+     * @param scan interleave a read of every object in order with the Zipfian reads after warm up
+     */
+    static double hitRatio(ValueCache cache, String[] keys, Versioned[] values, int reads, ZipfianGenerator zipf, boolean scan) {
+        Random rand = new Random(42);
+
+        int warmup = reads / 10;
+        int hits = 0;
+        int scanned = 0;
+
+        for (int i = 0; i < reads; i++) {
+            int key = zipf.next(rand);
+
+            // Hot keys are not the lowest names on a real server, spread ranks over the keyspace
+            key = (int) ((key * 2654435761L) % keys.length);
+
+            boolean hit = read(cache, keys, values, key);
+
+            if (i >= warmup && hit) hits++;
+
+            if (scan && i >= warmup && scanned < keys.length && i % 2 == 0) {
+                read(cache, keys, values, scanned++);
+            }
+        }
+
+        return (double) hits / (reads - warmup);
+    }
+
+    private static boolean read(ValueCache cache, String[] keys, Versioned[] values, int key) {
+        if (cache.get(keys[key]) != null) {
+            return true;
+        }
+
+        cache.put(keys[key], values[key]);
+
+        return false;
+    }
+}
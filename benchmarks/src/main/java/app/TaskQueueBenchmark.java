@@ -0,0 +1,65 @@
+package app;
+
+import java.util.concurrent.*;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Cost of keeping an object's task queue ordered with TaskComparator. Each operation adds a task to a
+ * queue holding size tasks and removes the head, as a write round does.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class TaskQueueBenchmark {
+    @Param({ "1", "16", "1024" })
+    int size;
+
+    // Share of tasks with equal timestamps, ordered by owner id only
+    @Param({ "0.0", "0.5" })
+    double ties;
+
+    PriorityBlockingQueue<Task> queue;
+    Task[] tasks;
+    int next;
+
+    @Setup(Level.Iteration)
+    public void setup() {
+        this.queue = new PriorityBlockingQueue<Task>(16, new TaskComparator());
+        this.tasks = new Task[4096];
+
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+
+        for (int i = 0; i < this.tasks.length; i++) {
+            long ts = random.nextDouble() < this.ties ? 1000 : random.nextLong(2000);
+
+            this.tasks[i] = new Task(String.format("C%s", random.nextInt(8)), "S1", "f1", "value", ts);
+        }
+
+        for (int i = 0; i < this.size; i++) {
+            this.queue.add(this.tasks[i]);
+        }
+
+        this.next = this.size;
+    }
+
+    @Benchmark
+    public Task addAndPollHead() {
+        this.queue.add(this.tasks[this.next++ & (this.tasks.length - 1)]);
+
+        return this.queue.poll();
+    }
+
+    @Benchmark
+    public boolean addAndRemove() {
+        Task task = this.tasks[this.next++ & (this.tasks.length - 1)];
+
+        this.queue.add(task);
+
+        // Failed tasks are removed wherever they are in the queue
+        return this.queue.remove(task);
+    }
+}
@@ -0,0 +1,84 @@
+package app;
+
+import java.lang.management.*;
+import java.nio.*;
+
+/**
+ * Compares cost of encoding and decoding a write request as a colon delimited text line and as a binary
+ * frame. Reports operations per second and bytes allocated per operation by the measuring thread.
+ *
+ * Usage: java app.WireFormatBenchmark [iterations] [value-length]
+ */
+public class WireFormatBenchmark {
+    static volatile Object sink;
+
+    public static void main(String[] args) {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 2000000;
+        int valueLength = args.length > 1 ? Integer.parseInt(args[1]) : 32;
+
+        StringBuilder value = new StringBuilder();
+
+        for (int i = 0; i < valueLength; i++) {
+            value.append((char) ('a' + i % 26));
+        }
+
+        String[] fields = { "CLIENT", "C1", "WRITE", "k42", value.toString(), "1700000000000", "S1,S2,S3" };
+
+        System.out.println(String.format("%s iterations, %s byte values", iterations, valueLength));
+
+        // First round warms up the JIT, second is reported
+        for (int round = 0; round < 2; round++) {
+            boolean report = round == 1;
+
+            measure("text encode", iterations, report, () -> {
+                sink = (String.format("%s:%s:%s:%s:%s:%s:%s",
+                    fields[0], fields[1], fields[2], fields[3], fields[4], fields[5], fields[6]) + "\n").getBytes();
+            });
+
+            String line = String.join(":", fields);
+
+            measure("text decode", iterations, report, () -> {
+                sink = line.split(":");
+            });
+
+            ByteBuffer[] buf = { ByteBuffer.allocate(256) };
+
+            measure("binary encode", iterations, report, () -> {
+                buf[0] = Frame.encodeRequest(buf[0], 0, fields);
+            });
+
+            ByteBuffer frame = Frame.encodeRequest(null, 0, fields);
+
+            measure("binary decode", iterations, report, () -> {
+                frame.position(4);
+
+                sink = Frame.decode(frame);
+            });
+        }
+    }
+
+    static void measure(String name, int iterations, boolean report, Runnable op) {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+        long threadId = Thread.currentThread().getId();
+
+        long allocatedBefore = threads.getThreadAllocatedBytes(threadId);
+        long start = System.nanoTime();
+
+        for (int i = 0; i < iterations; i++) {
+            op.run();
+        }
+
+        long elapsed = System.nanoTime() - start;
+        long allocated = threads.getThreadAllocatedBytes(threadId) - allocatedBefore;
+
+        if (report) {
+            System.out.println(String.format(
+                "%-14s %12.0f ops/s %8.1f bytes/op",
+                name,
+                iterations / (elapsed / 1e9),
+                (double) allocated / iterations
+            ));
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package app;
+
+import java.io.*;
+import java.net.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.Logger;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Full write round as seen by a client: WRITE sent to all three replicas, each of which runs
+ * clientWriteHandler and its vote and release rounds with the other two, or in lease mode the
+ * leaseholder replicates to the other two. All servers run in process on loopback.
+ *
+ * With hotKey every thread writes the same object, where concurrent vote rounds reject each other.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class WriteRoundBenchmark {
+    @Param({ "GROUP", "OS" })
+    String sync;
+
+    @Param({ "vote", "lease" })
+    String mode;
+
+    @Param({ "false", "true" })
+    boolean hotKey;
+
+    Path dir;
+    List<Server> servers = new ArrayList<Server>();
+    HybridClock clock = new HybridClock();
+
+    static int SERVERS = 3;
+
+    @State(Scope.Thread)
+    public static class Writer {
+        List<Channel> chnls = new ArrayList<Channel>();
+        String[] request;
+
+        @Setup(Level.Trial)
+        public void setup(WriteRoundBenchmark bench) throws IOException {
+            for (Server server : bench.servers) {
+                this.chnls.add(new Channel(server.ip, server.port, server.id));
+            }
+
+            // Unless hotKey, threads write different objects so rounds only contend on the replicas
+            String obj = bench.hotKey ? "hot" : String.format("f%s", Thread.currentThread().getId());
+
+            this.request = new String[] { "CLIENT", "C1", "WRITE", obj, "value", null, "S1,S2,S3" };
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            for (Channel chnl : this.chnls) {
+                chnl.close();
+            }
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException, InterruptedException {
+        Logger.getLogger(Applog.class.getName()).setLevel(java.util.logging.Level.WARNING);
+
+        this.dir = Files.createTempDirectory("writeround");
+
+        File configFile = this.dir.resolve("config.txt").toFile();
+
+        try (PrintWriter config = new PrintWriter(new FileWriter(configFile))) {
+            for (int i = 1; i <= SERVERS; i++) {
+                try (ServerSocket free = new ServerSocket(0)) {
+                    config.println(String.format("S%s 127.0.0.1 %s", i, free.getLocalPort()));
+                }
+            }
+        }
+
+        for (String line : Files.readAllLines(configFile.toPath())) {
+            String[] params = line.split(" ");
+
+            Server server = new Server(
+                params[0],
+                params[1],
+                Integer.parseInt(params[2]),
+                new LogStorageEngine(this.dir.resolve(params[0]).toString(), WriteAheadLog.Sync.valueOf(this.sync), 2)
+            );
+
+            server.loadConfig(configFile.toString());
+
+            server.leaseMode = this.mode.equals("lease");
+
+            Thread serving = new Thread(() -> {
+                try {
+                    server.serve(8);
+                }
+                catch (IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+            }, params[0]);
+
+            serving.setDaemon(true);
+            serving.start();
+
+            this.servers.add(server);
+        }
+
+        // Wait for servers to accept connections
+        for (Server server : this.servers) {
+            while (true) {
+                try (Socket probe = new Socket("127.0.0.1", server.port)) {
+                    break;
+                }
+                catch (IOException ex) {
+                    Thread.sleep(10);
+                }
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        for (Server server : this.servers) {
+            server.close();
+        }
+
+        Files.walk(this.dir)
+            .sorted(Comparator.reverseOrder())
+            .forEach(path -> path.toFile().delete());
+    }
+
+    @Benchmark
+    @Threads(1)
+    public String write(Writer writer) throws IOException {
+        return this.round(writer);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public String writeConcurrent(Writer writer) throws IOException {
+        return this.round(writer);
+    }
+
+    private String round(Writer writer) throws IOException {
+        writer.request[5] = Long.toString(this.clock.now());
+
+        // Replicas vote on each other's rounds, so every replica must receive the write before any completes
+        for (Channel chnl : writer.chnls) {
+            chnl.sendRequest(0, writer.request);
+        }
+
+        String response = null;
+
+        for (Channel chnl : writer.chnls) {
+            response = chnl.recvResponse();
+
+            if (!response.startsWith("ACK")) {
+                throw new IllegalStateException(String.format("write to %s failed: %s", chnl.id, response));
+            }
+        }
+
+        return response;
+    }
+}
@@ -0,0 +1,347 @@
+package app;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.*;
+
+/**
+ * Background repair of replicas that missed writes, e.g. while unreachable. Every ANTI_ENTROPY_INTERVAL_MS
+ * the server compares a MerkleTree of the objects it shares with each peer against the peer's tree,
+ * walking down only nodes whose hashes differ, then lists the versions of the differing leaves and pulls
+ * the objects the peer holds a newer version of. Each server pulls, so both sides of a pair converge.
+ *
+ * Peer requests: TREE:<level>:<indexes> answers hashes of tree nodes, ENTRIES:<leaves> versions of the
+ * objects in leaves and FETCH:<objs> their values. Lists are comma separated, fields of an entry ';'
+ * separated.
+ *
+ * ANTI_ENTROPY_KEYS_PER_SEC bounds objects hashed into trees and ANTI_ENTROPY_BYTES_PER_SEC bytes
+ * received from peers, 0 lifts a limit.
+ */
+public class AntiEntropy {
+    Server owner;
+
+    static long INTERVAL_MS = Config.getLong("ANTI_ENTROPY_INTERVAL_MS", 30000);
+    static long KEYS_PER_SEC = Config.getLong("ANTI_ENTROPY_KEYS_PER_SEC", 100000);
+    static long BYTES_PER_SEC = Config.getLong("ANTI_ENTROPY_BYTES_PER_SEC", 4 << 20);
+
+    // Leaves listed and objects fetched per request
+    static int BATCH_SIZE = Config.getInt("ANTI_ENTROPY_BATCH", 64);
+
+    private RateLimiter keyLimiter = new RateLimiter(KEYS_PER_SEC);
+    private RateLimiter byteLimiter = new RateLimiter(BYTES_PER_SEC);
+
+    // Tree last built for each peer comparing against this server, reused for the levels below the root
+    private Map<String, MerkleTree> peerToTree = new ConcurrentHashMap<String, MerkleTree>();
+
+    private ScheduledExecutorService syncService;
+
+    private final static Logger LOGGER = Logger.getLogger(Applog.class.getName());
+
+    public AntiEntropy(Server own) {
+        this.owner = own;
+    }
+
+    /**
+     * Start periodic sync rounds unless ANTI_ENTROPY_INTERVAL_MS is 0
+     */
+    public void start() {
+        if (INTERVAL_MS <= 0) {
+            return;
+        }
+
+        this.syncService = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "anti-entropy");
+            t.setDaemon(true);
+            return t;
+        });
+
+        this.syncService.scheduleWithFixedDelay(this::round, INTERVAL_MS, INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    public void close() {
+        if (this.syncService != null) {
+            this.syncService.shutdownNow();
+        }
+    }
+
+    private void round() {
+        for (String serverId : this.owner.idToServer.keySet()) {
+            if (this.owner.membership.isSuspected(serverId)) continue;
+
+            try {
+                int repaired = this.syncWith(serverId);
+
+                if (repaired > 0) {
+                    LOGGER.info(String.format("anti-entropy repaired %s objects from %s", repaired, serverId));
+                }
+            }
+            catch (InterruptedException ex) {
+                return;
+            }
+            catch (IOException ex) {
+                LOGGER.info(String.format("anti-entropy with %s failed: %s", serverId, ex.getMessage()));
+            }
+        }
+
+        this.owner.metrics.increment("antientropy.rounds");
+    }
+
+    /**
+     * Pull objects a peer holds newer versions of
+     *
+     * @return number of objects repaired
+     */
+    public int syncWith(String serverId) throws IOException, InterruptedException {
+        return this.syncWith(serverId, this.byteLimiter);
+    }
+
+    /**
+     * @param limiter bandwidth limit the responses are counted against
+     */
+    public int syncWith(String serverId, RateLimiter limiter) throws IOException, InterruptedException {
+        MerkleTree tree = this.build(serverId);
+
+        // Walk down from the root, keeping nodes that differ
+        List<Integer> differing = Collections.singletonList(0);
+
+        for (int level = 0; level <= MerkleTree.DEPTH && !differing.isEmpty(); level++) {
+            List<Integer> indexes = new ArrayList<Integer>();
+
+            for (int parent : differing) {
+                if (level == 0) {
+                    indexes.add(parent);
+                }
+                else {
+                    for (int i = 0; i < MerkleTree.FANOUT; i++) indexes.add(parent * MerkleTree.FANOUT + i);
+                }
+            }
+
+            String[] hashes = this.request(serverId, limiter, "TREE", Integer.toString(level), join(indexes)).split(",");
+
+            differing = new ArrayList<Integer>();
+
+            for (int i = 0; i < indexes.size(); i++) {
+                if (Long.parseUnsignedLong(hashes[i], 16) != tree.hash(level, indexes.get(i))) {
+                    differing.add(indexes.get(i));
+                }
+            }
+        }
+
+        // Objects of differing leaves the peer has a newer version of, or this server lacks
+        List<String> stale = new ArrayList<String>();
+
+        for (int from = 0; from < differing.size(); from += BATCH_SIZE) {
+            List<Integer> leaves = differing.subList(from, Math.min(from + BATCH_SIZE, differing.size()));
+
+            for (String entry : entries(this.request(serverId, limiter, "ENTRIES", join(leaves)))) {
+                String[] fields = entry.split(";");
+
+                String obj = Protocol.unescape(fields[0]);
+                Versioned remote = new Versioned(null, Long.parseLong(fields[1]), Protocol.unescape(fields[2]));
+
+                if (remote.isNewerThan(this.versionOrNull(obj))) {
+                    stale.add(obj);
+                }
+            }
+        }
+
+        int repaired = 0;
+
+        for (int from = 0; from < stale.size(); from += BATCH_SIZE) {
+            List<String> objs = new ArrayList<String>();
+
+            for (String obj : stale.subList(from, Math.min(from + BATCH_SIZE, stale.size()))) {
+                objs.add(Protocol.escape(obj));
+            }
+
+            for (String entry : entries(this.request(serverId, limiter, "FETCH", String.join(",", objs)))) {
+                String[] fields = entry.split(";");
+
+                String obj = Protocol.unescape(fields[0]);
+                Versioned value = new Versioned(Protocol.unescape(fields[3]), Long.parseLong(fields[1]), Protocol.unescape(fields[2]));
+
+                if (this.owner.storage.append(obj, value)) {
+                    this.owner.clock.update(value.timestamp);
+
+                    this.owner.metrics.increment("antientropy.repaired");
+
+                    repaired++;
+                }
+            }
+        }
+
+        return repaired;
+    }
+
+    /**
+     * Hashes of tree nodes at a level, for a peer comparing against this server. The tree is rebuilt
+     * when the peer starts at the root.
+     */
+    public String treeHandler(String requesterId, int level, String indexes) throws InterruptedException {
+        MerkleTree tree = this.peerToTree.get(requesterId);
+
+        if (level == 0 || tree == null) {
+            tree = this.build(requesterId);
+
+            this.peerToTree.put(requesterId, tree);
+        }
+
+        StringBuilder response = new StringBuilder("ACK:");
+
+        for (String index : indexes.split(",")) {
+            if (response.length() > 4) response.append(',');
+
+            response.append(Long.toHexString(tree.hash(level, Integer.parseInt(index))));
+        }
+
+        return response.toString();
+    }
+
+    /**
+     * Versions of the objects in leaves of the tree last built for a peer
+     */
+    public String entriesHandler(String requesterId, String leaves) throws InterruptedException {
+        MerkleTree tree = this.peerToTree.get(requesterId);
+
+        if (tree == null) {
+            tree = this.build(requesterId);
+        }
+
+        StringBuilder response = new StringBuilder("ACK:");
+
+        for (String leaf : leaves.split(",")) {
+            for (String obj : tree.objects(Integer.parseInt(leaf))) {
+                Versioned value = this.versionOrNull(obj);
+
+                if (value == null) continue;
+
+                if (response.length() > 4) response.append(',');
+
+                response.append(String.format("%s;%s;%s", Protocol.escape(obj), value.timestamp, Protocol.escape(value.ownerId)));
+            }
+        }
+
+        return response.toString();
+    }
+
+    /**
+     * Values of objects with their versions
+     */
+    public String fetchHandler(String objs) {
+        StringBuilder response = new StringBuilder("ACK:");
+
+        for (String escaped : objs.split(",")) {
+            String obj = Protocol.unescape(escaped);
+
+            Versioned value = this.readOrNull(obj);
+
+            if (value == null) continue;
+
+            if (response.length() > 4) response.append(',');
+
+            response.append(String.format(
+                "%s;%s;%s;%s", escaped, value.timestamp, Protocol.escape(value.ownerId), Protocol.escape(value.value)
+            ));
+        }
+
+        return response.toString();
+    }
+
+    /**
+     * Tree of the objects this server and a peer both replicate
+     */
+    private MerkleTree build(String serverId) throws InterruptedException {
+        MerkleTree tree = new MerkleTree();
+
+        int hashed = 0;
+
+        for (String obj : this.owner.storage.objects()) {
+            // Limit is taken in steps to keep its overhead off every object
+            if (++hashed % 256 == 0) {
+                this.keyLimiter.acquire(256);
+            }
+
+            // Ranges moving to a joining server are shared with it already
+            List<String> replicas = this.owner.targetRing().replicasFor(obj);
+
+            if (!replicas.contains(this.owner.id) || !replicas.contains(serverId)) continue;
+
+            Versioned value = this.versionOrNull(obj);
+
+            if (value != null) tree.add(obj, value);
+        }
+
+        tree.seal();
+
+        return tree;
+    }
+
+    /**
+     * Version of obj from the index, trees and version lists need no values and leave the read cache alone
+     */
+    private Versioned versionOrNull(String obj) {
+        try {
+            return this.owner.storage.version(obj);
+        }
+        catch (IOException ex) {
+            return null;
+        }
+    }
+
+    private Versioned readOrNull(String obj) {
+        try {
+            return this.owner.storage.read(obj);
+        }
+        catch (IOException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Send a request to a peer, counting the response against a bandwidth limit
+     *
+     * @return response without ACK:
+     */
+    private String request(String serverId, RateLimiter limiter, String... fields) throws IOException, InterruptedException {
+        String[] request = new String[fields.length + 2];
+
+        request[0] = "SERVER";
+        request[1] = this.owner.id;
+
+        System.arraycopy(fields, 0, request, 2, fields.length);
+
+        String response;
+
+        try {
+            response = this.owner.peerPool.request(serverId, Server.VOTE_TIMEOUT_MS, request).get();
+        }
+        catch (ExecutionException ex) {
+            throw new IOException(String.format("%s request failed: %s", fields[0], ex.getCause()));
+        }
+
+        limiter.acquire(response.length());
+
+        if (!response.startsWith("ACK:")) {
+            throw new IOException(String.format("%s request failed: %s", fields[0], response));
+        }
+
+        return response.substring(4);
+    }
+
+    private static List<String> entries(String response) {
+        return response.isEmpty() ? Collections.emptyList() : Arrays.asList(response.split(","));
+    }
+
+    private static String join(List<Integer> indexes) {
+        StringBuilder sb = new StringBuilder();
+
+        for (int index : indexes) {
+            if (sb.length() > 0) sb.append(',');
+
+            sb.append(index);
+        }
+
+        return sb.toString();
+    }
+}
@@ -1,18 +1,306 @@
 package app;
 
+import java.io.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.LockSupport;
 import java.util.logging.*;
 
 /**
  * Logger class
+ *
+ * init() replaces console output with an asynchronous handler: records are put in a ring buffer and
+ * formatted and written by a background thread, so request threads never wait on output. Records
+ * built with log() are formatted lazily on that thread, callers check the level first so nothing is
+ * allocated when it is disabled.
  */
 public class Applog {
+    // Records waiting for the writer thread, INFO and below are dropped when it is full
+    static int BUFFER_SIZE = Config.getInt("LOG_BUFFER", 8192);
+
     public static void init() {
-        System.setProperty("java.util.logging.SimpleFormatter.format", "[%4$-7s] %5$s %n");
+        System.setProperty("java.util.logging.SimpleFormatter.format", "[%4$-7s] %5$s %6$s%n");
 
         Logger l = Logger.getLogger(Applog.class.getName());
 
         String level = System.getenv("LOG_LEVEL") == null ? "INFO" : System.getenv("LOG_LEVEL");
-              
+
         l.setLevel(Level.parse(level));
+
+        AsyncHandler handler = new AsyncHandler(System.err, BUFFER_SIZE);
+
+        l.setUseParentHandlers(false);
+        l.addHandler(handler);
+
+        // Write out what is still buffered on exit
+        Runtime.getRuntime().addShutdownHook(new Thread(handler::close, "log-flush"));
+    }
+
+    /**
+     * Log a message built from format and args with String.format once a handler needs it. Callers
+     * check logger.isLoggable(level) first. String[] args are printed as request fields joined by ':'.
+     *
+     * @param context printed ahead of the message with the id of the logging thread, null for none
+     */
+    public static void log(Logger logger, Level level, String context, String format, Object[] args, Throwable thrown) {
+        LazyRecord record = new LazyRecord(level, context, format, args);
+
+        record.setLoggerName(logger.getName());
+        record.setThrown(thrown);
+
+        logger.log(record);
+    }
+
+    /**
+     * Record whose message is formatted on first use
+     */
+    static class LazyRecord extends LogRecord {
+        private static final long serialVersionUID = 1L;
+
+        String context;
+        Object[] args;
+        String message;
+
+        LazyRecord(Level level, String ctx, String format, Object[] arguments) {
+            super(level, format);
+
+            this.context = ctx;
+            this.args = arguments;
+        }
+
+        @Override
+        public String getMessage() {
+            if (this.message == null) {
+                String message = super.getMessage();
+
+                if (this.args != null) {
+                    for (int i = 0; i < this.args.length; i++) {
+                        if (this.args[i] instanceof String[]) {
+                            this.args[i] = String.join(":", (String[]) this.args[i]);
+                        }
+                    }
+
+                    message = String.format(message, this.args);
+                }
+
+                this.message = this.context == null
+                    ? message
+                    : String.format("%s: %s: %s", this.context, this.getLongThreadID(), message);
+            }
+
+            return this.message;
+        }
+    }
+
+    /**
+     * Handler that hands records to a writer thread through a ring buffer
+     */
+    static class AsyncHandler extends Handler {
+        RingBuffer<LogRecord> ring;
+        Writer writer;
+        Thread writerThread;
+        AtomicLong dropped = new AtomicLong();
+
+        private volatile boolean closed;
+
+        AsyncHandler(OutputStream out, int capacity) {
+            this.ring = new RingBuffer<LogRecord>(capacity);
+            this.writer = new BufferedWriter(new OutputStreamWriter(out), 1 << 16);
+
+            this.setFormatter(new SimpleFormatter());
+
+            this.writerThread = new Thread(this::writeLoop, "log-writer");
+            this.writerThread.setDaemon(true);
+            this.writerThread.start();
+        }
+
+        @Override
+        public void publish(LogRecord record) {
+            if (this.closed || !this.isLoggable(record)) return;
+
+            while (!this.ring.offer(record)) {
+                // Never lose warnings and errors, wait for room instead
+                if (record.getLevel().intValue() <= Level.INFO.intValue()) {
+                    this.dropped.incrementAndGet();
+
+                    return;
+                }
+
+                LockSupport.parkNanos(100_000);
+            }
+        }
+
+        private void writeLoop() {
+            while (!this.closed) {
+                // Sleeps until a record is published, waking now and then to notice close()
+                this.ring.await(1000, TimeUnit.MILLISECONDS);
+
+                this.drain();
+            }
+        }
+
+        /**
+         * Write buffered records, flushing once the buffer is empty.
+         *
+         * @return true if any record was written
+         */
+        private synchronized boolean drain() {
+            LogRecord record;
+            boolean written = false;
+
+            try {
+                while ((record = this.ring.poll()) != null) {
+                    this.writer.write(this.getFormatter().format(record));
+
+                    written = true;
+                }
+
+                long dropped = this.dropped.getAndSet(0);
+
+                if (dropped > 0) {
+                    this.writer.write(String.format("[WARNING] log buffer full, dropped %s records %n", dropped));
+                }
+
+                if (written || dropped > 0) {
+                    this.writer.flush();
+                }
+            }
+            catch (IOException ex) {
+                this.reportError(null, ex, ErrorManager.WRITE_FAILURE);
+            }
+
+            return written;
+        }
+
+        @Override
+        public void flush() {
+            this.drain();
+        }
+
+        @Override
+        public void close() {
+            this.closed = true;
+
+            this.drain();
+        }
+    }
+}
+
+/**
+ * Bounded multi-producer single-consumer queue over an array. Every slot carries a sequence number
+ * telling producers and consumer whose turn it is, so neither side takes a lock. An idle consumer parks
+ * in await() and is unparked by the next offer().
+ */
+class RingBuffer<T> {
+    private Object[] slots;
+    private AtomicLongArray sequences;
+    private int mask;
+    private AtomicLong tail = new AtomicLong();
+    private volatile long head; // Only written by the consumer
+    private volatile Thread waiter; // Consumer parked in await()
+
+    RingBuffer(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1) << 1);
+
+        this.slots = new Object[size];
+        this.sequences = new AtomicLongArray(size);
+        this.mask = size - 1;
+
+        for (int i = 0; i < size; i++) {
+            this.sequences.set(i, i);
+        }
+    }
+
+    /**
+     * @return false if the buffer is full
+     */
+    boolean offer(T item) {
+        long position;
+
+        while (true) {
+            position = this.tail.get();
+
+            long sequence = this.sequences.get((int) (position & this.mask));
+
+            if (sequence == position) {
+                if (this.tail.compareAndSet(position, position + 1)) break;
+            }
+            else if (sequence < position) {
+                return false; // Slot not yet consumed from previous lap
+            }
+        }
+
+        int index = (int) (position & this.mask);
+
+        this.slots[index] = item;
+        this.sequences.set(index, position + 1); // Publish to consumer
+
+        Thread consumer = this.waiter;
+
+        if (consumer != null) {
+            LockSupport.unpark(consumer);
+        }
+
+        return true;
+    }
+
+    /**
+     * Wait until an item can be polled or timeout has passed. Single consumer only
+     *
+     * @return true if an item can be polled
+     */
+    boolean await(long timeout, TimeUnit unit) {
+        if (this.isReady()) {
+            return true;
+        }
+
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+
+        this.waiter = Thread.currentThread();
+
+        try {
+            // Checked again once registered, an offer() publishing before then saw no waiter
+            while (!this.isReady()) {
+                long remaining = deadline - System.nanoTime();
+
+                if (remaining <= 0) {
+                    return false;
+                }
+
+                LockSupport.parkNanos(this, remaining);
+            }
+
+            return true;
+        }
+        finally {
+            this.waiter = null;
+        }
+    }
+
+    private boolean isReady() {
+        long position = this.head;
+
+        return this.sequences.get((int) (position & this.mask)) == position + 1;
+    }
+
+    /**
+     * @return next item, null if the buffer is empty. Single consumer only
+     */
+    @SuppressWarnings("unchecked")
+    T poll() {
+        int index = (int) (this.head & this.mask);
+
+        if (this.sequences.get(index) != this.head + 1) {
+            return null;
+        }
+
+        T item = (T) this.slots[index];
+
+        this.slots[index] = null;
+        this.sequences.set(index, this.head + this.slots.length); // Free slot for next lap
+
+        this.head++;
+
+        return item;
     }
-}
\ No newline at end of file
+}
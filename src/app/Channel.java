@@ -2,10 +2,15 @@ package app;
 
 import java.io.*;
 import java.net.*;
+import java.nio.*;
+import java.util.*;
 
 /**
  * Use to maintain a single socket connection and read-write buffer for that socket throughout
  * the socket lifetime. Provides send-recv interface for socket communication
+ *
+ * Messages are exchanged either as colon delimited text lines or as binary frames (see Frame). Clients
+ * choose the format when connecting, servers detect it from the first byte they receive.
  */
 public class Channel {
     String id;
@@ -13,32 +18,114 @@ public class Channel {
     PrintWriter writer;
     BufferedReader reader;
 
-    Channel(String ip, int port) throws IOException, UnknownHostException, SocketTimeoutException {
-        this.sock = new Socket();
-        this.sock.connect(new InetSocketAddress(ip, port), 5000);
+    // Binary format state, output and input frames are encoded in reusable buffers
+    boolean binary;
+    DataOutputStream out;
+    DataInputStream in;
+    ByteBuffer sendBuffer;
+    ByteBuffer recvBuffer;
 
-        this.writer = new PrintWriter(this.sock.getOutputStream(), true);
+    // Format is known up front on the connecting side, detected on first read on the accepting side
+    private boolean negotiated;
 
-        this.reader = new BufferedReader(new InputStreamReader(this.sock.getInputStream()));
+    // Format used by connecting side, binary unless WIRE_FORMAT=text
+    static boolean BINARY_DEFAULT = !Config.get("WIRE_FORMAT", "binary").equals("text");
+
+    Channel() {
+        // Used by channels that manage their own socket
+    }
+
+    Channel(String ip, int port) throws IOException, UnknownHostException, SocketTimeoutException {
+        this(ip, port, null, BINARY_DEFAULT);
     }
 
     Channel(String ip, int port, String ID) throws IOException, UnknownHostException, SocketTimeoutException {
+        this(ip, port, ID, BINARY_DEFAULT);
+    }
+
+    Channel(String ip, int port, String ID, boolean useBinary) throws IOException, UnknownHostException, SocketTimeoutException {
         this.id = ID;
-        
+
         this.sock = new Socket();
         this.sock.connect(new InetSocketAddress(ip, port), 5000);
 
-        this.writer = new PrintWriter(this.sock.getOutputStream(), true);
+        this.negotiated = true;
+
+        if (useBinary) {
+            this.openBinary(this.sock.getInputStream());
+
+            // Announce binary format and wait for server to confirm it
+            this.out.write(Frame.MAGIC);
+            this.out.flush();
+
+            byte[] reply = new byte[Frame.MAGIC.length];
+            this.in.readFully(reply);
 
-        this.reader = new BufferedReader(new InputStreamReader(this.sock.getInputStream()));
+            if (!Arrays.equals(reply, Frame.MAGIC)) {
+                this.sock.close();
+
+                throw new IOException(String.format("server at %s:%s does not support binary format", ip, port));
+            }
+        }
+        else {
+            this.openText(this.sock.getInputStream());
+        }
     }
 
     Channel(Socket tsock) throws IOException, UnknownHostException {
         this.sock = tsock;
+    }
 
+    private void openText(InputStream input) throws IOException {
         this.writer = new PrintWriter(this.sock.getOutputStream(), true);
 
-        this.reader = new BufferedReader(new InputStreamReader(this.sock.getInputStream()));
+        this.reader = new BufferedReader(new InputStreamReader(input));
+    }
+
+    private void openBinary(InputStream input) throws IOException {
+        this.binary = true;
+
+        this.out = new DataOutputStream(new BufferedOutputStream(this.sock.getOutputStream()));
+        this.in = new DataInputStream(input);
+        this.sendBuffer = ByteBuffer.allocate(256);
+        this.recvBuffer = ByteBuffer.allocate(256);
+    }
+
+    /**
+     * Detect format from first byte sent by the connecting side
+     */
+    private void negotiate() throws IOException {
+        if (this.negotiated) return;
+
+        this.negotiated = true;
+
+        BufferedInputStream input = new BufferedInputStream(this.sock.getInputStream());
+
+        input.mark(1);
+
+        if (input.read() == Frame.MAGIC[0]) {
+            byte[] magic = new byte[Frame.MAGIC.length];
+            magic[0] = Frame.MAGIC[0];
+
+            new DataInputStream(input).readFully(magic, 1, magic.length - 1);
+
+            if (!Arrays.equals(magic, Frame.MAGIC)) {
+                throw new IOException("unsupported binary format version");
+            }
+
+            this.openBinary(input);
+
+            // Confirm binary format
+            synchronized (this) {
+                this.out.write(Frame.MAGIC);
+                this.out.flush();
+            }
+        }
+        else {
+            input.reset();
+
+            this.openText(input);
+        }
     }
 
     public void send(String msg) {
@@ -49,7 +136,109 @@ public class Channel {
         return this.reader.readLine();
     }
 
+    /**
+     * Send a request given as fields, e.g. CLIENT, id, READ, obj.
+     *
+     * @param requestId id tagging request on multiplexed connections, 0 otherwise
+     */
+    public void sendRequest(long requestId, String... fields) throws IOException {
+        if (!this.binary) {
+            this.send(Frame.formatText(requestId, fields));
+
+            return;
+        }
+
+        synchronized (this) {
+            this.sendBuffer = Frame.encodeRequest(this.sendBuffer, requestId, fields);
+
+            this.out.write(this.sendBuffer.array(), 0, this.sendBuffer.limit());
+            this.out.flush();
+        }
+    }
+
+    /**
+     * Send response to a request.
+     *
+     * @param requestId id of request on multiplexed connections, 0 otherwise
+     */
+    public void sendResponse(long requestId, String response) throws IOException {
+        if (!this.binary) {
+            this.send(Frame.formatText(requestId, response));
+
+            return;
+        }
+
+        synchronized (this) {
+            this.sendBuffer = Frame.encodeResponse(this.sendBuffer, requestId, response);
+
+            this.out.write(this.sendBuffer.array(), 0, this.sendBuffer.limit());
+            this.out.flush();
+        }
+    }
+
+    /**
+     * Receive next request, null once the other side closes the connection.
+     *
+     * @param multiplexed requests are tagged with request ids
+     */
+    public Frame recvRequest(boolean multiplexed) throws IOException {
+        return this.recvFrame(multiplexed, true);
+    }
+
+    /**
+     * Receive next response, null once the other side closes the connection.
+     *
+     * @param multiplexed responses are tagged with request ids
+     */
+    public Frame recvResponse(boolean multiplexed) throws IOException {
+        return this.recvFrame(multiplexed, false);
+    }
+
+    /**
+     * Receive response on a connection that is not multiplexed
+     */
+    public String recvResponse() throws IOException {
+        Frame frame = this.recvFrame(false, false);
+
+        return frame == null ? null : frame.fields[0];
+    }
+
+    private Frame recvFrame(boolean multiplexed, boolean request) throws IOException {
+        this.negotiate();
+
+        if (!this.binary) {
+            String line = this.recv();
+
+            return line == null ? null : Frame.parseText(line, multiplexed, request);
+        }
+
+        int length;
+
+        try {
+            length = this.in.readInt();
+        }
+        catch (EOFException ex) {
+            return null;
+        }
+
+        if (length <= 0 || length > Frame.MAX_FRAME_BYTES) {
+            throw new IOException(String.format("invalid frame length %s", length));
+        }
+
+        if (this.recvBuffer.capacity() < length) {
+            this.recvBuffer = ByteBuffer.allocate(Math.max(length, this.recvBuffer.capacity() * 2));
+        }
+
+        this.recvBuffer.clear();
+
+        this.in.readFully(this.recvBuffer.array(), 0, length);
+
+        this.recvBuffer.limit(length);
+
+        return Frame.decode(this.recvBuffer);
+    }
+
     public void close() throws IOException {
         this.sock.close();
     }
-}
\ No newline at end of file
+}
@@ -4,12 +4,32 @@ import java.net.*;
 import java.security.InvalidParameterException;
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 import java.util.logging.*;
 import java.time.*;
 
 
 public class Client extends Node {
     public List<Node> serverList = new ArrayList<Node>();
+    public Map<String, Node> idToServer = new ConcurrentHashMap<String, Node>();
+    public volatile HashRing ring;
+
+    // Placement once servers joining or leaving are done, null if there are none. Writes go to replicas
+    // in both rings meanwhile
+    public volatile HashRing pendingRing;
+
+    // Servers the failure detector of the cluster suspects are down, skipped without trying to connect
+    public Set<String> suspected = ConcurrentHashMap.newKeySet();
+
+    static long MEMBERSHIP_REFRESH_MS = Config.getLong("MEMBERSHIP_REFRESH_MS", 1000);
+
+    private ScheduledExecutorService membershipService;
+
+    // Pipelined connections to servers, opened on first batch request
+    public Map<String, MuxChannel> idToChannel = new ConcurrentHashMap<String, MuxChannel>();
+
+    static long REQUEST_TIMEOUT_MS = Config.getLong("REQUEST_TIMEOUT_MS", 10000);
 
     private final static Logger LOGGER = Logger.getLogger(Applog.class.getName());
 
@@ -30,236 +50,675 @@ public class Client extends Node {
 
                 LOGGER.info(String.format("Found server %s, ip=%s, port=%s", params[0], params[1], params[2]));
 
-                this.serverList.add(new Node(params[0], params[1], Integer.parseInt(params[2])));
+                Node server = new Node(params[0], params[1], Integer.parseInt(params[2]));
+
+                this.serverList.add(server);
+
+                this.idToServer.put(server.id, server);
             }
 
             inputBuffer.close();
+
+            this.ring = new HashRing(this.idToServer.keySet());
         }
         catch (Exception e) {
             System.out.println(String.format("Could not load config from file: %s", fileName));
         }  
     }
 
-    public static Integer countNonNullItems(List<? extends Object> arr) {
-        int count = 0;
+    /**
+     * Refresh membership from the servers every MEMBERSHIP_REFRESH_MS in the background
+     */
+    public void startMembership() {
+        this.membershipService = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "membership");
+            t.setDaemon(true);
+            return t;
+        });
+
+        this.membershipService.scheduleWithFixedDelay(this::refreshMembership, 0, MEMBERSHIP_REFRESH_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Ask a random server not suspected for the live members of the cluster. Servers learned this way are
+     * added, servers reported down are suspected until reported up again and rings follow servers joining
+     * and leaving. If no server answers, every server is tried again on the next request.
+     */
+    public void refreshMembership() {
+        List<Node> servers = new ArrayList<Node>(this.idToServer.values());
+
+        Collections.shuffle(servers);
+
+        for (Node server : servers) {
+            MuxChannel chnl = this.pipeline(server);
+
+            if (chnl == null) continue;
+
+            try {
+                String response = chnl.request(REQUEST_TIMEOUT_MS, "CLIENT", this.id, "MEMBERS").get();
+
+                if (!response.startsWith("ACK:")) continue;
 
-        for (Object item :  arr) {
-            if (item != null) {
-                count++;
-            }        
+                Set<String> down = new HashSet<String>();
+                Map<String, String> statuses = new HashMap<String, String>();
+
+                for (String entry : response.substring(4).split(",")) {
+                    String[] fields = entry.split(";");
+
+                    statuses.put(fields[0], fields[4]);
+
+                    if (this.idToServer.putIfAbsent(fields[0], new Node(fields[0], fields[1], Integer.parseInt(fields[2]))) == null) {
+                        LOGGER.info(String.format("learned server %s, ip=%s, port=%s", fields[0], fields[1], fields[2]));
+                    }
+
+                    if (fields[3].equals("down")) down.add(fields[0]);
+                }
+
+                for (String serverId : down) {
+                    if (this.suspected.add(serverId)) {
+                        LOGGER.info(String.format("server %s reported down by %s", serverId, server.id));
+                    }
+                }
+
+                this.suspected.retainAll(down);
+
+                this.updateRings(statuses);
+
+                return;
+            }
+            catch (ExecutionException ex) {
+                LOGGER.info(String.format("membership request to server %s failed: %s", server.id, ex));
+            }
+            catch (InterruptedException ex) {
+                return;
+            }
         }
 
-        return count;
+        this.suspected.clear();
     }
 
-    public static void main(String[] args) throws Exception {
-        String[] fileList = {"f1", "f2", "f3", "f4"};
-        String configFile = "config.txt";
-        int writeCount = 0,
-            writeSuccess = 0,
-            readCount = 0,
-            readSuccess = 0,
-            totalRequests = 10;
+    private void updateRings(Map<String, String> statuses) {
+        Set<String> current = Membership.owners(statuses, false);
+        Set<String> target = Membership.owners(statuses, true);
 
-        Random rand = new Random();
+        if (!current.equals(new TreeSet<String>(this.ring.serverIds))) {
+            this.ring = new HashRing(current);
 
-        Applog.init();
+            LOGGER.info(String.format("ring changed to %s", current));
+        }
 
-        if (args.length < 3) {
-            throw new InvalidParameterException("Missing parameters. java prog <client-id> <total-requests> <config-file>");
+        HashRing pending = this.pendingRing;
+
+        if (target.equals(current)) {
+            this.pendingRing = null;
         }
-        
-        Client client = new Client(args[0]);
+        else if (pending == null || !target.equals(new TreeSet<String>(pending.serverIds))) {
+            this.pendingRing = new HashRing(target);
 
-        totalRequests = Integer.parseInt(args[1]);
+            LOGGER.info(String.format("pending ring changed to %s", target));
+        }
+    }
 
-        configFile = args[2];
+    /**
+     * Timestamp for a new write from the hybrid logical clock. Servers identify a write by client id and
+     * timestamp, timestamps of a client never repeat.
+     */
+    public long nextTimestamp() {
+        return this.clock.now();
+    }
 
-        // Load server config from file
-        client.loadConfig(configFile);
+    /**
+     * Servers replicating an object, primary first
+     */
+    public List<Node> replicasFor(String key) {
+        List<Node> replicas = new ArrayList<Node>();
 
-        for (int i = 0; i < totalRequests; i++) {
-            // Randomly select an object
-            String key = fileList[rand.nextInt(fileList.length)];
+        for (String serverId : this.ring.replicasFor(key)) {
+            replicas.add(this.idToServer.get(serverId));
+        }
 
-            // Calculate hash
-            Integer keyHash = key.hashCode();
+        return replicas;
+    }
 
-            // Decide whether to read/write
-            Integer rwbit = rand.nextInt(2);
+    /**
+     * Servers a write of an object goes to: its replicas and, while servers join or leave, its replicas
+     * once they are done
+     */
+    public List<Node> writeReplicasFor(String key) {
+        List<Node> replicas = this.replicasFor(key);
 
-            List<Integer> serverIndices = new ArrayList<>(
-                Arrays.asList(keyHash % client.serverList.size(), (keyHash + 1) % client.serverList.size(), (keyHash + 2) % client.serverList.size())
-            );            
+        HashRing pending = this.pendingRing;
 
-            // Send read request
-            if (rwbit == 0) {                
-                LOGGER.info(String.format("sending read request..."));
+        if (pending != null) {
+            for (String serverId : pending.replicasFor(key)) {
+                Node server = this.idToServer.get(serverId);
 
-                readCount++;
-                
-                Collections.shuffle(serverIndices);
+                if (server != null && !replicas.contains(server)) replicas.add(server);
+            }
+        }
 
-                for (Integer sidx : serverIndices) {
-                    Node selectedServer = client.serverList.get(sidx);
+        return replicas;
+    }
 
-                    Channel chnl = null;
+    /**
+     * Get pipelined connection to a server, opening it if needed. Returns null if server is unreachable.
+     */
+    public MuxChannel pipeline(Node server) {
+        // Not worth a connect timeout
+        if (this.suspected.contains(server.id)) {
+            return null;
+        }
 
-                    // TODO: Handle failure when connection to server fails. Try next server
-                    try {
-                        chnl = new Channel(selectedServer.ip, selectedServer.port);
-                    }
-                    catch (ConnectException | SocketTimeoutException ex) {
-                        LOGGER.info(String.format("unable to connect to server %s for reading %s", selectedServer.id, key));
+        MuxChannel chnl = this.idToChannel.get(server.id);
 
-                        continue;
-                    }
+        if (chnl != null && chnl.isOpen()) {
+            return chnl;
+        }
 
-                    String readRequest = String.format("CLIENT:%s:READ:%s", client.id, key);
+        // Threads sharing the client connect once, others reuse the new connection
+        synchronized (server) {
+            chnl = this.idToChannel.get(server.id);
 
-                    LOGGER.info(String.format(
-                        "client %s reading object %s from server %s",
-                        client.id,
-                        key,
-                        selectedServer.id
-                    ));
+            if (chnl != null && chnl.isOpen()) {
+                return chnl;
+            }
 
-                    
-                    chnl.send(readRequest);
+            try {
+                chnl = MuxChannel.open(server, "CLIENT", this.id, "PIPELINE");
 
-                    String response = chnl.recv();
+                this.idToChannel.put(server.id, chnl);
 
-                    String[] params = response.split(":", 2);
+                return chnl;
+            }
+            catch (IOException ex) {
+                LOGGER.info(String.format("unable to open pipelined connection to server %s", server.id));
 
-                    if (params[0].equals("ACK")) {
-                        LOGGER.info(
-                            String.format("server %s: value of object %s : %s", selectedServer.id, key, params[1])
-                        );
+                return null;
+            }
+        }
+    }
 
-                        chnl.close();
+    /**
+     * Read many objects with one MREAD per server over pipelined connections. Every object is read
+     * from a random replica.
+     *
+     * @return values of objects read successfully
+     */
+    public Map<String, String> multiRead(List<String> keys) throws InterruptedException {
+        Map<String, List<String>> idToKeys = new HashMap<String, List<String>>();
 
-                        readSuccess++;
+        for (String key : keys) {
+            List<Node> replicaServers = this.replicasFor(key);
 
-                        break; // Successful read response from any one server is sufficient
-                    }
-                    else {
-                        LOGGER.info(String.format("received read failure from %s for request %s - %s", selectedServer.id, readRequest, response));
+            Collections.shuffle(replicaServers);
+
+            idToKeys.computeIfAbsent(replicaServers.get(0).id, k -> new ArrayList<String>()).add(key);
+        }
+
+        Map<String, CompletableFuture<String>> idToResponse = new HashMap<String, CompletableFuture<String>>();
+
+        for (Map.Entry<String, List<String>> entry : idToKeys.entrySet()) {
+            MuxChannel chnl = this.pipeline(this.idToServer.get(entry.getKey()));
+
+            if (chnl == null) continue;
+
+            StringBuilder objs = new StringBuilder();
+
+            for (int i = 0; i < entry.getValue().size(); i++) {
+                if (i > 0) objs.append(',');
+
+                objs.append(Protocol.escape(entry.getValue().get(i)));
+            }
+
+            idToResponse.put(entry.getKey(), chnl.request(REQUEST_TIMEOUT_MS, "CLIENT", this.id, "MREAD", objs.toString()));
+        }
+
+        Map<String, String> values = new HashMap<String, String>();
+
+        for (Map.Entry<String, CompletableFuture<String>> entry : idToResponse.entrySet()) {
+            List<String> serverKeys = idToKeys.get(entry.getKey());
+
+            try {
+                String[] params = entry.getValue().get(REQUEST_TIMEOUT_MS, TimeUnit.MILLISECONDS).split(":", 2);
+
+                if (!params[0].equals("ACK")) {
+                    LOGGER.info(String.format("received batch read failure from %s - %s", entry.getKey(), params[1]));
+
+                    continue;
+                }
+
+                String[] items = params[1].split(",", -1);
+
+                for (int i = 0; i < items.length; i++) {
+                    if (items[i].startsWith("+")) {
+                        values.put(serverKeys.get(i), Protocol.unescape(items[i].substring(1)));
                     }
-        
-                    // Clean up socket
-                    chnl.close();
                 }
             }
-            else { // Send write request
-                LOGGER.info("sending write request...");
+            catch (ExecutionException | TimeoutException ex) {
+                LOGGER.info(String.format("batch read from server %s failed: %s", entry.getKey(), ex));
+            }
+        }
 
-                long ts = Instant.now().toEpochMilli();
+        return values;
+    }
 
-                String value = String.format("client %s write count %s", client.id, writeCount++);
+    /**
+     * Write many objects with one MWRITE per server over pipelined connections. Objects with fewer than
+     * two reachable replicas are not written.
+     *
+     * @return objects written successfully on every reachable replica
+     */
+    public Set<String> multiWrite(Map<String, String> keyToValue, long ts) throws InterruptedException {
+        Map<String, List<String>> idToKeys = new HashMap<String, List<String>>();
+        Map<String, String> keyToReplicas = new HashMap<String, String>();
+
+        for (String key : keyToValue.keySet()) {
+            List<String> reachable = new ArrayList<String>();
+
+            for (Node selectedServer : this.writeReplicasFor(key)) {
+                if (this.pipeline(selectedServer) != null) {
+                    reachable.add(selectedServer.id);
+                }
+            }
 
-                String replicas = "";
+            if (reachable.size() < 2) { // ABORT. Not enough replicas available
+                LOGGER.info(String.format("client %s aborting write to object:%s", this.id, key));
 
-                List<Channel> serverChnls = new ArrayList<>();
+                continue;
+            }
 
-                for (Integer sidx : serverIndices) {
-                    Node selectedServer = client.serverList.get(sidx);
+            keyToReplicas.put(key, String.join(",", reachable));
 
-                    Channel chnl = null;
+            for (String serverId : reachable) {
+                idToKeys.computeIfAbsent(serverId, k -> new ArrayList<String>()).add(key);
+            }
+        }
 
-                    try {
-                        chnl = new Channel(selectedServer.ip, selectedServer.port, selectedServer.id);
+        Map<String, CompletableFuture<String>> idToResponse = new HashMap<String, CompletableFuture<String>>();
 
-                        replicas = String.format("%s,%s", selectedServer.id, replicas);
-                    }
-                    catch (ConnectException | SocketTimeoutException ex) {
-                        LOGGER.info(String.format("unable to connect to server %s for writing %s:%s", selectedServer.id, key, value));
-                    }
-                    finally {
-                        serverChnls.add(chnl);
+        for (Map.Entry<String, List<String>> entry : idToKeys.entrySet()) {
+            StringBuilder entries = new StringBuilder();
+
+            for (int i = 0; i < entry.getValue().size(); i++) {
+                String key = entry.getValue().get(i);
+
+                if (i > 0) entries.append(',');
+
+                entries.append(Protocol.escape(key))
+                    .append(';').append(Protocol.escape(keyToValue.get(key)))
+                    .append(';').append(Protocol.escape(keyToReplicas.get(key)));
+            }
+
+            idToResponse.put(
+                entry.getKey(),
+                this.idToChannel.get(entry.getKey()).request(REQUEST_TIMEOUT_MS, "CLIENT", this.id, "MWRITE", Long.toString(ts), entries.toString())
+            );
+        }
+
+        Set<String> written = new HashSet<String>(keyToReplicas.keySet());
+
+        for (Map.Entry<String, CompletableFuture<String>> entry : idToResponse.entrySet()) {
+            List<String> serverKeys = idToKeys.get(entry.getKey());
+
+            try {
+                String[] params = entry.getValue().get(REQUEST_TIMEOUT_MS, TimeUnit.MILLISECONDS).split(":", 2);
+
+                String[] items = params[0].equals("ACK") ? params[1].split(",", -1) : new String[0];
+
+                for (int i = 0; i < serverKeys.size(); i++) {
+                    if (i >= items.length || !items[i].startsWith("+")) {
+                        written.remove(serverKeys.get(i));
                     }
                 }
+            }
+            catch (ExecutionException | TimeoutException ex) {
+                LOGGER.info(String.format("batch write to server %s failed: %s", entry.getKey(), ex));
 
-                if (countNonNullItems(serverChnls) < 2) { // ABORT. Not enough replicas available
-                    String abortRequest = String.format("CLIENT:%s:ABORT:%s:%s:%s", client.id, key, value, ts);
-                
-                    for (Channel chnl : serverChnls) {
-                        if (chnl == null) continue;
-    
-                        LOGGER.info(String.format(
-                            "client %s aborting write to object:%s, value:%s to server %s at %s",
-                            client.id,
-                            key,
-                            value,
-                            chnl.id, // Server ID
-                            ts
-                        ));
-                        
-                        chnl.send(abortRequest);
-                    }
-    
-                    for (Channel chnl : serverChnls) {
-                        if (chnl == null) continue;
-    
-                        String response = chnl.recv();
-    
-                        String[] params = response.split(":", 2);
-    
-                        if (params[0].equals("ACK")) {
-                            LOGGER.info(
-                                String.format("sucessful abort from %s for object %s", chnl.id, key)
-                            );
-                        }
-                        else {
-                            LOGGER.info(String.format("received abort failure from %s for request %s - %s", chnl.id, abortRequest, response));
-                        }
-            
-                        // Clean up socket
-                        chnl.close();
-                    }
-                } else {
-                    String writeRequest = String.format("CLIENT:%s:WRITE:%s:%s:%s:%s", client.id, key, value, ts, replicas);
-                
-                    for (Channel chnl : serverChnls) {    
-                        if (chnl == null) continue;
-    
-                        LOGGER.info(String.format(
-                            "client %s writing object:%s, value:%s to server %s at %s",
-                            client.id,
-                            key,
-                            value,
-                            chnl.id,
-                            ts
-                        ));
-                        
-                        chnl.send(writeRequest);
-                    }
-    
-                    for (Channel chnl : serverChnls) {    
-                        if (chnl == null) continue;
-    
-                        String response = chnl.recv();
-    
-                        String[] params = response.split(":", 2);
-    
-                        if (params[0].equals("ACK")) {
-                            LOGGER.info(
-                                String.format("sucessful write to %s for object %s", chnl.id, key)
-                            );
-                        }
-                        else {
-                            LOGGER.info(String.format("received write failure from %s for request %s - %s", chnl.id, writeRequest, response));
-                        }
-            
-                        // Clean up socket
-                        chnl.close();
-                    }
+                written.removeAll(serverKeys);
+            }
+        }
 
-                    writeSuccess++;
-                }
+        return written;
+    }
+
+    /**
+     * Consistency of a read, chosen per request
+     */
+    public enum Consistency {
+        ONE,    // First replica that returns the object, may be stale
+        LEADER, // Primary replica if it holds the lease on the key, so it has every acknowledged write, else QUORUM
+        QUORUM  // Newest value of a majority of replicas, stale replicas are repaired in the background
+    }
+
+    /**
+     * Read an object from the first replica that returns it, replicas tried in random order.
+     *
+     * @return value of object
+     */
+    public String read(String key) throws IOException, InterruptedException {
+        return this.read(key, Consistency.ONE);
+    }
+
+    /**
+     * @return value of object read with given consistency
+     */
+    public String read(String key, Consistency consistency) throws IOException, InterruptedException {
+        if (consistency == Consistency.QUORUM) {
+            return this.readQuorum(key).value;
+        }
+
+        return (consistency == Consistency.LEADER ? this.readLeader(key) : this.readOne(key)).value;
+    }
+
+    private Versioned readOne(String key) throws IOException, InterruptedException {
+        List<Node> replicaServers = this.replicasFor(key);
+
+        Collections.shuffle(replicaServers);
+
+        for (Node selectedServer : replicaServers) {
+            MuxChannel chnl = this.pipeline(selectedServer);
+
+            if (chnl == null) continue;
+
+            LOGGER.fine(String.format("client %s reading object %s from server %s", this.id, key, selectedServer.id));
+
+            Versioned value = this.readResponse(selectedServer, key, this.await(selectedServer, chnl.request(REQUEST_TIMEOUT_MS, "CLIENT", this.id, "READ", key)));
+
+            if (value != null) {
+                return value; // Successful read response from any one server is sufficient
             }
         }
 
-        LOGGER.info(String.format("Write attempts: %s, Success: %s, Aborted: %s", writeCount, writeSuccess, writeCount - writeSuccess));
-        LOGGER.info(String.format("Read attempts: %s, Success: %s, Failed: %s", readCount, readSuccess, readCount - readSuccess));
+        throw new IOException(String.format("no replica returned object %s", key));
+    }
+
+    /**
+     * Read an object from its primary replica, which answers only while it holds the lease on the key.
+     * Falls back to a quorum read if it does not or cannot be reached.
+     */
+    private Versioned readLeader(String key) throws IOException, InterruptedException {
+        List<Node> replicaServers = this.replicasFor(key);
+
+        // Replicas in ring order put the primary first
+        Node primary = replicaServers.isEmpty() ? null : replicaServers.get(0);
+
+        MuxChannel chnl = primary != null ? this.pipeline(primary) : null;
+
+        if (chnl != null) {
+            String response = this.await(primary, chnl.request(REQUEST_TIMEOUT_MS, "CLIENT", this.id, "LREAD", key));
+
+            if (response != null && response.startsWith("ACK:")) {
+                return this.readResponse(primary, key, response);
+            }
+
+            LOGGER.fine(String.format("client %s reading object %s by quorum: %s", this.id, key, response));
+        }
+
+        return this.readQuorum(key);
+    }
+
+    /**
+     * Read an object from every reachable replica in parallel and return the newest value once a majority
+     * of replicas answered. When all have answered, replicas found stale are sent the newest value.
+     */
+    private Versioned readQuorum(String key) throws IOException, InterruptedException {
+        List<Node> replicaServers = this.replicasFor(key);
+
+        int quorum = replicaServers.size() / 2 + 1;
+
+        Map<Node, CompletableFuture<String>> serverResponses = new LinkedHashMap<Node, CompletableFuture<String>>();
+
+        BlockingQueue<Node> answered = new LinkedBlockingQueue<Node>();
+
+        for (Node selectedServer : replicaServers) {
+            MuxChannel chnl = this.pipeline(selectedServer);
+
+            if (chnl == null) continue;
+
+            CompletableFuture<String> response = chnl.request(REQUEST_TIMEOUT_MS, "CLIENT", this.id, "READ", key);
+
+            response.whenComplete((r, ex) -> answered.add(selectedServer));
+
+            serverResponses.put(selectedServer, response);
+        }
+
+        if (serverResponses.size() < quorum) {
+            throw new IOException(String.format("only %s of %s replicas of object %s reachable", serverResponses.size(), replicaServers.size(), key));
+        }
+
+        // Repair in the background once every replica answered or timed out
+        CompletableFuture.allOf(serverResponses.values().toArray(new CompletableFuture<?>[0]))
+            .whenComplete((r, ex) -> this.repair(key, serverResponses));
+
+        Versioned newest = null;
+
+        int responses = 0;
+
+        // Responses of replicas without the object count towards the quorum, failed requests do not
+        for (int pending = serverResponses.size(); pending > 0 && responses < quorum; pending--) {
+            Node selectedServer = answered.take();
+
+            String response = this.responseNow(selectedServer, serverResponses.get(selectedServer));
+
+            if (response == null) continue;
+
+            responses++;
+
+            Versioned value = this.readResponse(selectedServer, key, response);
+
+            if (value != null && value.isNewerThan(newest)) {
+                newest = value;
+            }
+        }
+
+        if (responses < quorum) {
+            throw new IOException(String.format("only %s of %s replicas answered read of object %s", responses, quorum, key));
+        }
+
+        if (newest == null) {
+            throw new IOException(String.format("no replica returned object %s", key));
+        }
+
+        return newest;
+    }
+
+    /**
+     * Send the newest value read to replicas that answered with an older version or without the object
+     */
+    private void repair(String key, Map<Node, CompletableFuture<String>> serverResponses) {
+        Map<Node, Versioned> serverValues = new HashMap<Node, Versioned>();
+
+        Versioned newest = null;
+
+        for (Map.Entry<Node, CompletableFuture<String>> entry : serverResponses.entrySet()) {
+            String response = this.responseNow(entry.getKey(), entry.getValue());
+
+            if (response == null) continue;
+
+            Versioned value = response.startsWith("ACK:") ? this.readResponse(entry.getKey(), key, response) : null;
+
+            serverValues.put(entry.getKey(), value);
+
+            if (value != null && value.isNewerThan(newest)) {
+                newest = value;
+            }
+        }
+
+        if (newest == null) return;
+
+        for (Map.Entry<Node, Versioned> entry : serverValues.entrySet()) {
+            if (!newest.isNewerThan(entry.getValue())) continue;
+
+            MuxChannel chnl = this.idToChannel.get(entry.getKey().id);
+
+            if (chnl == null) continue;
+
+            LOGGER.fine(String.format("client %s repairing object %s on server %s to %s", this.id, key, entry.getKey().id, newest));
+
+            chnl.request(REQUEST_TIMEOUT_MS, "CLIENT", this.id, "REPAIR", key, newest.value, Long.toString(newest.timestamp), newest.ownerId);
+        }
+    }
+
+    /**
+     * Value in a READ response, null if the request failed or the replica did not return the object
+     */
+    private Versioned readResponse(Node server, String key, String response) {
+        if (response == null) return null;
+
+        String[] params = response.split(":", 4);
+
+        if (params[0].equals("ACK")) {
+            Versioned value = new Versioned(params[3], Long.parseLong(params[1]), params[2]);
+
+            // Writes issued after this read are ordered after the value read
+            this.clock.update(value.timestamp);
+
+            return value;
+        }
+
+        LOGGER.info(String.format("received read failure from %s for object %s - %s", server.id, key, response));
+
+        return null;
+    }
+
+    /**
+     * Response of a completed request, null if it failed
+     */
+    private String responseNow(Node server, CompletableFuture<String> response) {
+        try {
+            return response.getNow(null);
+        }
+        catch (CompletionException | CancellationException ex) {
+            LOGGER.info(String.format("request to server %s failed: %s", server.id, ex));
+
+            return null;
+        }
+    }
+
+    /**
+     * Write an object to every reachable replica. The write is aborted if fewer than two replicas are
+     * reachable.
+     *
+     * @return true if written, false if aborted
+     */
+    public boolean write(String key, String value, long ts) throws IOException, InterruptedException {
+        Map<Node, MuxChannel> serverChnls = new LinkedHashMap<Node, MuxChannel>();
+
+        for (Node selectedServer : this.writeReplicasFor(key)) {
+            MuxChannel chnl = this.pipeline(selectedServer);
+
+            if (chnl != null) {
+                serverChnls.put(selectedServer, chnl);
+            }
+            else {
+                LOGGER.info(String.format("unable to connect to server %s for writing %s:%s", selectedServer.id, key, value));
+            }
+        }
+
+        List<String> reachable = new ArrayList<String>();
+
+        for (Node selectedServer : serverChnls.keySet()) {
+            reachable.add(selectedServer.id);
+        }
+
+        String[] request = serverChnls.size() < 2 // ABORT. Not enough replicas available
+            ? new String[] { "CLIENT", this.id, "ABORT", key, value, Long.toString(ts) }
+            : new String[] { "CLIENT", this.id, "WRITE", key, value, Long.toString(ts), String.join(",", reachable) };
+
+        Map<Node, CompletableFuture<String>> serverResponses = new LinkedHashMap<Node, CompletableFuture<String>>();
+
+        for (Map.Entry<Node, MuxChannel> entry : serverChnls.entrySet()) {
+            LOGGER.fine(String.format("client %s sending %s of object %s to server %s at %s", this.id, request[2], key, entry.getKey().id, ts));
+
+            serverResponses.put(entry.getKey(), entry.getValue().request(REQUEST_TIMEOUT_MS, request));
+        }
+
+        boolean failed = false;
+
+        for (Map.Entry<Node, CompletableFuture<String>> entry : serverResponses.entrySet()) {
+            String response = this.await(entry.getKey(), entry.getValue());
+
+            String[] params = response == null ? new String[] { "ERR" } : response.split(":", 2);
+
+            if (!params[0].equals("ACK")) {
+                LOGGER.info(String.format("received %s failure from %s for object %s - %s", request[2], entry.getKey().id, key, response));
+
+                failed = true;
+            }
+            else if (params.length > 1) {
+                this.clock.update(Long.parseLong(params[1])); // Catch up with server clock
+            }
+        }
+
+        if (request[2].equals("ABORT")) {
+            return false;
+        }
+
+        if (failed) {
+            throw new IOException(String.format("write of object %s failed on some replicas", key));
+        }
+
+        return true;
+    }
+
+    /**
+     * Wait for response of a pipelined request, null if it failed or timed out. Requests are sent with
+     * REQUEST_TIMEOUT_MS, so the channel forgets one at its deadline.
+     */
+    private String await(Node server, CompletableFuture<String> response) throws InterruptedException {
+        try {
+            return response.get(REQUEST_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        }
+        catch (ExecutionException | TimeoutException ex) {
+            LOGGER.info(String.format("request to server %s failed: %s", server.id, ex));
+
+            return null;
+        }
+    }
+
+    /**
+     * Entry point for client, runs a load generator against the cluster and logs its statistics.
+     *
+     * @param args[0] client id
+     * @param args[1] number of requests over all threads, 0 to run for DURATION_S seconds
+     * @param args[2] file to load cluster config from
+     * @param args[3] optional number of objects k0..k<n-1> to use instead of the default objects
+     *
+     * Environment THREADS, READ_RATIO, KEY_DIST (uniform or zipf, with exponent ZIPF_S), RATE (open loop
+     * requests per second with at most THREADS outstanding, 0 for closed loop), DURATION_S, BATCH_SIZE and
+     * READ_CONSISTENCY (ONE, LEADER or QUORUM) shape the load.
+     */
+    public static void main(String[] args) throws Exception {
+        String[] fileList = Node.fileList;
+
+        Applog.init();
+
+        if (args.length < 3) {
+            throw new InvalidParameterException("Missing parameters. java prog <client-id> <total-requests> <config-file> [key-count]");
+        }
+        
+        Client client = new Client(args[0]);
+
+        long totalRequests = Long.parseLong(args[1]);
+
+        // Load server config from file, then keep up with membership
+        client.loadConfig(args[2]);
+        client.startMembership();
+
+        // Use a generated keyspace of k0..k<n-1> instead of the default objects
+        if (args.length > 3) {
+            fileList = new String[Integer.parseInt(args[3])];
+
+            for (int i = 0; i < fileList.length; i++) {
+                fileList[i] = String.format("k%s", i);
+            }
+        }
+
+        new LoadGenerator(client, fileList, totalRequests).run();
+
+        for (MuxChannel chnl : client.idToChannel.values()) {
+            chnl.close();
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,20 @@
+package app;
+
+/**
+ * Reads tunable parameters from environment variables, falling back to defaults when not set.
+ */
+public class Config {
+    public static String get(String name, String defaultValue) {
+        String value = System.getenv(name);
+
+        return value == null || value.isEmpty() ? defaultValue : value;
+    }
+
+    public static int getInt(String name, int defaultValue) {
+        return Integer.parseInt(get(name, Integer.toString(defaultValue)));
+    }
+
+    public static long getLong(String name, long defaultValue) {
+        return Long.parseLong(get(name, Long.toString(defaultValue)));
+    }
+}
@@ -0,0 +1,184 @@
+package app;
+
+import java.nio.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * A message on a channel and its binary wire encoding. Binary frames are length prefixed and carry the
+ * action as an opcode byte, every field is length prefixed so values may contain any character:
+ *
+ *   [int length of rest][byte opcode][long request id][short field count]([int length][utf-8 bytes])*
+ *
+ * Request fields are the same as in the text format (CLIENT:id:WRITE:obj:...) minus the action, which is
+ * carried by the opcode and put back at index 2 when decoding. Responses use OP_RESPONSE with the
+ * response as single field. Request id is 0 on connections that are not multiplexed.
+ *
+ * A binary connection starts with MAGIC sent by the client and echoed back by the server. Text lines
+ * never start with a zero byte, so the server can tell both formats apart on the first byte.
+ */
+public class Frame {
+    long requestId;
+    String[] fields;
+
+    public static byte[] MAGIC = { 0, 'K', 'V', 1 };
+
+    public static byte OP_FIELDS = 0; // Fields sent as is, action included
+    public static byte OP_RESPONSE = 0x7F;
+
+    // Opcode of an action is its index in this list plus one
+    static List<String> ACTIONS = Arrays.asList(
+        "READ", "WRITE", "ABORT", "MREAD", "MWRITE", "VOTE", "RELEASE", "REJECT", "PING", "CONNECT", "PIPELINE", "STATS", "REPAIR", "LEASE", "REPLICATE",
+        "TREE", "ENTRIES", "FETCH", "HINTS", "GOSSIP", "MEMBERS", "LEAVE", "LREAD"
+    );
+
+    static int HEADER_LENGTH = 4 + 1 + 8 + 2;
+
+    // Largest frame body or text line accepted, larger ones are taken as a broken or hostile peer
+    static int MAX_FRAME_BYTES = Config.getInt("MAX_FRAME_BYTES", 64 << 20);
+
+    public Frame(long rid, String[] fieldList) {
+        this.requestId = rid;
+        this.fields = fieldList;
+    }
+
+    /**
+     * Frame of a text line, split on ':' for requests and kept whole for responses.
+     *
+     * @param multiplexed line starts with a request id
+     */
+    public static Frame parseText(String line, boolean multiplexed, boolean request) {
+        long rid = 0;
+
+        if (multiplexed) {
+            int sep = line.indexOf(':');
+
+            rid = Long.parseLong(line.substring(0, sep));
+            line = line.substring(sep + 1);
+        }
+
+        return new Frame(rid, request ? line.split(":") : new String[] { line });
+    }
+
+    /**
+     * Text line of a frame, fields joined on ':' and prefixed by request id on multiplexed connections.
+     */
+    public static String formatText(long requestId, String... fields) {
+        String line = String.join(":", fields);
+
+        return requestId == 0 ? line : String.format("%s:%s", requestId, line);
+    }
+
+    /**
+     * Encode a request into buffer, growing it if it is too small.
+     *
+     * @return buffer holding the frame, flipped for reading
+     */
+    public static ByteBuffer encodeRequest(ByteBuffer buf, long requestId, String... fields) {
+        int opcode = fields.length > 2 ? ACTIONS.indexOf(fields[2]) + 1 : OP_FIELDS;
+
+        return encode(buf, (byte) opcode, requestId, fields, opcode == OP_FIELDS ? -1 : 2);
+    }
+
+    public static ByteBuffer encodeResponse(ByteBuffer buf, long requestId, String response) {
+        return encode(buf, OP_RESPONSE, requestId, new String[] { response }, -1);
+    }
+
+    private static ByteBuffer encode(ByteBuffer buf, byte opcode, long requestId, String[] fields, int skip) {
+        // Upper bound of encoded length, exact length is written once fields are encoded
+        int length = HEADER_LENGTH;
+
+        for (int i = 0; i < fields.length; i++) {
+            if (i != skip) length += 4 + utf8Length(fields[i]);
+        }
+
+        if (buf == null || buf.capacity() < length) {
+            buf = ByteBuffer.allocate(Math.max(length, buf == null ? 256 : buf.capacity() * 2));
+        }
+
+        buf.clear();
+
+        buf.putInt(0); // Placeholder for length
+        buf.put(opcode);
+        buf.putLong(requestId);
+        buf.putShort((short) (skip < 0 ? fields.length : fields.length - 1));
+
+        for (int i = 0; i < fields.length; i++) {
+            if (i == skip) continue;
+
+            putString(buf, fields[i]);
+        }
+
+        buf.putInt(0, buf.position() - 4);
+
+        buf.flip();
+
+        return buf;
+    }
+
+    /**
+     * Decode a frame whose body (everything after the length prefix) is between position and limit.
+     */
+    public static Frame decode(ByteBuffer body) {
+        byte opcode = body.get();
+        long requestId = body.getLong();
+        int count = body.getShort();
+
+        boolean action = opcode != OP_FIELDS && opcode != OP_RESPONSE;
+
+        String[] fields = new String[action ? count + 1 : count];
+
+        for (int i = 0; i < fields.length; i++) {
+            if (action && i == 2) {
+                fields[i] = ACTIONS.get(opcode - 1);
+
+                continue;
+            }
+
+            int length = body.getInt();
+
+            fields[i] = new String(body.array(), body.arrayOffset() + body.position(), length, StandardCharsets.UTF_8);
+
+            body.position(body.position() + length);
+        }
+
+        return new Frame(requestId, fields);
+    }
+
+    private static int utf8Length(String s) {
+        int length = 0;
+
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+
+            if (c < 0x80) length += 1;
+            else if (c < 0x800) length += 2;
+            else if (Character.isHighSurrogate(c)) { length += 4; i++; }
+            else length += 3;
+        }
+
+        return length;
+    }
+
+    private static void putString(ByteBuffer buf, String s) {
+        int start = buf.position();
+
+        buf.putInt(0); // Placeholder for length
+
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+
+            if (c >= 0x80) {
+                // Slow path for non ascii text
+                buf.position(start + 4);
+                buf.put(s.getBytes(StandardCharsets.UTF_8));
+
+                break;
+            }
+
+            buf.put((byte) c);
+        }
+
+        buf.putInt(start, buf.position() - start - 4);
+    }
+}
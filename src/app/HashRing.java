@@ -0,0 +1,140 @@
+package app;
+
+import java.nio.charset.StandardCharsets;
+import java.security.*;
+import java.util.*;
+
+/**
+ * Consistent-hash ring used by clients and servers to place objects on replicas. Every server owns a
+ * number of virtual nodes spread over the ring, an object is replicated on the first distinct servers
+ * found walking clockwise from the hash of its name. Adding or removing a server only moves the objects
+ * next to its virtual nodes.
+ */
+public class HashRing {
+    public static int REPLICATION_FACTOR = 3;
+    public static int VIRTUAL_NODES = Config.getInt("VIRTUAL_NODES", 128);
+
+    List<String> serverIds;
+    int virtualNodes;
+
+    private TreeMap<Long, String> ring = new TreeMap<Long, String>();
+
+    private static ThreadLocal<MessageDigest> md5 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("MD5");
+        }
+        catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    });
+
+    public HashRing(Collection<String> ids) {
+        this(ids, VIRTUAL_NODES);
+    }
+
+    /**
+     * @param ids servers on the ring
+     * @param vnodes number of virtual nodes per server
+     */
+    public HashRing(Collection<String> ids, int vnodes) {
+        this.serverIds = new ArrayList<String>(ids);
+        this.virtualNodes = vnodes;
+
+        for (String serverId : this.serverIds) {
+            for (int i = 0; i < vnodes; i++) {
+                this.ring.put(hash(String.format("%s#%s", serverId, i)), serverId);
+            }
+        }
+    }
+
+    /**
+     * Replicas of an object in ring order, first one is the primary.
+     *
+     * @param key object name
+     * @param count number of replicas wanted, fewer are returned if there are not enough servers
+     */
+    public List<String> replicasFor(String key, int count) {
+        List<String> replicas = new ArrayList<String>(count);
+
+        if (this.ring.isEmpty()) {
+            return replicas;
+        }
+
+        count = Math.min(count, this.serverIds.size());
+
+        // Walk clockwise from key, wrapping around the end of the ring
+        for (String serverId : this.ring.tailMap(hash(key)).values()) {
+            if (replicas.size() == count) return replicas;
+
+            if (!replicas.contains(serverId)) replicas.add(serverId);
+        }
+
+        for (String serverId : this.ring.values()) {
+            if (replicas.size() == count) return replicas;
+
+            if (!replicas.contains(serverId)) replicas.add(serverId);
+        }
+
+        return replicas;
+    }
+
+    public List<String> replicasFor(String key) {
+        return this.replicasFor(key, REPLICATION_FACTOR);
+    }
+
+    /**
+     * Arc of the ring an object falls in, from the virtual node before it, exclusive, to the virtual node
+     * it maps to, inclusive. Objects of one arc share their replicas.
+     *
+     * @return start and end positions, equal if the ring has a single virtual node
+     */
+    public long[] rangeFor(String key) {
+        Map.Entry<Long, String> end = this.ring.ceilingEntry(hash(key));
+
+        if (end == null) end = this.ring.firstEntry();
+
+        Map.Entry<Long, String> start = this.ring.lowerEntry(end.getKey());
+
+        if (start == null) start = this.ring.lastEntry();
+
+        return new long[] { start.getKey(), end.getKey() };
+    }
+
+    /**
+     * @return true if position is in the arc range, as returned by rangeFor
+     */
+    public static boolean inRange(long[] range, long position) {
+        if (range[0] == range[1]) {
+            return true; // Whole ring
+        }
+
+        if (range[0] < range[1]) {
+            return position > range[0] && position <= range[1];
+        }
+
+        // Arc wraps around the end of the ring
+        return position > range[0] || position <= range[1];
+    }
+
+    /**
+     * @return true if two arcs share a position, then one of them holds the end of the other
+     */
+    public static boolean overlaps(long[] a, long[] b) {
+        return inRange(a, b[1]) || inRange(b, a[1]);
+    }
+
+    /**
+     * Position of a name on the ring, first 8 bytes of its MD5 digest.
+     */
+    public static long hash(String name) {
+        byte[] digest = md5.get().digest(name.getBytes(StandardCharsets.UTF_8));
+
+        long h = 0;
+
+        for (int i = 0; i < 8; i++) {
+            h = (h << 8) | (digest[i] & 0xFF);
+        }
+
+        return h;
+    }
+}
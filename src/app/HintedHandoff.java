@@ -0,0 +1,300 @@
+package app;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.*;
+
+/**
+ * Hints for replicas that missed writes because the client could not reach them. A hint only names the
+ * replica and the object, replay sends the latest value stored here, which supersedes the missed one.
+ * Hints are appended to a spill file, one "server\tobject" line each, so they survive a restart.
+ *
+ * Every HINT_REPLAY_INTERVAL_MS hints are sent to their replicas in HINTS requests of HINT_BATCH objects,
+ * a replica still down keeps its hints for the next attempt. The spill file is rewritten with what is
+ * left after every replay. Replay is limited to HINT_BYTES_PER_SEC, 0 lifts the limit.
+ */
+public class HintedHandoff {
+    Server owner;
+    File file;
+
+    static long REPLAY_INTERVAL_MS = Config.getLong("HINT_REPLAY_INTERVAL_MS", 1000);
+    static int BATCH_SIZE = Config.getInt("HINT_BATCH", 64);
+    static long BYTES_PER_SEC = Config.getLong("HINT_BYTES_PER_SEC", 4 << 20);
+
+    private RateLimiter byteLimiter = new RateLimiter(BYTES_PER_SEC);
+
+    // Objects to replay to each server and those taken by the replay in progress. Guarded by this
+    private Map<String, Set<String>> serverToObjs = new HashMap<String, Set<String>>();
+    private Map<String, Set<String>> replaying;
+
+    private OutputStream writer;
+
+    private ScheduledExecutorService replayService;
+
+    private final static Logger LOGGER = Logger.getLogger(Applog.class.getName());
+
+    /**
+     * @param own server storing the hints
+     * @param spillFile file hints are kept in
+     */
+    public HintedHandoff(Server own, File spillFile) {
+        this.owner = own;
+        this.file = spillFile;
+    }
+
+    /**
+     * Load hints left by a previous run and start replaying them
+     */
+    public void start() throws IOException {
+        if (this.file.exists()) {
+            int loaded = 0;
+
+            for (String line : Files.readAllLines(this.file.toPath(), StandardCharsets.UTF_8)) {
+                String[] fields = line.split("\t");
+
+                // Skip a line torn by a crash
+                if (fields.length != 2) continue;
+
+                if (this.objects(fields[0]).add(fields[1])) loaded++;
+            }
+
+            LOGGER.info(String.format("loaded %s hints from %s", loaded, this.file));
+        }
+
+        this.replayService = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "hint-replay");
+            t.setDaemon(true);
+            return t;
+        });
+
+        this.replayService.scheduleWithFixedDelay(this::replay, REPLAY_INTERVAL_MS, REPLAY_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Record that a server missed a write of obj
+     */
+    public synchronized void add(String serverId, String obj) throws IOException {
+        if (!this.objects(serverId).add(obj)) {
+            return;
+        }
+
+        if (this.writer == null) {
+            this.file.getParentFile().mkdirs();
+
+            this.writer = new FileOutputStream(this.file, true);
+        }
+
+        this.writer.write(String.format("%s\t%s\n", serverId, obj).getBytes(StandardCharsets.UTF_8));
+
+        this.owner.metrics.increment("hints.stored");
+    }
+
+    /**
+     * Number of hints not delivered yet, counting those being replayed
+     */
+    public int pending() {
+        int count = 0;
+
+        synchronized (this) {
+            for (Set<String> objs : this.serverToObjs.values()) count += objs.size();
+
+            if (this.replaying != null) {
+                for (Set<String> objs : this.replaying.values()) count += objs.size();
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * Number of the given hints not delivered yet, counting those being replayed
+     *
+     * @param hints objects by server they were hinted for
+     */
+    public int pending(Map<String, Set<String>> hints) {
+        int count = 0;
+
+        synchronized (this) {
+            for (Map.Entry<String, Set<String>> entry : hints.entrySet()) {
+                for (String obj : entry.getValue()) {
+                    if (this.isPending(this.serverToObjs, entry.getKey(), obj) || this.isPending(this.replaying, entry.getKey(), obj)) {
+                        count++;
+                    }
+                }
+            }
+        }
+
+        return count;
+    }
+
+    private boolean isPending(Map<String, Set<String>> hints, String serverId, String obj) {
+        if (hints == null) {
+            return false;
+        }
+
+        Set<String> objs = hints.get(serverId);
+
+        return objs != null && objs.contains(obj);
+    }
+
+    private Set<String> objects(String serverId) {
+        return this.serverToObjs.computeIfAbsent(serverId, k -> new LinkedHashSet<String>());
+    }
+
+    private void replay() {
+        Map<String, Set<String>> pending;
+
+        // Hints added while replaying go to fresh sets, so none is dropped with the ones sent
+        synchronized (this) {
+            if (this.serverToObjs.isEmpty()) {
+                return;
+            }
+
+            pending = this.serverToObjs;
+
+            this.serverToObjs = new HashMap<String, Set<String>>();
+            this.replaying = pending;
+        }
+
+        for (Map.Entry<String, Set<String>> entry : pending.entrySet()) {
+            // Replica is back once the failure detector stops suspecting it
+            if (this.owner.membership.isSuspected(entry.getKey())) continue;
+
+            try {
+                int replayed = this.replay(entry.getKey(), entry.getValue());
+
+                LOGGER.info(String.format("replayed %s hints to %s", replayed, entry.getKey()));
+            }
+            catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            catch (IOException ex) {
+                LOGGER.fine(String.format("hints for %s kept: %s", entry.getKey(), ex.getMessage()));
+            }
+        }
+
+        synchronized (this) {
+            // Put back what was not delivered and rewrite the spill file with everything left
+            for (Map.Entry<String, Set<String>> entry : pending.entrySet()) {
+                this.objects(entry.getKey()).addAll(entry.getValue());
+            }
+
+            this.serverToObjs.values().removeIf(Set::isEmpty);
+
+            this.replaying = null;
+
+            try {
+                this.rewrite();
+            }
+            catch (IOException ex) {
+                LOGGER.info(String.format("failed to rewrite hints file %s: %s", this.file, ex.getMessage()));
+            }
+        }
+    }
+
+    /**
+     * Send latest values of objs to a server in batches, removing delivered objects from objs
+     *
+     * @return number of objects delivered
+     */
+    private int replay(String serverId, Set<String> objs) throws IOException, InterruptedException {
+        int replayed = 0;
+
+        while (!objs.isEmpty()) {
+            List<String> batch = new ArrayList<String>();
+            List<String> entries = new ArrayList<String>();
+
+            for (String obj : objs) {
+                if (batch.size() == BATCH_SIZE) break;
+
+                batch.add(obj);
+
+                try {
+                    Versioned value = this.owner.storage.read(obj);
+
+                    entries.add(String.format(
+                        "%s;%s;%s;%s", Protocol.escape(obj), value.timestamp, Protocol.escape(value.ownerId), Protocol.escape(value.value)
+                    ));
+                }
+                catch (IOException ex) {
+                    // Nothing stored here to hand off
+                }
+            }
+
+            if (!entries.isEmpty()) {
+                String request = String.join(",", entries);
+
+                this.byteLimiter.acquire(request.length());
+
+                String response;
+
+                try {
+                    response = this.owner.peerPool.request(
+                        serverId, Server.VOTE_TIMEOUT_MS, "SERVER", this.owner.id, "HINTS", request
+                    ).get();
+                }
+                catch (ExecutionException ex) {
+                    throw new IOException(ex.getCause());
+                }
+
+                if (!response.startsWith("ACK:")) {
+                    throw new IOException(response);
+                }
+            }
+
+            objs.removeAll(batch);
+
+            for (String obj : batch) {
+                this.owner.metrics.increment("hints.replayed");
+            }
+
+            replayed += batch.size();
+        }
+
+        return replayed;
+    }
+
+    /**
+     * Replace spill file with the hints held in memory. Called holding this
+     */
+    private void rewrite() throws IOException {
+        if (this.writer != null) {
+            this.writer.close();
+
+            this.writer = null;
+        }
+
+        if (this.serverToObjs.isEmpty()) {
+            Files.deleteIfExists(this.file.toPath());
+
+            return;
+        }
+
+        File tmpFile = new File(this.file.getParentFile(), String.format("%s.tmp", this.file.getName()));
+
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(tmpFile))) {
+            for (Map.Entry<String, Set<String>> entry : this.serverToObjs.entrySet()) {
+                for (String obj : entry.getValue()) {
+                    out.write(String.format("%s\t%s\n", entry.getKey(), obj).getBytes(StandardCharsets.UTF_8));
+                }
+            }
+        }
+
+        Files.move(tmpFile.toPath(), this.file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    public void close() throws IOException {
+        if (this.replayService != null) {
+            this.replayService.shutdownNow();
+        }
+
+        synchronized (this) {
+            if (this.writer != null) {
+                this.writer.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package app;
+
+import java.util.concurrent.atomic.*;
+import java.util.logging.*;
+
+/**
+ * Hybrid logical clock. A timestamp packs wall-clock milliseconds in the high 48 bits and a logical
+ * counter in the low 16 bits, so timestamps still compare as plain longs and stay close to wall-clock
+ * time. Every timestamp a clock returns is greater than any it returned or was updated with before, so
+ * timestamps of one node are unique and a node whose wall clock is behind catches up with the nodes it
+ * hears from instead of ordering its writes in their past.
+ *
+ * A received timestamp more than MAX_DRIFT_MS ahead of the local wall clock is not merged, so a node
+ * with a clock far in the future cannot drag every clock it reaches there too.
+ */
+public class HybridClock {
+    static int LOGICAL_BITS = 16;
+    static long MAX_DRIFT_MS = Config.getLong("MAX_DRIFT_MS", 60000);
+
+    private AtomicLong last = new AtomicLong();
+
+    private final static Logger LOGGER = Logger.getLogger(Applog.class.getName());
+
+    /**
+     * Timestamp for a local event or a message about to be sent
+     */
+    public long now() {
+        long physical = physicalNow();
+
+        return this.last.updateAndGet(l -> Math.max(l + 1, physical));
+    }
+
+    /**
+     * Merge a timestamp received from another node
+     *
+     * @return timestamp of the receive event, greater than any earlier timestamp and than received, unless
+     * received is too far ahead to be merged
+     */
+    public long update(long received) {
+        long physical = physicalNow();
+
+        if (isTooFarAhead(received)) {
+            LOGGER.warning(String.format("ignoring timestamp %s ms ahead of local clock", (received - physical) >> LOGICAL_BITS));
+
+            return this.now();
+        }
+
+        return this.last.updateAndGet(l -> Math.max(Math.max(l, received) + 1, physical));
+    }
+
+    /**
+     * @return true if received is more than MAX_DRIFT_MS ahead of the local wall clock, see update
+     */
+    public static boolean isTooFarAhead(long received) {
+        return received - physicalNow() > MAX_DRIFT_MS << LOGICAL_BITS;
+    }
+
+    private static long physicalNow() {
+        return System.currentTimeMillis() << LOGICAL_BITS;
+    }
+}
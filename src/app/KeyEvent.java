@@ -0,0 +1,99 @@
+package app;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+
+/**
+ * Per-object event used to wake threads waiting on a change to the task queue, locked task or release
+ * state of that object. State is changed first and signalled after, waiters re-check their condition
+ * under the event monitor so that no change is missed.
+ */
+public class KeyEvent {
+    private List<Waiter<?>> waiters = new ArrayList<Waiter<?>>();
+
+    /**
+     * Block until condition holds. Condition is evaluated again every time the event is signalled.
+     *
+     * @param condition state to wait for
+     */
+    public synchronized void await(BooleanSupplier condition) throws InterruptedException {
+        while (!condition.getAsBoolean()) {
+            this.wait();
+        }
+    }
+
+    /**
+     * Wait for a decision without holding a thread. Decision is evaluated now and again every time the
+     * event is signalled, until it returns a non-null result.
+     *
+     * @param decision returns result once decided, null otherwise
+     * @return future completed with the first non-null result. Cancelling it drops the waiter
+     */
+    public <T> CompletableFuture<T> when(Supplier<T> decision) {
+        Waiter<T> waiter = new Waiter<T>(decision);
+
+        synchronized (this) {
+            if (!waiter.poll()) {
+                this.waiters.add(waiter);
+
+                return waiter.future;
+            }
+        }
+
+        waiter.complete();
+
+        return waiter.future;
+    }
+
+    /**
+     * Wake all waiters to re-check their condition
+     */
+    public void signal() {
+        List<Waiter<?>> ready = new ArrayList<Waiter<?>>();
+
+        synchronized (this) {
+            this.notifyAll();
+
+            Iterator<Waiter<?>> it = this.waiters.iterator();
+
+            while (it.hasNext()) {
+                Waiter<?> waiter = it.next();
+
+                if (waiter.future.isDone()) {
+                    it.remove();
+                }
+                else if (waiter.poll()) {
+                    it.remove();
+
+                    ready.add(waiter);
+                }
+            }
+        }
+
+        // Complete outside the monitor so that callbacks do not run while holding it
+        for (Waiter<?> waiter : ready) {
+            waiter.complete();
+        }
+    }
+
+    private static class Waiter<T> {
+        Supplier<T> decision;
+        CompletableFuture<T> future = new CompletableFuture<T>();
+        T result;
+
+        Waiter(Supplier<T> decision) {
+            this.decision = decision;
+        }
+
+        boolean poll() {
+            this.result = this.decision.get();
+
+            return this.result != null;
+        }
+
+        void complete() {
+            this.future.complete(this.result);
+        }
+    }
+}
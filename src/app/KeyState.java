@@ -0,0 +1,130 @@
+package app;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Ordering state of one object on a server: queue of pending tasks, lock held during a vote round, task
+ * currently locked and event signalled when any of them change. Allocated when an object becomes active
+ * and reclaimed once no request uses it, see Server.acquireKey and Server.releaseKey.
+ */
+public class KeyState {
+    PriorityBlockingQueue<Task> taskQueue = new PriorityBlockingQueue<Task>(4, new TaskComparator());
+    Object lock = new Object();
+    volatile Task lockedTask;
+    volatile List<Task> lockedBatch = Collections.emptyList(); // Tasks committed along with lockedTask
+    KeyEvent event = new KeyEvent();
+
+    // Votes waiting for a decision, keyed by requesting server, task owner and timestamp. Several servers
+    // vote on the same task, each only answers its own
+    Map<String, CompletableFuture<String>> pendingVotes = new ConcurrentHashMap<String, CompletableFuture<String>>();
+
+    // Number of requests using this state. Only changed inside Server.objToState compute calls
+    int users = 0;
+
+    /**
+     * Add task to queue and wake waiters
+     */
+    public void enqueue(Task task) {
+        this.taskQueue.add(task);
+
+        this.event.signal();
+    }
+
+    /**
+     * Remove task from queue and wake waiters
+     */
+    public void dequeue(Task task) {
+        this.taskQueue.remove(task);
+
+        this.event.signal();
+    }
+
+    /**
+     * Remove tasks committed together from queue and wake waiters
+     */
+    public void dequeue(List<Task> tasks) {
+        this.taskQueue.removeAll(tasks);
+
+        this.event.signal();
+    }
+
+    /**
+     * Head task followed by up to max - 1 tasks queued behind it, in queue order
+     */
+    public List<Task> batch(Task head, int max) {
+        Task[] queued = this.taskQueue.toArray(new Task[0]);
+
+        Arrays.sort(queued, this.taskQueue.comparator());
+
+        List<Task> batch = new ArrayList<Task>();
+
+        batch.add(head);
+
+        for (Task task : queued) {
+            if (batch.size() >= max) break;
+
+            if (!task.equals(head)) {
+                batch.add(task);
+            }
+        }
+
+        return batch;
+    }
+
+    /**
+     * Mark task as the one currently holding the object, committing batch along with it, and wake waiters
+     */
+    public void lock(Task task, List<Task> batch) {
+        this.lockedTask = task;
+        this.lockedBatch = batch;
+
+        this.event.signal();
+    }
+
+    /**
+     * Clear locked task and wake waiters
+     */
+    public void unlock() {
+        this.lockedTask = null;
+        this.lockedBatch = Collections.emptyList();
+
+        this.event.signal();
+    }
+
+    /**
+     * Remember a vote waiting for a decision, cancelling an older vote of the same server for the same task
+     *
+     * @param serverId server that requested the vote
+     */
+    public void addVote(String serverId, String taskOwner, long ts, CompletableFuture<String> vote) {
+        String taskKey = voteKey(serverId, taskOwner, ts);
+
+        CompletableFuture<String> previous = this.pendingVotes.put(taskKey, vote);
+
+        if (previous != null) {
+            previous.complete("ACK:CANCELLED");
+        }
+
+        vote.whenComplete((response, ex) -> this.pendingVotes.remove(taskKey, vote));
+    }
+
+    /**
+     * Answer a vote a server still waits on for task with ACK:CANCELLED, once that server has moved on
+     */
+    public void cancelVote(String serverId, String taskOwner, long ts) {
+        CompletableFuture<String> vote = this.pendingVotes.remove(voteKey(serverId, taskOwner, ts));
+
+        if (vote != null) {
+            vote.complete("ACK:CANCELLED");
+        }
+    }
+
+    private static String voteKey(String serverId, String taskOwner, long ts) {
+        return serverId + ":" + taskOwner + ":" + ts;
+    }
+
+    boolean isIdle() {
+        return this.users == 0 && this.taskQueue.isEmpty() && this.lockedTask == null;
+    }
+}
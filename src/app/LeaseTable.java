@@ -0,0 +1,209 @@
+package app;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Leases on key ranges for the lease write mode. A range is an arc of the ring ending at a virtual node,
+ * see HashRing.rangeFor, so the ranges of a server are the arcs it is ring primary for. A server holding
+ * the lease on a range sequences writes to it locally and replicates them to followers instead of running
+ * vote rounds. Followers grant a range only if no live lease of another server overlaps it, which also
+ * covers servers placing keys with different rings while membership changes, and refuse votes and
+ * replicated writes on leased keys from any other server.
+ *
+ * Live leases granted by a server never overlap, nor do the leases it holds, so they are also indexed
+ * by the start of their range and the lease on a ring position is found by the nearest start below it.
+ *
+ * Ranges are named "<start>-<end>" with both ends in hex. Expiry times are System.nanoTime() values. A
+ * holder counts its lease from before it asked and a follower from when it granted, so the holder always
+ * stops relying on a lease before followers let it go.
+ */
+public class LeaseTable {
+    // Lease duration, renewed once less than half is left
+    static long LEASE_MS = Config.getLong("LEASE_MS", 3000);
+
+    /**
+     * Lease held on a range or granted to another server
+     */
+    static class Lease {
+        long[] range;
+        String holder;
+        long until;
+        Set<String> grantedBy;
+
+        Lease(long[] r, String h, long u, Set<String> granters) {
+            this.range = r;
+            this.holder = h;
+            this.until = u;
+            this.grantedBy = granters;
+        }
+
+        boolean isLive() {
+            return System.nanoTime() - this.until < 0;
+        }
+    }
+
+    // Leases this server holds and leases it granted to others, by range name
+    private Map<String, Lease> rangeToHeld = new ConcurrentHashMap<String, Lease>();
+    private Map<String, Lease> rangeToGranted = new ConcurrentHashMap<String, Lease>();
+
+    // Same leases by start of their range, see leaseAt. Changed under the lock of hold() and grant()
+    private NavigableMap<Long, Lease> startToHeld = new ConcurrentSkipListMap<Long, Lease>();
+    private NavigableMap<Long, Lease> startToGranted = new ConcurrentSkipListMap<Long, Lease>();
+
+    // Held while renewing a range, apart from the lock of grant() so that servers renewing at the same time
+    // can still grant each other
+    private Map<String, Object> rangeToRenewal = new ConcurrentHashMap<String, Object>();
+
+    /**
+     * @param rangeId range the key is in
+     * @param replicas replicas of a key in the range, including this server
+     * @return true if lease is held and was granted by enough of the replicas to form a majority
+     */
+    public boolean isHeld(String rangeId, List<String> replicas) {
+        Lease lease = this.rangeToHeld.get(rangeId);
+
+        if (lease == null || !lease.isLive()) {
+            return false;
+        }
+
+        int votes = 1; // This server
+
+        for (String serverId : replicas) {
+            if (lease.grantedBy.contains(serverId)) votes++;
+        }
+
+        return votes > replicas.size() / 2;
+    }
+
+    /**
+     * @return true if lease on range expires within half of its duration
+     */
+    public boolean needsRenewal(String rangeId) {
+        Lease lease = this.rangeToHeld.get(rangeId);
+
+        return lease == null || lease.until - System.nanoTime() < TimeUnit.MILLISECONDS.toNanos(LEASE_MS) / 2;
+    }
+
+    /**
+     * Lock to hold while renewing the lease on a range
+     */
+    public Object renewal(String rangeId) {
+        return this.rangeToRenewal.computeIfAbsent(rangeId, k -> new Object());
+    }
+
+    /**
+     * Record lease on range granted by servers, counted from askedAt, the System.nanoTime() before asking.
+     * Leases held on other ranges overlapping it are dropped, they belong to a ring this server no longer
+     * places keys with.
+     */
+    public void hold(String rangeId, long askedAt, Set<String> granters) {
+        Lease lease = new Lease(parseRange(rangeId), null, askedAt + TimeUnit.MILLISECONDS.toNanos(LEASE_MS), granters);
+
+        synchronized (this.startToHeld) {
+            Iterator<Map.Entry<String, Lease>> it = this.rangeToHeld.entrySet().iterator();
+
+            while (it.hasNext()) {
+                Map.Entry<String, Lease> held = it.next();
+
+                if (!held.getKey().equals(rangeId) && HashRing.overlaps(lease.range, held.getValue().range)) {
+                    it.remove();
+
+                    this.startToHeld.remove(held.getValue().range[0], held.getValue());
+                }
+            }
+
+            this.rangeToHeld.put(rangeId, lease);
+            this.startToHeld.put(lease.range[0], lease);
+        }
+    }
+
+    /**
+     * Grant range to holder unless a live lease on another range overlaps it, or one of another server on
+     * the same range. Expired grants are dropped. A holder moving to an overlapping range after a ring
+     * change gets it once its lease on the old range expired.
+     *
+     * @return true if granted
+     */
+    public synchronized boolean grant(String rangeId, String holder) {
+        long[] range = parseRange(rangeId);
+
+        Iterator<Lease> it = this.rangeToGranted.values().iterator();
+
+        while (it.hasNext()) {
+            Lease lease = it.next();
+
+            if (!lease.isLive()) {
+                it.remove();
+
+                this.startToGranted.remove(lease.range[0], lease);
+            }
+        }
+
+        for (Map.Entry<String, Lease> entry : this.rangeToGranted.entrySet()) {
+            Lease lease = entry.getValue();
+
+            boolean renewal = entry.getKey().equals(rangeId) && lease.holder.equals(holder);
+
+            if (!renewal && HashRing.overlaps(range, lease.range)) {
+                return false;
+            }
+        }
+
+        Lease lease = new Lease(range, holder, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(LEASE_MS), null);
+
+        this.rangeToGranted.put(rangeId, lease);
+        this.startToGranted.put(range[0], lease);
+
+        return true;
+    }
+
+    /**
+     * Server holding a live lease granted here on a ring position, null if there is none
+     */
+    public String holderAt(long position) {
+        Lease lease = leaseAt(this.startToGranted, position);
+
+        return lease != null && lease.isLive() ? lease.holder : null;
+    }
+
+    /**
+     * @return true if this server holds a live lease on a ring position
+     */
+    public boolean holdsAt(long position) {
+        Lease lease = leaseAt(this.startToHeld, position);
+
+        return lease != null && lease.isLive();
+    }
+
+    /**
+     * Lease of non-overlapping leases indexed by range start whose range holds a ring position, live or not
+     */
+    private static Lease leaseAt(NavigableMap<Long, Lease> startToLease, long position) {
+        // Ranges exclude their start, see HashRing.inRange
+        Map.Entry<Long, Lease> below = startToLease.lowerEntry(position);
+
+        if (below != null && HashRing.inRange(below.getValue().range, position)) {
+            return below.getValue();
+        }
+
+        // Otherwise only the range starting last can hold it, wrapping around the end of the ring
+        Map.Entry<Long, Lease> last = startToLease.lastEntry();
+
+        if (last != null && HashRing.inRange(last.getValue().range, position)) {
+            return last.getValue();
+        }
+
+        return null;
+    }
+
+    public static String rangeId(long[] range) {
+        return String.format("%s-%s", Long.toHexString(range[0]), Long.toHexString(range[1]));
+    }
+
+    static long[] parseRange(String rangeId) {
+        String[] ends = rangeId.split("-");
+
+        return new long[] { Long.parseUnsignedLong(ends[0], 16), Long.parseUnsignedLong(ends[1], 16) };
+    }
+}
@@ -0,0 +1,36 @@
+package app;
+
+import java.security.InvalidParameterException;
+
+/**
+ * Ask a running server to leave the cluster, handing off its ranges to the remaining servers. The server
+ * keeps running once it has left and can then be stopped.
+ */
+public class Leave {
+    /**
+     * @param args[0] ip of server
+     * @param args[1] port of server
+     * @param args[2] identifier of server, which must match for the server to leave
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 3) {
+            throw new InvalidParameterException("required parameters <ip> <port> <server-id>");
+        }
+
+        Channel chnl = new Channel(args[0], Integer.parseInt(args[1]));
+
+        chnl.sendRequest(0, "CLIENT", "admin", "LEAVE", args[2]);
+
+        String response = chnl.recvResponse();
+
+        chnl.close();
+
+        if (!response.startsWith("ACK:")) {
+            System.err.println(response);
+
+            System.exit(1);
+        }
+
+        System.out.println(response.substring(4));
+    }
+}
@@ -0,0 +1,428 @@
+package app;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.logging.*;
+
+import org.HdrHistogram.*;
+
+/**
+ * Drives a client against the cluster from many threads and reports latency percentiles, throughput
+ * and abort rates per operation type.
+ *
+ * Closed loop by default, every thread issues its next request once the previous one completes. With a
+ * target rate the load is open loop: a pacing thread hands requests to the threads at fixed intervals
+ * whether earlier ones completed or not, and latency is measured from the intended send time, so time
+ * spent waiting for a free thread behind slow requests is counted.
+ */
+public class LoadGenerator {
+    Client client;
+    String[] keys;
+
+    int threads = Config.getInt("THREADS", 1);
+    double readRatio = Double.parseDouble(Config.get("READ_RATIO", "0.5"));
+    String keyDistribution = Config.get("KEY_DIST", "uniform");
+    double zipfExponent = Double.parseDouble(Config.get("ZIPF_S", "0.99"));
+    double targetRate = Double.parseDouble(Config.get("RATE", "0")); // Requests per second over all threads, 0 for closed loop
+    long durationMs = Config.getLong("DURATION_S", 0) * 1000;
+    long reportIntervalMs = Config.getLong("REPORT_INTERVAL_S", 5) * 1000;
+    int batchSize = Config.getInt("BATCH_SIZE", 1);
+    Client.Consistency readConsistency = Client.Consistency.valueOf(Config.get("READ_CONSISTENCY", "ONE")); // Batches read ONE
+
+    // Request limit over all threads, 0 to run for duration only
+    long maxRequests;
+
+    private AtomicLong issued = new AtomicLong();
+    private AtomicLong writeCount = new AtomicLong();
+
+    Map<String, Operation> nameToOperation = new LinkedHashMap<String, Operation>();
+
+    // Latencies are recorded in microseconds, up to one minute
+    static long MAX_LATENCY_US = 60_000_000;
+
+    private final static Logger LOGGER = Logger.getLogger(Applog.class.getName());
+
+    /**
+     * Counters and latency histogram of one operation type
+     */
+    static class Operation {
+        String name;
+        Recorder recorder = new Recorder(MAX_LATENCY_US, 3);
+        Histogram total = new Histogram(MAX_LATENCY_US, 3);
+        LongAdder attempts = new LongAdder();
+        LongAdder successes = new LongAdder();
+        LongAdder aborts = new LongAdder();
+        LongAdder failures = new LongAdder();
+
+        Operation(String name) {
+            this.name = name;
+        }
+
+        void record(long startNanos, long endNanos) {
+            this.recorder.recordValue(Math.min(MAX_LATENCY_US, Math.max(1, (endNanos - startNanos) / 1000)));
+        }
+
+        /**
+         * Histogram of latencies recorded since last call, also added to the run total
+         */
+        synchronized Histogram interval() {
+            Histogram interval = this.recorder.getIntervalHistogram();
+
+            this.total.add(interval);
+
+            return interval;
+        }
+
+        /**
+         * Histogram of all latencies recorded in the run
+         */
+        synchronized Histogram finish() {
+            this.interval();
+
+            return this.total;
+        }
+    }
+
+    public LoadGenerator(Client cl, String[] keyList, long limit) {
+        this.client = cl;
+        this.keys = keyList;
+        this.maxRequests = limit;
+
+        this.nameToOperation.put("read", new Operation("read"));
+        this.nameToOperation.put("write", new Operation("write"));
+    }
+
+    /**
+     * Run until the request limit or duration is reached, logging interval and final statistics.
+     */
+    public void run() throws InterruptedException {
+        if (this.maxRequests <= 0 && this.durationMs <= 0) {
+            throw new IllegalArgumentException("either a request count or DURATION_S is required");
+        }
+
+        LOGGER.info(String.format(
+            "client %s running %s threads, read ratio %s at %s, %s keys %s, %s",
+            this.client.id,
+            this.threads,
+            this.readRatio,
+            this.readConsistency,
+            this.keys.length,
+            this.keyDistribution,
+            this.targetRate > 0 ? String.format("open loop at %s req/s", this.targetRate) : "closed loop"
+        ));
+
+        // Zeta sums over every key, computed once for all threads
+        ZipfianGenerator zipf = this.keyDistribution.equals("zipf") ? new ZipfianGenerator(this.keys.length, this.zipfExponent) : null;
+
+        ExecutorService service = Executors.newFixedThreadPool(this.threads);
+
+        long start = System.nanoTime();
+        long deadline = this.durationMs > 0 ? start + this.durationMs * 1_000_000 : Long.MAX_VALUE;
+
+        List<Future<?>> workers = new ArrayList<Future<?>>();
+
+        if (this.targetRate > 0) {
+            ExecutorService pacer = Executors.newSingleThreadExecutor();
+
+            // Shuts service down once every request is handed over
+            workers.add(pacer.submit(() -> {
+                this.pace(service, zipf, start, deadline);
+
+                return null;
+            }));
+
+            pacer.shutdown();
+        }
+        else {
+            for (int i = 0; i < this.threads; i++) {
+                workers.add(service.submit(() -> {
+                    this.work(zipf, deadline);
+
+                    return null;
+                }));
+            }
+
+            service.shutdown();
+        }
+
+        // Report progress while workers run
+        long lastReport = start;
+
+        while (!service.awaitTermination(this.reportIntervalMs, TimeUnit.MILLISECONDS)) {
+            long now = System.nanoTime();
+
+            this.report(String.format("interval %.0fs", (now - start) / 1e9), now - lastReport, true);
+
+            lastReport = now;
+        }
+
+        for (Future<?> worker : workers) {
+            try {
+                worker.get();
+            }
+            catch (ExecutionException ex) {
+                LOGGER.log(Level.SEVERE, String.format("load worker failed: %s", ex.getCause().getMessage()), ex.getCause());
+            }
+        }
+
+        this.report("total", System.nanoTime() - start, false);
+    }
+
+    /**
+     * Closed loop, issue the next request once the previous one completed
+     */
+    private void work(ZipfianGenerator zipf, long deadline) throws InterruptedException {
+        while (true) {
+            if (this.maxRequests > 0 && this.issued.incrementAndGet() > this.maxRequests) break;
+
+            long now = System.nanoTime();
+
+            if (now >= deadline) break;
+
+            this.issue(zipf, now);
+        }
+    }
+
+    /**
+     * Open loop, hand a request to the senders every interval of the target rate without waiting for it
+     */
+    private void pace(ExecutorService senders, ZipfianGenerator zipf, long start, long deadline) throws InterruptedException {
+        long intervalNanos = Math.max(1, (long) (1e9 / this.targetRate));
+        long scheduled = start;
+
+        try {
+            while (true) {
+                if (this.maxRequests > 0 && this.issued.incrementAndGet() > this.maxRequests) break;
+
+                long wait = scheduled - System.nanoTime();
+
+                if (wait > 0) {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                }
+
+                if (scheduled >= deadline) break;
+
+                // Latency counts from when the request was due, not when a sender got to it
+                long intended = scheduled;
+
+                senders.execute(() -> {
+                    try {
+                        this.issue(zipf, intended);
+                    }
+                    catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                    }
+                });
+
+                scheduled += intervalNanos;
+            }
+        }
+        finally {
+            senders.shutdown();
+        }
+    }
+
+    /**
+     * Read or write a batch of random keys, recording latency from opStart
+     */
+    private void issue(ZipfianGenerator zipf, long opStart) throws InterruptedException {
+        Random rand = ThreadLocalRandom.current();
+
+        List<String> keyBatch = new ArrayList<String>();
+
+        for (int i = 0; i < this.batchSize; i++) {
+            keyBatch.add(this.keys[zipf != null ? zipf.next(rand) : rand.nextInt(this.keys.length)]);
+        }
+
+        if (rand.nextDouble() < this.readRatio) {
+            this.read(keyBatch, opStart);
+        }
+        else {
+            this.write(keyBatch, opStart);
+        }
+    }
+
+    private void read(List<String> keyBatch, long opStart) throws InterruptedException {
+        Operation op = this.nameToOperation.get("read");
+
+        op.attempts.increment();
+
+        try {
+            if (this.batchSize > 1) {
+                Set<String> keySet = new LinkedHashSet<String>(keyBatch);
+
+                if (this.client.multiRead(new ArrayList<String>(keySet)).size() < keySet.size()) {
+                    throw new IOException("not every object in batch was read");
+                }
+            }
+            else {
+                this.client.read(keyBatch.get(0), this.readConsistency);
+            }
+
+            op.successes.increment();
+        }
+        catch (IOException ex) {
+            LOGGER.info(String.format("read of %s failed: %s", keyBatch, ex.getMessage()));
+
+            op.failures.increment();
+        }
+        finally {
+            op.record(opStart, System.nanoTime());
+        }
+    }
+
+    private void write(List<String> keyBatch, long opStart) throws InterruptedException {
+        Operation op = this.nameToOperation.get("write");
+
+        op.attempts.increment();
+
+        long ts = this.client.nextTimestamp();
+
+        try {
+            boolean written;
+
+            if (this.batchSize > 1) {
+                Map<String, String> keyToValue = new HashMap<String, String>();
+
+                for (String key : keyBatch) {
+                    keyToValue.put(key, String.format("client %s write count %s", this.client.id, this.writeCount.getAndIncrement()));
+                }
+
+                written = this.client.multiWrite(keyToValue, ts).size() == keyToValue.size();
+            }
+            else {
+                String value = String.format("client %s write count %s", this.client.id, this.writeCount.getAndIncrement());
+
+                written = this.client.write(keyBatch.get(0), value, ts);
+            }
+
+            if (written) {
+                op.successes.increment();
+            }
+            else {
+                op.aborts.increment();
+            }
+        }
+        catch (IOException ex) {
+            LOGGER.info(String.format("write of %s failed: %s", keyBatch, ex.getMessage()));
+
+            op.failures.increment();
+        }
+        finally {
+            op.record(opStart, System.nanoTime());
+        }
+    }
+
+    private void report(String label, long elapsedNanos, boolean interval) {
+        for (Operation op : this.nameToOperation.values()) {
+            Histogram histogram = interval ? op.interval() : op.finish();
+
+            if (histogram.getTotalCount() == 0) continue;
+
+            LOGGER.info(String.format(
+                "%s %s: %.1f req/s, latency us p50 %s p99 %s p999 %s max %s",
+                label,
+                op.name,
+                histogram.getTotalCount() / (elapsedNanos / 1e9),
+                histogram.getValueAtPercentile(50),
+                histogram.getValueAtPercentile(99),
+                histogram.getValueAtPercentile(99.9),
+                histogram.getMaxValue()
+            ));
+        }
+
+        if (interval) return;
+
+        Operation read = this.nameToOperation.get("read");
+        Operation write = this.nameToOperation.get("write");
+
+        LOGGER.info(String.format(
+            "Write attempts: %s, Success: %s, Aborted: %s, Failed: %s, abort rate %.4f",
+            write.attempts.sum(),
+            write.successes.sum(),
+            write.aborts.sum(),
+            write.failures.sum(),
+            write.attempts.sum() == 0 ? 0.0 : (double) write.aborts.sum() / write.attempts.sum()
+        ));
+        LOGGER.info(String.format(
+            "Read attempts: %s, Success: %s, Failed: %s",
+            read.attempts.sum(),
+            read.successes.sum(),
+            read.failures.sum()
+        ));
+    }
+}
+
+/**
+ * Zipfian distributed ranks 0..n-1, rank 0 the most popular. For exponents below 1 uses the
+ * rejection-free method of Gray et al. "Quickly generating billion-record synthetic databases", as YCSB
+ * does. Its formula divides by 1 - s, so from 1 up ranks are drawn from the cumulative distribution
+ * instead, by binary search.
+ *
+ * Immutable once built, threads share one and pass their own Random.
+ */
+class ZipfianGenerator {
+    int items;
+    double theta, alpha, zetan, eta;
+
+    // Probability of ranks up to each index, only for exponents from 1 up
+    double[] cumulative;
+
+    ZipfianGenerator(int n, double s) {
+        if (n < 1 || s < 0 || Double.isNaN(s)) {
+            throw new IllegalArgumentException(String.format("zipf needs at least one item and an exponent of 0 or more, got %s items and %s", n, s));
+        }
+
+        this.items = n;
+        this.theta = s;
+
+        this.zetan = zeta(n, s);
+
+        if (s >= 1) {
+            this.cumulative = new double[n];
+
+            double sum = 0;
+
+            for (int i = 0; i < n; i++) {
+                sum += 1 / Math.pow(i + 1, s);
+
+                this.cumulative[i] = sum / this.zetan;
+            }
+        }
+        else {
+            this.alpha = 1.0 / (1.0 - s);
+            this.eta = n < 2 ? 0 : (1 - Math.pow(2.0 / n, 1 - s)) / (1 - zeta(2, s) / this.zetan);
+        }
+    }
+
+    static double zeta(long n, double s) {
+        double sum = 0;
+
+        for (long i = 1; i <= n; i++) {
+            sum += 1 / Math.pow(i, s);
+        }
+
+        return sum;
+    }
+
+    int next(Random rand) {
+        double u = rand.nextDouble();
+
+        if (this.cumulative != null) {
+            int index = Arrays.binarySearch(this.cumulative, u);
+
+            // Not found gives -(insertion point) - 1, the first rank whose cumulative probability exceeds u
+            return Math.min(this.items - 1, index >= 0 ? index : -index - 1);
+        }
+
+        double uz = u * this.zetan;
+
+        if (uz < 1.0) return 0;
+
+        if (uz < 1.0 + Math.pow(0.5, this.theta)) return Math.min(1, this.items - 1);
+
+        return Math.min(this.items - 1, (int) (this.items * Math.pow(this.eta * u - this.eta + 1, this.alpha)));
+    }
+}
@@ -0,0 +1,675 @@
+package app;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.*;
+
+/**
+ * Default storage engine. Every object is an append-only log file under the server directory. An
+ * in-memory index holds the version of the latest value of each object, rebuilt from the last line of
+ * every object file at startup, read through a memory mapping of the file tail. Values themselves are
+ * kept in a ValueCache of READ_CACHE_BYTES, a read missing it reads the tail of the object file. Appends
+ * update the cache once committed, so it never serves a value older than the index.
+ *
+ * Lines carry the version of their value, see Versioned.encode. Values older than the last one appended
+ * are ignored, so the last line of an object file is always its newest version.
+ *
+ * Writes are committed to the server write-ahead log before being applied, object files themselves are
+ * not synced. At startup a last line torn by a crash is cut off every object file, the log is replayed
+ * over the object files to recover writes lost in a crash, and truncated once the files it names are
+ * synced.
+ *
+ * A background thread keeps both bounded: object files are compacted down to their last lines and
+ * swapped in with an atomic rename, and once the log grows large it is checkpointed, syncing the object
+ * files written since the previous checkpoint and truncating the log.
+ */
+public class LogStorageEngine implements StorageEngine {
+    File dir;
+    WriteAheadLog wal;
+    Map<String, Versioned> objToVersion = new ConcurrentHashMap<String, Versioned>();
+    ValueCache cache = new ValueCache(CACHE_BYTES);
+
+    static long CACHE_BYTES = Config.getLong("READ_CACHE_BYTES", 64L << 20);
+
+    // Newest version appended to each object file, possibly not yet durable. Guarded by objToWriter
+    private Map<String, Versioned> objToAppended = new HashMap<String, Versioned>();
+
+    // Recently written object files are kept open for appending instead of being reopened on every write.
+    // Least recently written ones are closed beyond MAX_OPEN_WRITERS so large keyspaces do not run out of
+    // file descriptors
+    private Map<String, OutputStream> objToWriter = new LinkedHashMap<String, OutputStream>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, OutputStream> eldest) {
+            if (this.size() <= MAX_OPEN_WRITERS) {
+                return false;
+            }
+
+            try {
+                eldest.getValue().close();
+            }
+            catch (IOException ex) {
+                LOGGER.info(String.format("failed to close object file %s: %s", eldest.getKey(), ex.getMessage()));
+            }
+
+            return true;
+        }
+    };
+
+    static int MAX_OPEN_WRITERS = Config.getInt("MAX_OPEN_FILES", 256);
+
+    // Every COMPACT_INTERVAL_MS (0 disables), object files above COMPACT_MIN_BYTES are rewritten to their
+    // last COMPACT_KEEP_LINES values and the log is checkpointed if above WAL_CHECKPOINT_BYTES
+    static long COMPACT_INTERVAL_MS = Config.getLong("COMPACT_INTERVAL_MS", 60000);
+    static long COMPACT_MIN_BYTES = Config.getLong("COMPACT_MIN_BYTES", 1 << 20);
+    static int COMPACT_KEEP_LINES = Config.getInt("COMPACT_KEEP_LINES", 1);
+    static long WAL_CHECKPOINT_BYTES = Config.getLong("WAL_CHECKPOINT_BYTES", 64L << 20);
+
+    // Objects appended to since the last checkpoint. Guarded by objToWriter
+    private Set<String> dirtyObjs = new HashSet<String>();
+
+    // Appends, file reads and compaction swaps of an object hold its lock, then objToWriter while
+    // appending only. Reading or swapping one object file does not hold up appends to the others
+    private Map<String, Object> objToLock = new ConcurrentHashMap<String, Object>();
+
+    private ScheduledExecutorService compactService;
+
+    private final static Logger LOGGER = Logger.getLogger(Applog.class.getName());
+
+    /**
+     * @param dirPath directory holding object files, created if missing
+     * @param syncMode when write-ahead log commits are forced to disk
+     * @param groupWindowMs group commit window of write-ahead log
+     */
+    public LogStorageEngine(String dirPath, WriteAheadLog.Sync syncMode, long groupWindowMs) throws IOException {
+        this.dir = new File(dirPath);
+
+        if (!this.dir.isDirectory() && !this.dir.mkdirs()) {
+            throw new IOException(String.format("unable to create storage directory %s", dirPath));
+        }
+
+        Set<String> torn = this.rebuildIndex();
+
+        this.wal = new WriteAheadLog(new File(this.dir, ".wal"), syncMode, groupWindowMs);
+
+        this.recover(torn);
+
+        if (COMPACT_INTERVAL_MS > 0) {
+            this.compactService = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, String.format("compactor-%s", this.dir.getName()));
+                t.setDaemon(true);
+                return t;
+            });
+
+            this.compactService.scheduleWithFixedDelay(this::maintain, COMPACT_INTERVAL_MS, COMPACT_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * @return objects whose file had a torn last line cut off
+     */
+    private Set<String> rebuildIndex() throws IOException {
+        // Names starting with a dot are reserved for engine files such as the log
+        File[] files = this.dir.listFiles(f -> f.isFile() && !f.getName().startsWith("."));
+
+        Set<String> torn = new HashSet<String>();
+
+        for (File file : files) {
+            // The write of a torn line never completed, it is appended again if the log has it
+            if (truncateTorn(file)) {
+                torn.add(file.getName());
+
+                if (file.length() == 0) {
+                    Files.delete(file.toPath());
+
+                    continue;
+                }
+            }
+
+            this.objToVersion.put(file.getName(), Versioned.decode(getLastLineMapped(file)).version());
+        }
+
+        this.objToAppended.putAll(this.objToVersion);
+
+        if (!torn.isEmpty()) {
+            LOGGER.info(String.format("cut torn last lines off %s objects of %s", torn.size(), this.dir));
+        }
+
+        LOGGER.info(String.format("loaded %s objects from %s", this.objToVersion.size(), this.dir));
+
+        return torn;
+    }
+
+    /**
+     * Cut a last line without a line break off file
+     *
+     * @return true if file was truncated
+     */
+    static boolean truncateTorn(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long size = channel.size();
+
+            if (size == 0) {
+                return false;
+            }
+
+            ByteBuffer last = ByteBuffer.allocate(1);
+
+            channel.read(last, size - 1);
+
+            if (last.get(0) == '\n') {
+                return false;
+            }
+
+            // Lines before the torn one, as if a line break ended the file
+            channel.truncate(tailStart(channel, size + 1, 1));
+
+            return true;
+        }
+    }
+
+    /**
+     * Apply writes found in the log but missing from object files, make the object files the log names
+     * durable and empty the log. Other object files were synced before the log was last truncated.
+     *
+     * @param torn objects whose file had a torn last line cut off, synced as well
+     */
+    private void recover(Set<String> torn) throws IOException {
+        Map<String, String> objToLogged = new HashMap<String, String>();
+
+        this.wal.replay(objToLogged::put);
+
+        int recovered = 0;
+
+        for (Map.Entry<String, String> entry : objToLogged.entrySet()) {
+            if (this.append(entry.getKey(), Collections.singletonList(Versioned.decode(entry.getValue())), false) > 0) {
+                recovered++;
+            }
+        }
+
+        // Log can only be dropped once everything it covers is on disk. Lines appended before the crash
+        // may still be only in the page cache, so logged objects are synced even if nothing was replayed
+        Set<String> touched = new HashSet<String>(torn);
+
+        touched.addAll(objToLogged.keySet());
+
+        this.force(touched);
+
+        if (objToLogged.isEmpty()) {
+            return;
+        }
+
+        this.wal.truncate(0);
+
+        LOGGER.info(String.format("recovered %s objects from log of %s", recovered, this.dir));
+    }
+
+    @Override
+    public Versioned read(String obj) throws IOException {
+        Versioned value = this.cache.get(obj);
+
+        if (value != null) {
+            return value;
+        }
+
+        this.version(obj);
+
+        value = this.load(obj);
+
+        this.cache.put(obj, value);
+
+        // A commit may have cached a newer value while this one was loaded and have been evicted since
+        if (this.objToVersion.get(obj).isNewerThan(value)) {
+            this.cache.remove(obj, value);
+        }
+
+        return value;
+    }
+
+    @Override
+    public Versioned version(String obj) throws IOException {
+        Versioned version = this.objToVersion.get(obj);
+
+        if (version == null) {
+            throw new FileNotFoundException(String.format("%s/%s", this.dir, obj));
+        }
+
+        return version;
+    }
+
+    /**
+     * Read the latest value of an object from its file. Appends to the object and its compaction wait for
+     * the read, so the last line is whole.
+     */
+    private Versioned load(String obj) throws IOException {
+        String line;
+        long seq;
+
+        synchronized (this.lockOf(obj)) {
+            line = getLastLineRead(new File(this.dir, obj));
+
+            // Covers the record of every line in the file
+            seq = this.wal.lastSeq();
+        }
+
+        Versioned value = Versioned.decode(line);
+
+        // Last line may be appended but not committed yet, wait for it like its writer does
+        if (value.isNewerThan(this.objToVersion.get(obj))) {
+            this.wal.sync(seq);
+        }
+
+        return value;
+    }
+
+    @Override
+    public Set<String> objects() {
+        return this.objToVersion.keySet();
+    }
+
+    @Override
+    public String stats() {
+        return this.cache.stats();
+    }
+
+    @Override
+    public boolean append(String obj, Versioned value) throws IOException {
+        return this.append(obj, Collections.singletonList(value), true) > 0;
+    }
+
+    @Override
+    public int appendAll(String obj, List<Versioned> values) throws IOException {
+        return this.append(obj, values, true);
+    }
+
+    private int append(String obj, List<Versioned> values, boolean logged) throws IOException {
+        StringBuilder lines = new StringBuilder();
+
+        Versioned latest;
+        long seq = 0;
+        int appended = 0;
+
+        synchronized (this.lockOf(obj)) {
+            synchronized (this.objToWriter) {
+                latest = this.objToAppended.get(obj);
+
+                for (Versioned value : values) {
+                    if (!value.isNewerThan(latest)) continue;
+
+                    String encoded = value.encode();
+
+                    // Logged under the lock so that replay applies versions of an object in the same order
+                    if (logged) {
+                        seq = this.wal.append(obj, encoded);
+
+                        this.dirtyObjs.add(obj);
+                    }
+
+                    lines.append(encoded).append('\n');
+
+                    latest = value;
+                    appended++;
+                }
+
+                if (appended == 0) {
+                    return 0;
+                }
+
+                OutputStream writer = this.objToWriter.get(obj);
+
+                if (writer == null) {
+                    writer = new FileOutputStream(new File(this.dir, obj), true);
+
+                    this.objToWriter.put(obj, writer);
+                }
+
+                writer.write(lines.toString().getBytes(StandardCharsets.UTF_8));
+
+                this.objToAppended.put(obj, latest.version());
+            }
+        }
+
+        // Values become visible to readers only once durable, one sync covers every record logged above.
+        // Syncs may finish out of version order
+        if (logged) {
+            this.wal.sync(seq);
+        }
+
+        this.objToVersion.merge(obj, latest.version(), (current, version) -> version.isNewerThan(current) ? version : current);
+
+        // Index first, see read()
+        this.cache.put(obj, latest);
+
+        return appended;
+    }
+
+    private void maintain() {
+        try {
+            this.compact();
+
+            if (this.wal.size() > WAL_CHECKPOINT_BYTES) {
+                this.checkpoint();
+            }
+        }
+        catch (IOException ex) {
+            LOGGER.log(Level.WARNING, String.format("compaction of %s failed: %s", this.dir, ex.getMessage()), ex);
+        }
+    }
+
+    /**
+     * Rewrite object files larger than COMPACT_MIN_BYTES down to their last COMPACT_KEEP_LINES lines.
+     * Cached reads never wait, appends to and file reads of the object wait only while lines appended
+     * during the copy are added and the compacted file is swapped in.
+     *
+     * @return bytes reclaimed
+     */
+    public long compact() throws IOException {
+        File[] files = this.dir.listFiles(f -> f.isFile() && !f.getName().startsWith(".") && f.length() > COMPACT_MIN_BYTES);
+
+        long reclaimed = 0;
+
+        for (File file : files) {
+            reclaimed += this.compact(file);
+        }
+
+        if (files.length > 0) {
+            LOGGER.info(String.format("compacted %s objects of %s, reclaimed %s bytes", files.length, this.dir, reclaimed));
+        }
+
+        return reclaimed;
+    }
+
+    private long compact(File file) throws IOException {
+        String obj = file.getName();
+
+        File compactFile = new File(this.dir, String.format(".%s.compact", obj));
+
+        try (
+            FileChannel source = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            FileChannel target = FileChannel.open(
+                compactFile.toPath(),
+                StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE
+            )
+        ) {
+            // Copy latest lines without holding the lock
+            long copied = source.size();
+
+            transfer(source, tailStart(source, copied, COMPACT_KEEP_LINES), copied, target);
+
+            target.force(false);
+
+            synchronized (this.lockOf(obj)) {
+                long size = source.size();
+
+                // Lines appended since the copy
+                transfer(source, copied, size, target);
+
+                target.force(false);
+
+                // Appends after the swap reopen the object file
+                OutputStream writer;
+
+                synchronized (this.objToWriter) {
+                    writer = this.objToWriter.remove(obj);
+                }
+
+                if (writer != null) {
+                    writer.close();
+                }
+
+                Files.move(compactFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+
+                // Make the rename itself durable
+                try (FileChannel dirChannel = FileChannel.open(this.dir.toPath(), StandardOpenOption.READ)) {
+                    dirChannel.force(true);
+                }
+
+                return size - target.size();
+            }
+        }
+    }
+
+    /**
+     * Sync object files written since the last checkpoint and empty the log, whose records they now
+     * hold durably. Appends wait only while the files appended to during the sync are synced too.
+     */
+    public void checkpoint() throws IOException {
+        Set<String> dirty;
+
+        synchronized (this.objToWriter) {
+            dirty = new HashSet<String>(this.dirtyObjs);
+
+            this.dirtyObjs.clear();
+        }
+
+        try {
+            this.force(dirty);
+        }
+        catch (IOException ex) {
+            synchronized (this.objToWriter) {
+                this.dirtyObjs.addAll(dirty);
+            }
+
+            throw ex;
+        }
+
+        synchronized (this.objToWriter) {
+            // Log also holds records appended since, it is emptied once their files are synced as well
+            this.force(this.dirtyObjs);
+
+            LOGGER.info(String.format("checkpointed %s objects of %s, dropping %s bytes of log", dirty.size() + this.dirtyObjs.size(), this.dir, this.wal.size()));
+
+            this.dirtyObjs.clear();
+
+            this.wal.truncate(0);
+        }
+    }
+
+    /**
+     * Sync object files, skipping objects without a file
+     */
+    private void force(Collection<String> objs) throws IOException {
+        for (String obj : objs) {
+            File file = new File(this.dir, obj);
+
+            if (!file.exists()) continue;
+
+            try (FileChannel objChannel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+                objChannel.force(true);
+            }
+        }
+    }
+
+    private Object lockOf(String obj) {
+        return this.objToLock.computeIfAbsent(obj, k -> new Object());
+    }
+
+    private static void transfer(FileChannel source, long start, long end, FileChannel target) throws IOException {
+        for (long position = start; position < end; ) {
+            position += source.transferTo(position, end - position, target);
+        }
+    }
+
+    /**
+     * Offset of the first of the last count lines of a file that ends at end with a newline
+     */
+    static long tailStart(FileChannel channel, long end, int count) throws IOException {
+        ByteBuffer block = ByteBuffer.allocate(8192);
+
+        long position = end - 1; // Skip newline ending the last line
+
+        int found = 0;
+
+        while (position > 0) {
+            int length = (int) Math.min(block.capacity(), position);
+
+            block.clear().limit(length);
+
+            channel.read(block, position - length);
+
+            for (int i = length - 1; i >= 0; i--) {
+                if (block.get(i) == '\n' && ++found == count) {
+                    return position - length + i + 1;
+                }
+            }
+
+            position -= length;
+        }
+
+        return 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (this.compactService != null) {
+            this.compactService.shutdown();
+        }
+
+        synchronized (this.objToWriter) {
+            for (OutputStream writer : this.objToWriter.values()) {
+                writer.close();
+            }
+
+            this.objToWriter.clear();
+        }
+
+        this.wal.close();
+    }
+
+    // Tail mapped to find the last line, doubled until it holds a line break
+    static int MAP_WINDOW = 64 * 1024;
+
+    // Tail read to find the last line, doubled until it holds a line break
+    static int READ_WINDOW = 8 * 1024;
+
+    /**
+     * Read the last line of file through a memory mapping of its tail, without its line ending. Each call
+     * takes a map area until the mapping is collected, so this is for the startup scan only.
+     */
+    public static String getLastLineMapped(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            return StandardCharsets.UTF_8.decode(lastLine(channel)).toString();
+        }
+    }
+
+    /**
+     * Slice of a mapping of the file open in channel holding its last line, without its line ending.
+     * The slice shares the mapping, nothing is copied.
+     */
+    static ByteBuffer lastLine(FileChannel channel) throws IOException {
+        long size = channel.size();
+
+        for (long window = MAP_WINDOW; ; window *= 2) {
+            // A single mapping is limited to 2 GB
+            long start = Math.max(0, size - Math.min(window, Integer.MAX_VALUE));
+
+            MappedByteBuffer tail = channel.map(FileChannel.MapMode.READ_ONLY, start, size - start);
+
+            ByteBuffer line = lastLineIn(tail, start == 0 || window >= Integer.MAX_VALUE);
+
+            if (line != null) {
+                return line;
+            }
+        }
+    }
+
+    /**
+     * Read the last line of file with positional reads of its tail into the heap, without its line ending.
+     * Used on read cache misses.
+     */
+    public static String getLastLineRead(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+
+            for (long window = READ_WINDOW; ; window *= 2) {
+                long start = Math.max(0, size - Math.min(window, Integer.MAX_VALUE - 8));
+
+                ByteBuffer tail = ByteBuffer.allocate((int) (size - start));
+
+                while (tail.hasRemaining() && channel.read(tail, start + tail.position()) >= 0);
+
+                tail.flip();
+
+                ByteBuffer line = lastLineIn(tail, start == 0 || window >= Integer.MAX_VALUE);
+
+                if (line != null) {
+                    return StandardCharsets.UTF_8.decode(line).toString();
+                }
+            }
+        }
+    }
+
+    /**
+     * Slice of tail holding its last line, without its line ending
+     *
+     * @param whole true if tail starts at a line start, such as the file start
+     * @return null if tail holds no line break before the last line and is not whole
+     */
+    private static ByteBuffer lastLineIn(ByteBuffer tail, boolean whole) {
+        int end = tail.limit();
+
+        if (end > 0 && tail.get(end - 1) == '\n') end--;
+        if (end > 0 && tail.get(end - 1) == '\r') end--;
+
+        for (int i = end - 1; i >= 0; i--) {
+            if (tail.get(i) == '\n') {
+                return tail.slice(i + 1, end - i - 1);
+            }
+        }
+
+        return whole ? tail.slice(0, end) : null;
+    }
+
+    // Read the last line of file. Taken from https://stackoverflow.com/questions/686231/quickly-read-the-last-line-of-a-text-file
+    public static String getLastLine(File file) throws FileNotFoundException, IOException {
+        RandomAccessFile fileHandler = null;
+
+        try {
+            fileHandler = new RandomAccessFile(file, "r");
+
+            long fileLength = fileHandler.length() - 1;
+
+            StringBuilder sb = new StringBuilder();
+
+            for(long filePointer = fileLength; filePointer != -1; filePointer--){
+                fileHandler.seek( filePointer );
+
+                int readByte = fileHandler.readByte();
+
+                if( readByte == 0xA ) {
+                    if( filePointer == fileLength ) {
+                        continue;
+                    }
+                    break;
+
+                } else if( readByte == 0xD ) {
+                    if( filePointer == fileLength - 1 ) {
+                        continue;
+                    }
+                    break;
+                }
+
+                sb.append((char) readByte);
+            }
+
+            String lastLine = sb.reverse().toString();
+
+            return lastLine;
+        }
+        finally {
+            if (fileHandler != null ) {
+                try {
+                    fileHandler.close();
+                } catch (IOException e) {
+                    /* ignore */
+                }
+            }
+        }
+    }
+}
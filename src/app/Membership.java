@@ -0,0 +1,319 @@
+package app;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.*;
+
+/**
+ * Gossiped cluster membership with a phi accrual failure detector. Every GOSSIP_INTERVAL_MS a server
+ * bumps its heartbeat and sends every member it knows with their latest heartbeat to a random peer, which
+ * merges them and answers with its own view. Servers missing from config.txt are learned this way, the
+ * config file only needs to list a few seeds.
+ *
+ * A heartbeat is a generation, the start time of the server, and a counter, so a restarted server is not
+ * ignored for counting from 0 again. Each time a member's heartbeat is seen to grow the interval since the
+ * previous one is sampled. Phi is the suspicion that the member is down given how long it has not been
+ * heard from and the distribution of those intervals, a member is suspected above PHI_THRESHOLD.
+ *
+ * Every member also gossips its status. NORMAL members own key ranges. A JOINING member is added to the
+ * pending ring and a LEAVING one removed from it, a LEFT member is in neither. While the pending ring
+ * differs from the current ring, ranges move to their new owners in the background, see Rebalancer.
+ *
+ * Members are kept as "id;ip;port;generation;heartbeat;status" entries in GOSSIP requests and responses.
+ */
+public class Membership {
+    Server owner;
+
+    static long GOSSIP_INTERVAL_MS = Config.getLong("GOSSIP_INTERVAL_MS", 1000);
+    static double PHI_THRESHOLD = Double.parseDouble(Config.get("PHI_THRESHOLD", "8"));
+
+    static String NORMAL = "normal";
+    static String JOINING = "joining";
+    static String LEAVING = "leaving";
+    static String LEFT = "left";
+
+    private long generation = System.currentTimeMillis();
+    private volatile long heartbeat;
+
+    // Status of this server and the last gossiped status of every other member
+    volatile String status = NORMAL;
+    private Map<String, String> idToStatus = new ConcurrentHashMap<String, String>();
+
+    // Latest generation and heartbeat seen of every other member and their arrival statistics
+    private Map<String, long[]> idToHeartbeat = new ConcurrentHashMap<String, long[]>();
+    private Map<String, ArrivalWindow> idToArrivals = new ConcurrentHashMap<String, ArrivalWindow>();
+
+    private ScheduledExecutorService gossipService;
+
+    private final static Logger LOGGER = Logger.getLogger(Applog.class.getName());
+
+    public Membership(Server own) {
+        this.owner = own;
+    }
+
+    /**
+     * Start gossiping with the members loaded from config
+     */
+    public void start() {
+        // Members never heard from are suspected once they stay silent for a few rounds. Servers in
+        // config are taken to own ranges until they gossip otherwise
+        for (String serverId : this.owner.idToServer.keySet()) {
+            this.idToArrivals.putIfAbsent(serverId, new ArrivalWindow());
+            this.idToStatus.putIfAbsent(serverId, NORMAL);
+        }
+
+        this.rebuildRings();
+
+        this.gossipService = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "gossip");
+            t.setDaemon(true);
+            return t;
+        });
+
+        this.gossipService.scheduleWithFixedDelay(this::gossip, GOSSIP_INTERVAL_MS, GOSSIP_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    public void close() {
+        if (this.gossipService != null) {
+            this.gossipService.shutdownNow();
+        }
+    }
+
+    private void gossip() {
+        this.heartbeat++;
+
+        List<String> peers = new ArrayList<String>(this.owner.idToServer.keySet());
+
+        if (peers.isEmpty()) {
+            return;
+        }
+
+        String peer = peers.get(ThreadLocalRandom.current().nextInt(peers.size()));
+
+        this.owner.peerPool.request(peer, GOSSIP_INTERVAL_MS, "SERVER", this.owner.id, "GOSSIP", this.digest())
+            .thenAccept(response -> {
+                if (response.startsWith("ACK:")) {
+                    this.merge(response.substring(4));
+                }
+            });
+    }
+
+    /**
+     * Change status of this server, gossiped with its next heartbeat
+     */
+    public void setStatus(String newStatus) {
+        this.status = newStatus;
+
+        LOGGER.info(String.format("server %s is %s", this.owner.id, newStatus));
+
+        this.rebuildRings();
+    }
+
+    /**
+     * Current ring from members that own ranges, pending ring from members that will own ranges once
+     * joins and leaves in progress complete, null if there are none.
+     */
+    synchronized void rebuildRings() {
+        Map<String, String> statuses = new HashMap<String, String>(this.idToStatus);
+
+        statuses.put(this.owner.id, this.status);
+
+        Set<String> current = owners(statuses, false);
+        Set<String> target = owners(statuses, true);
+
+        if (this.owner.ring == null || !current.equals(new TreeSet<String>(this.owner.ring.serverIds))) {
+            this.owner.ring = new HashRing(current);
+
+            LOGGER.info(String.format("ring changed to %s", current));
+        }
+
+        HashRing pending = this.owner.pendingRing;
+
+        if (target.equals(current)) {
+            this.owner.pendingRing = null;
+        }
+        else if (pending == null || !target.equals(new TreeSet<String>(pending.serverIds))) {
+            this.owner.pendingRing = new HashRing(target);
+
+            LOGGER.info(String.format("pending ring changed to %s", target));
+        }
+    }
+
+    /**
+     * Members owning ranges in the current ring, or in the pending ring
+     *
+     * @param statuses status of every member
+     */
+    static Set<String> owners(Map<String, String> statuses, boolean pending) {
+        Set<String> ids = new TreeSet<String>();
+
+        for (Map.Entry<String, String> entry : statuses.entrySet()) {
+            String memberStatus = entry.getValue();
+
+            if (memberStatus.equals(NORMAL) || memberStatus.equals(pending ? JOINING : LEAVING)) {
+                ids.add(entry.getKey());
+            }
+        }
+
+        return ids;
+    }
+
+    /**
+     * Merge the view of a peer and answer with this server's view
+     */
+    public String gossipHandler(String entries) {
+        this.merge(entries);
+
+        return String.format("ACK:%s", this.digest());
+    }
+
+    /**
+     * Entries of every member known, this server included
+     */
+    private String digest() {
+        StringBuilder sb = new StringBuilder(String.format(
+            "%s;%s;%s;%s;%s;%s", this.owner.id, this.owner.ip, this.owner.port, this.generation, this.heartbeat, this.status
+        ));
+
+        for (Map.Entry<String, long[]> entry : this.idToHeartbeat.entrySet()) {
+            Node server = this.owner.idToServer.get(entry.getKey());
+
+            sb.append(String.format(
+                ",%s;%s;%s;%s;%s;%s", server.id, server.ip, server.port, entry.getValue()[0], entry.getValue()[1], this.idToStatus.getOrDefault(server.id, NORMAL)
+            ));
+        }
+
+        return sb.toString();
+    }
+
+    private void merge(String entries) {
+        long now = System.nanoTime();
+
+        boolean changed = false;
+
+        for (String entry : entries.split(",")) {
+            String[] fields = entry.split(";");
+
+            String serverId = fields[0];
+
+            if (serverId.equals(this.owner.id)) continue;
+
+            long[] seen = { Long.parseLong(fields[3]), Long.parseLong(fields[4]) };
+
+            if (this.owner.idToServer.putIfAbsent(serverId, new Node(serverId, fields[1], Integer.parseInt(fields[2]))) == null) {
+                LOGGER.info(String.format("discovered server %s, ip=%s, port=%s", serverId, fields[1], fields[2]));
+            }
+
+            // Only a newer heartbeat is evidence the member is alive
+            long[] previous = this.idToHeartbeat.get(serverId);
+
+            if (previous != null && (seen[0] < previous[0] || (seen[0] == previous[0] && seen[1] <= previous[1]))) {
+                continue;
+            }
+
+            this.idToHeartbeat.put(serverId, seen);
+
+            if (!fields[5].equals(this.idToStatus.put(serverId, fields[5]))) {
+                changed = true;
+            }
+
+            // Silence of a member coming back is not sampled, it would make the next failure slow to detect
+            if (this.isSuspected(serverId)) {
+                this.idToArrivals.put(serverId, new ArrivalWindow());
+
+                LOGGER.info(String.format("server %s is up", serverId));
+            }
+            else {
+                this.idToArrivals.computeIfAbsent(serverId, k -> new ArrivalWindow()).arrived(now);
+            }
+        }
+
+        if (changed) {
+            this.rebuildRings();
+        }
+    }
+
+    /**
+     * Suspicion level of a member, 0 for this server and members not known
+     */
+    public double phi(String serverId) {
+        ArrivalWindow arrivals = this.idToArrivals.get(serverId);
+
+        return arrivals == null ? 0 : arrivals.phi(System.nanoTime());
+    }
+
+    public boolean isSuspected(String serverId) {
+        return this.phi(serverId) > PHI_THRESHOLD;
+    }
+
+    /**
+     * Members with their state for clients, "id;ip;port;up;status" or "id;ip;port;down;status" entries
+     */
+    public String members() {
+        StringBuilder sb = new StringBuilder(String.format("%s;%s;%s;up;%s", this.owner.id, this.owner.ip, this.owner.port, this.status));
+
+        for (Node server : this.owner.idToServer.values()) {
+            sb.append(String.format(
+                ",%s;%s;%s;%s;%s", server.id, server.ip, server.port, this.isSuspected(server.id) ? "down" : "up", this.idToStatus.getOrDefault(server.id, NORMAL)
+            ));
+        }
+
+        return sb.toString();
+    }
+}
+
+/**
+ * Intervals between the last WINDOW heartbeats of a member. Starts with one interval of two gossip rounds
+ * as if a heartbeat arrived on creation, so a member never heard from becomes suspected.
+ */
+class ArrivalWindow {
+    static int WINDOW = 100;
+
+    // Floor of the deviation, keeps very regular heartbeats from making phi jump on a small delay
+    static double MIN_STDDEV_MS = Membership.GOSSIP_INTERVAL_MS / 2.0;
+
+    private Deque<Double> intervals = new ArrayDeque<Double>();
+    private double sum;
+    private double sumSquares;
+    private long lastNanos = System.nanoTime();
+
+    ArrivalWindow() {
+        this.add(2.0 * Membership.GOSSIP_INTERVAL_MS);
+    }
+
+    synchronized void arrived(long nowNanos) {
+        this.add((nowNanos - this.lastNanos) / 1e6);
+
+        this.lastNanos = nowNanos;
+    }
+
+    private void add(double intervalMs) {
+        this.intervals.add(intervalMs);
+
+        this.sum += intervalMs;
+        this.sumSquares += intervalMs * intervalMs;
+
+        if (this.intervals.size() > WINDOW) {
+            double dropped = this.intervals.poll();
+
+            this.sum -= dropped;
+            this.sumSquares -= dropped * dropped;
+        }
+    }
+
+    /**
+     * -log10 of the probability that a heartbeat comes later than now, intervals taken as normally
+     * distributed. Uses the logistic approximation of the normal distribution.
+     */
+    synchronized double phi(long nowNanos) {
+        double elapsed = (nowNanos - this.lastNanos) / 1e6;
+
+        double mean = this.sum / this.intervals.size();
+        double stddev = Math.max(MIN_STDDEV_MS, Math.sqrt(Math.max(0, this.sumSquares / this.intervals.size() - mean * mean)));
+
+        double y = (elapsed - mean) / stddev;
+        double e = Math.exp(-y * (1.5976 + 0.070566 * y * y));
+
+        return elapsed > mean ? -Math.log10(e / (1.0 + e)) : -Math.log10(1.0 - 1.0 / (1.0 + e));
+    }
+}
@@ -0,0 +1,68 @@
+package app;
+
+import java.util.*;
+
+/**
+ * Hash tree over the objects two replicas share, used by anti-entropy to find differing objects without
+ * exchanging every version. Objects fall into FANOUT^DEPTH leaves by the ring hash of their name, so two
+ * servers place the same object in the same leaf. A leaf hash is the XOR of the hashes of the name and
+ * version of its objects and every node above is the XOR of its children, so trees are built in any order
+ * and equal nodes mean equal contents with high probability.
+ *
+ * Node index i at level d has children FANOUT * i to FANOUT * i + FANOUT - 1 at level d + 1. Level 0 is
+ * the root.
+ */
+public class MerkleTree {
+    static int FANOUT = 16;
+    static int DEPTH = Config.getInt("MERKLE_DEPTH", 3);
+
+    private long[][] levels = new long[DEPTH + 1][];
+    private Map<Integer, List<String>> leafToObjs = new HashMap<Integer, List<String>>();
+
+    public MerkleTree() {
+        for (int level = 0, width = 1; level <= DEPTH; level++, width *= FANOUT) {
+            this.levels[level] = new long[width];
+        }
+    }
+
+    /**
+     * Leaf an object falls into, taken from the high bits of the ring hash of its name
+     */
+    public static int leafOf(String obj) {
+        int bits = 4 * DEPTH; // FANOUT is 2^4
+
+        return bits == 0 ? 0 : (int) (HashRing.hash(obj) >>> (64 - bits));
+    }
+
+    public void add(String obj, Versioned value) {
+        int leaf = leafOf(obj);
+
+        this.levels[DEPTH][leaf] ^= HashRing.hash(String.format("%s\t%s\t%s", obj, value.timestamp, value.ownerId));
+
+        this.leafToObjs.computeIfAbsent(leaf, k -> new ArrayList<String>()).add(obj);
+    }
+
+    /**
+     * Compute upper levels from the leaves, once every object was added
+     */
+    public void seal() {
+        for (int level = DEPTH - 1; level >= 0; level--) {
+            long[] children = this.levels[level + 1];
+
+            for (int i = 0; i < children.length; i++) {
+                this.levels[level][i / FANOUT] ^= children[i];
+            }
+        }
+    }
+
+    public long hash(int level, int index) {
+        return this.levels[level][index];
+    }
+
+    /**
+     * Objects of a leaf
+     */
+    public List<String> objects(int leaf) {
+        return this.leafToObjs.getOrDefault(leaf, Collections.emptyList());
+    }
+}
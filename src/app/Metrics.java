@@ -0,0 +1,96 @@
+package app;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import org.HdrHistogram.*;
+
+/**
+ * Named counters and histograms of a server. Recording never blocks: counters are LongAdders and
+ * histograms are HdrHistogram Recorders, which are wait-free for writers. Readers take a snapshot
+ * through snapshot().
+ */
+public class Metrics {
+    private Map<String, LongAdder> nameToCounter = new ConcurrentHashMap<String, LongAdder>();
+    private Map<String, Distribution> nameToDistribution = new ConcurrentHashMap<String, Distribution>();
+
+    private long startMillis = System.currentTimeMillis();
+
+    // Largest value a histogram tracks, latencies are recorded in microseconds
+    static long MAX_VALUE = TimeUnit.MINUTES.toMicros(10);
+
+    /**
+     * Histogram of values recorded since the server started
+     */
+    static class Distribution {
+        Recorder recorder = new Recorder(MAX_VALUE, 2);
+        Histogram total = new Histogram(MAX_VALUE, 2);
+
+        synchronized Histogram snapshot() {
+            this.total.add(this.recorder.getIntervalHistogram());
+
+            return this.total.copy();
+        }
+    }
+
+    public void increment(String name) {
+        this.counter(name).increment();
+    }
+
+    /**
+     * Record a value, e.g. a queue depth
+     */
+    public void record(String name, long value) {
+        this.distribution(name).recorder.recordValue(Math.min(MAX_VALUE, Math.max(0, value)));
+    }
+
+    /**
+     * Record time elapsed since startNanos, a System.nanoTime() value, in microseconds
+     */
+    public void recordSince(String name, long startNanos) {
+        this.record(name, (System.nanoTime() - startNanos) / 1000);
+    }
+
+    private LongAdder counter(String name) {
+        LongAdder counter = this.nameToCounter.get(name);
+
+        return counter != null ? counter : this.nameToCounter.computeIfAbsent(name, k -> new LongAdder());
+    }
+
+    private Distribution distribution(String name) {
+        Distribution distribution = this.nameToDistribution.get(name);
+
+        return distribution != null ? distribution : this.nameToDistribution.computeIfAbsent(name, k -> new Distribution());
+    }
+
+    /**
+     * Current value of every metric, one per line sorted by name
+     */
+    public String snapshot() {
+        StringBuilder sb = new StringBuilder();
+
+        sb.append(String.format("uptime_s %s\n", (System.currentTimeMillis() - this.startMillis) / 1000));
+
+        for (String name : new TreeSet<String>(this.nameToCounter.keySet())) {
+            sb.append(String.format("%s %s\n", name, this.nameToCounter.get(name).sum()));
+        }
+
+        for (String name : new TreeSet<String>(this.nameToDistribution.keySet())) {
+            Histogram histogram = this.nameToDistribution.get(name).snapshot();
+
+            sb.append(String.format(
+                "%s count=%s mean=%.1f p50=%s p99=%s p999=%s max=%s\n",
+                name,
+                histogram.getTotalCount(),
+                histogram.getMean(),
+                histogram.getValueAtPercentile(50),
+                histogram.getValueAtPercentile(99),
+                histogram.getValueAtPercentile(99.9),
+                histogram.getMaxValue()
+            ));
+        }
+
+        return sb.toString();
+    }
+}
@@ -0,0 +1,151 @@
+package app;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.logging.*;
+
+/**
+ * Multiplexes many in-flight requests over a single Channel. Every request is tagged with a request id
+ * and the response carrying the same id completes the matching future, so concurrent callers can share
+ * one socket.
+ */
+public class MuxChannel {
+    String id;
+    Channel chnl;
+
+    private AtomicLong nextRequestId = new AtomicLong(0);
+    private Map<Long, CompletableFuture<String>> pending = new ConcurrentHashMap<Long, CompletableFuture<String>>();
+    private volatile boolean open = true;
+
+    private final static Logger LOGGER = Logger.getLogger(Applog.class.getName());
+
+    MuxChannel(Channel chnl) {
+        this.id = chnl.id;
+        this.chnl = chnl;
+
+        // Single reader per socket dispatches responses to waiting callers
+        Thread reader = new Thread(this::readLoop, String.format("mux-%s", this.id));
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * Connect to a server and open a multiplexed connection with given handshake, SERVER, id, CONNECT for
+     * pooled server connections or CLIENT, id, PIPELINE for pipelined clients.
+     */
+    public static MuxChannel open(Node server, String... handshake) throws IOException {
+        Channel chnl = new Channel(server.ip, server.port, server.id);
+
+        chnl.sendRequest(0, handshake);
+
+        return new MuxChannel(chnl);
+    }
+
+    /**
+     * Send request without waiting for the response.
+     *
+     * @param fields request fields, e.g. SERVER, id, VOTE, obj, owner, ts
+     * @return future completed with the response, or exceptionally if the channel closes first
+     */
+    public CompletableFuture<String> request(String... fields) {
+        return this.send(this.nextRequestId.incrementAndGet(), fields);
+    }
+
+    /**
+     * Send request with a deadline for the response. A request past its deadline is forgotten, a late
+     * response to it is dropped.
+     *
+     * @param timeoutMs deadline in milliseconds
+     * @return future completed with the response, or exceptionally with a TimeoutException
+     */
+    public CompletableFuture<String> request(long timeoutMs, String... fields) {
+        long requestId = this.nextRequestId.incrementAndGet();
+
+        CompletableFuture<String> future = this.send(requestId, fields);
+
+        future.orTimeout(timeoutMs, TimeUnit.MILLISECONDS).whenComplete((response, ex) -> {
+            if (ex instanceof TimeoutException) {
+                this.pending.remove(requestId, future);
+            }
+        });
+
+        return future;
+    }
+
+    /**
+     * Register a future for the response to requestId, then send the request
+     */
+    private CompletableFuture<String> send(long requestId, String... fields) {
+        CompletableFuture<String> future = new CompletableFuture<String>();
+
+        this.pending.put(requestId, future);
+
+        // Register before checking so that a concurrent close() either sees the future or we see the close
+        if (!this.open) {
+            this.pending.remove(requestId);
+
+            future.completeExceptionally(new IOException(String.format("channel to %s closed", this.id)));
+
+            return future;
+        }
+
+        try {
+            this.chnl.sendRequest(requestId, fields);
+        }
+        catch (IOException ex) {
+            this.close();
+        }
+
+        return future;
+    }
+
+    public boolean isOpen() {
+        return this.open;
+    }
+
+    private void readLoop() {
+        try {
+            Frame frame;
+
+            while (this.open && (frame = this.chnl.recvResponse(true)) != null) {
+                CompletableFuture<String> future = this.pending.remove(frame.requestId);
+
+                if (future != null) {
+                    future.complete(frame.fields[0]);
+                }
+            }
+        }
+        catch (IOException ex) {
+            if (this.open) {
+                LOGGER.info(String.format("connection to server %s lost: %s", this.id, ex.getMessage()));
+            }
+        }
+        finally {
+            this.close();
+        }
+    }
+
+    /**
+     * Close the socket and fail every request still waiting for a response.
+     */
+    public void close() {
+        this.open = false;
+
+        try {
+            this.chnl.close();
+        }
+        catch (IOException ex) {
+            /* ignore */
+        }
+
+        for (Long requestId : this.pending.keySet()) {
+            CompletableFuture<String> future = this.pending.remove(requestId);
+
+            if (future != null) {
+                future.completeExceptionally(new IOException(String.format("channel to %s closed", this.id)));
+            }
+        }
+    }
+}
@@ -0,0 +1,344 @@
+package app;
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.*;
+
+/**
+ * Non-blocking front end for server. A single selector thread accepts connections and performs all
+ * socket reads and writes, so idle or waiting connections do not hold a thread. Client requests are
+ * handed to the server's elastic worker pool, requests on pooled server connections are handled
+ * asynchronously.
+ */
+public class NioServer {
+    Server owner;
+    Selector selector;
+
+    // Channels with queued responses waiting for the selector thread to enable writes
+    private Queue<NioChannel> pendingWrites = new ConcurrentLinkedQueue<NioChannel>();
+
+    static int ACCEPT_BACKLOG = 4096;
+
+    private final static Logger LOGGER = Logger.getLogger(Applog.class.getName());
+
+    public NioServer(Server own) {
+        this.owner = own;
+    }
+
+    /**
+     * Bind to server port and run the selector loop. Does not return.
+     */
+    public void serve() throws IOException {
+        this.selector = Selector.open();
+
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(this.owner.port), ACCEPT_BACKLOG);
+        serverChannel.configureBlocking(false);
+        serverChannel.register(this.selector, SelectionKey.OP_ACCEPT);
+
+        LOGGER.info(String.format("server %s listening with nio front end on port %s", this.owner.id, this.owner.port));
+
+        while (true) {
+            this.selector.select();
+
+            // Enable writes for channels that queued responses since last select
+            NioChannel pending;
+
+            while ((pending = this.pendingWrites.poll()) != null) {
+                if (pending.key.isValid()) {
+                    pending.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                }
+            }
+
+            Iterator<SelectionKey> it = this.selector.selectedKeys().iterator();
+
+            while (it.hasNext()) {
+                SelectionKey key = it.next();
+                it.remove();
+
+                if (!key.isValid()) continue;
+
+                if (key.isAcceptable()) {
+                    this.accept(serverChannel);
+
+                    continue;
+                }
+
+                NioChannel chnl = (NioChannel) key.attachment();
+
+                try {
+                    if (key.isReadable()) {
+                        this.read(chnl);
+                    }
+
+                    if (key.isValid() && key.isWritable()) {
+                        chnl.flush();
+                    }
+                }
+                catch (IOException | RuntimeException ex) {
+                    // Malformed input closes its connection only, the selector thread serves all others
+                    LOGGER.info(String.format("closing connection after error: %s", ex));
+
+                    chnl.close();
+                }
+            }
+        }
+    }
+
+    private void accept(ServerSocketChannel serverChannel) throws IOException {
+        SocketChannel sockChannel;
+
+        while ((sockChannel = serverChannel.accept()) != null) {
+            sockChannel.configureBlocking(false);
+            sockChannel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+
+            NioChannel chnl = new NioChannel(this, sockChannel);
+
+            chnl.key = sockChannel.register(this.selector, SelectionKey.OP_READ, chnl);
+
+            LOGGER.info(String.format("received connection request from %s", sockChannel.getRemoteAddress()));
+        }
+    }
+
+    private void read(NioChannel chnl) throws IOException {
+        int count = chnl.sockChannel.read(chnl.readBuffer);
+
+        if (count == -1) {
+            chnl.close();
+
+            return;
+        }
+
+        chnl.readBuffer.flip();
+
+        // First byte tells binary frames from text lines
+        if (!chnl.detected && chnl.readBuffer.hasRemaining()) {
+            if (chnl.readBuffer.get(chnl.readBuffer.position()) == Frame.MAGIC[0]) {
+                if (chnl.readBuffer.remaining() < Frame.MAGIC.length) {
+                    chnl.readBuffer.compact();
+
+                    return;
+                }
+
+                for (byte b : Frame.MAGIC) {
+                    if (chnl.readBuffer.get() != b) {
+                        throw new IOException("unsupported binary format version");
+                    }
+                }
+
+                chnl.binary = true;
+
+                // Confirm binary format
+                chnl.writeQueue.add(ByteBuffer.wrap(Frame.MAGIC));
+                this.requestWrite(chnl);
+            }
+
+            chnl.detected = true;
+        }
+
+        if (chnl.binary) {
+            this.readFrames(chnl);
+        }
+        else {
+            this.readLines(chnl);
+        }
+
+        // Keep partial message for next read
+        chnl.readBuffer.compact();
+    }
+
+    private void readFrames(NioChannel chnl) throws IOException {
+        ByteBuffer buf = chnl.readBuffer;
+
+        while (buf.remaining() >= 4) {
+            int length = buf.getInt(buf.position());
+
+            if (length <= 0 || length > Frame.MAX_FRAME_BYTES) {
+                throw new IOException(String.format("invalid frame length %s", length));
+            }
+
+            if (buf.remaining() < 4 + length) {
+                // Make room for frames larger than the buffer
+                if (4 + length > buf.capacity()) {
+                    ByteBuffer larger = ByteBuffer.allocate(4 + length);
+                    larger.put(buf);
+                    larger.flip();
+
+                    chnl.readBuffer = larger;
+                }
+
+                return;
+            }
+
+            buf.position(buf.position() + 4);
+
+            ByteBuffer body = buf.slice();
+            body.limit(length);
+
+            buf.position(buf.position() + length);
+
+            this.dispatch(chnl, Frame.decode(body));
+        }
+    }
+
+    private void readLines(NioChannel chnl) throws IOException {
+        // Split received bytes into lines, keep partial line for next read
+        while (chnl.readBuffer.hasRemaining()) {
+            byte b = chnl.readBuffer.get();
+
+            if (b == '\n') {
+                String line = chnl.lineBuffer.toString(StandardCharsets.UTF_8.name());
+
+                chnl.lineBuffer.reset();
+
+                if (line.endsWith("\r")) {
+                    line = line.substring(0, line.length() - 1);
+                }
+
+                this.dispatch(chnl, Frame.parseText(line, chnl.multiplexed, true));
+            }
+            else if (chnl.lineBuffer.size() >= Frame.MAX_FRAME_BYTES) {
+                throw new IOException(String.format("line longer than %s bytes", Frame.MAX_FRAME_BYTES));
+            }
+            else {
+                chnl.lineBuffer.write(b);
+            }
+        }
+    }
+
+    private void dispatch(NioChannel chnl, Frame frame) {
+        // First message on a connection identifies the requester
+        if (chnl.handler == null) {
+            chnl.handler = new requestHandler(chnl, this.owner);
+
+            chnl.multiplexed = chnl.handler.handshake(frame.fields);
+
+            if (chnl.multiplexed) return;
+        }
+
+        requestHandler handler = chnl.handler;
+
+        if (!chnl.multiplexed) {
+            // Plain connection, responses must go out in request order
+            chnl.tail = chnl.tail.thenRunAsync(
+                () -> chnl.sendResponse(0, handler.clientRequestHandler(frame.fields)),
+                this.owner.workerService
+            ).exceptionally(ex -> {
+                // A failed request would fail every later one chained on it, drop the connection instead
+                LOGGER.info(String.format("closing connection after error: %s", ex));
+
+                chnl.close();
+
+                return null;
+            });
+        }
+        else if (handler.requesterType.equals("SERVER")) {
+            // Server requests complete asynchronously, no thread is held while they wait
+            handler.peerRequestHandler(frame.requestId, frame.fields);
+        }
+        else {
+            handler.pipelineRequestHandler(frame.requestId, frame.fields);
+        }
+    }
+
+    void requestWrite(NioChannel chnl) {
+        this.pendingWrites.add(chnl);
+
+        this.selector.wakeup();
+    }
+}
+
+/**
+ * Channel backed by a selector managed socket. send() queues the message for the selector thread, reads
+ * are driven by the selector so the receive methods fail with an IOException.
+ */
+class NioChannel extends Channel {
+    NioServer server;
+    SocketChannel sockChannel;
+    SelectionKey key;
+
+    ByteBuffer readBuffer = ByteBuffer.allocate(8192);
+    ByteArrayOutputStream lineBuffer = new ByteArrayOutputStream(256);
+    Queue<ByteBuffer> writeQueue = new ConcurrentLinkedQueue<ByteBuffer>();
+
+    requestHandler handler;
+    boolean detected;
+    boolean multiplexed;
+
+    // Last request queued on a plain connection, the next one runs after it
+    CompletableFuture<Void> tail = CompletableFuture.completedFuture(null);
+
+    NioChannel(NioServer srv, SocketChannel sockChnl) {
+        this.server = srv;
+        this.sockChannel = sockChnl;
+    }
+
+    @Override
+    public void send(String msg) {
+        this.writeQueue.add(ByteBuffer.wrap((msg + "\n").getBytes(StandardCharsets.UTF_8)));
+
+        this.server.requestWrite(this);
+    }
+
+    @Override
+    public void sendResponse(long requestId, String response) {
+        if (!this.binary) {
+            this.send(Frame.formatText(requestId, response));
+
+            return;
+        }
+
+        this.writeQueue.add(Frame.encodeResponse(null, requestId, response));
+
+        this.server.requestWrite(this);
+    }
+
+    @Override
+    public String recv() throws IOException {
+        throw new IOException("reads on nio channel are driven by the selector");
+    }
+
+    @Override
+    public Frame recvRequest(boolean multiplexed) throws IOException {
+        return Frame.parseText(this.recv(), multiplexed, true);
+    }
+
+    @Override
+    public Frame recvResponse(boolean multiplexed) throws IOException {
+        return Frame.parseText(this.recv(), multiplexed, false);
+    }
+
+    /**
+     * Write queued messages until socket buffer fills. Called on selector thread only.
+     */
+    void flush() throws IOException {
+        ByteBuffer buffer;
+
+        while ((buffer = this.writeQueue.peek()) != null) {
+            this.sockChannel.write(buffer);
+
+            if (buffer.hasRemaining()) return; // Socket full, wait for next writable event
+
+            this.writeQueue.poll();
+        }
+
+        this.key.interestOps(SelectionKey.OP_READ);
+    }
+
+    @Override
+    public void close() {
+        this.key.cancel();
+
+        try {
+            this.sockChannel.close();
+        }
+        catch (IOException ex) {
+            /* ignore */
+        }
+    }
+}
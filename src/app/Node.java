@@ -12,6 +12,9 @@ public class Node {
     public int port;
     static String[] fileList = {"f1", "f2", "f3", "f4"};
 
+    // Orders writes, servers and clients merge the timestamps of messages they receive into it
+    public HybridClock clock = new HybridClock();
+
     public Node(String Id) {
         this.id = Id;
     }
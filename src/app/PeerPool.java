@@ -0,0 +1,168 @@
+package app;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.*;
+
+/**
+ * Long-lived pool of server-to-server connections, one multiplexed channel per peer keyed by server id.
+ * Channels are health checked in the background and reconnected when they fail.
+ */
+public class PeerPool {
+    Server owner;
+    Map<String, MuxChannel> idToChannel = new ConcurrentHashMap<String, MuxChannel>();
+
+    private Map<String, Object> idToConnectLock = new ConcurrentHashMap<String, Object>();
+
+    // Metric names of each peer, built once rather than formatted on every request
+    private Map<String, String> idToRttMetric = new ConcurrentHashMap<String, String>();
+    private ScheduledExecutorService healthService;
+
+    // Connects on behalf of request(), so that callers never block on a slow or dead peer
+    private ExecutorService connectService = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "peer-connect");
+        t.setDaemon(true);
+        return t;
+    });
+
+    static long HEALTH_CHECK_INTERVAL_MS = 5000;
+    static long HEALTH_CHECK_TIMEOUT_MS = 2000;
+
+    private final static Logger LOGGER = Logger.getLogger(Applog.class.getName());
+
+    public PeerPool(Server own) {
+        this.owner = own;
+    }
+
+    /**
+     * Name of the vote round trip histogram of a peer, vote.rtt_us.<id>
+     */
+    public String rttMetric(String serverId) {
+        return this.idToRttMetric.computeIfAbsent(serverId, id -> String.format("vote.rtt_us.%s", id));
+    }
+
+    /**
+     * Start periodic health checks of pooled channels
+     */
+    public void start() {
+        this.healthService = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "peer-health");
+            t.setDaemon(true);
+            return t;
+        });
+
+        this.healthService.scheduleWithFixedDelay(
+            this::checkHealth,
+            HEALTH_CHECK_INTERVAL_MS,
+            HEALTH_CHECK_INTERVAL_MS,
+            TimeUnit.MILLISECONDS
+        );
+    }
+
+    /**
+     * Get an open channel to a peer, connecting if there is none or the previous one failed.
+     *
+     * @param serverId id of peer server
+     */
+    public MuxChannel get(String serverId) throws IOException {
+        MuxChannel chnl = this.idToChannel.get(serverId);
+
+        if (chnl != null && chnl.isOpen()) {
+            return chnl;
+        }
+
+        // Only one thread connects to a given peer at a time, others reuse its channel
+        synchronized (this.idToConnectLock.computeIfAbsent(serverId, k -> new Object())) {
+            chnl = this.idToChannel.get(serverId);
+
+            if (chnl != null && chnl.isOpen()) {
+                return chnl;
+            }
+
+            Node selectedServer = this.owner.idToServer.get(serverId);
+
+            // Announce connection as a multiplexed peer connection
+            chnl = MuxChannel.open(selectedServer, "SERVER", this.owner.id, "CONNECT");
+
+            this.idToChannel.put(serverId, chnl);
+
+            LOGGER.info(String.format("opened pooled connection to server %s", serverId));
+
+            return chnl;
+        }
+    }
+
+    /**
+     * Send request to a peer without blocking, connecting in the background if there is no open channel.
+     *
+     * @param serverId id of peer server
+     * @param timeoutMs deadline for the response, connecting included
+     * @param fields request fields, e.g. SERVER, id, VOTE, obj, owner, ts
+     * @return future completed with the response, or exceptionally if the peer cannot be reached in time
+     */
+    public CompletableFuture<String> request(String serverId, long timeoutMs, String... fields) {
+        MuxChannel chnl = this.idToChannel.get(serverId);
+
+        if (chnl != null && chnl.isOpen()) {
+            return chnl.request(timeoutMs, fields);
+        }
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+
+        return CompletableFuture
+            .supplyAsync(() -> {
+                try {
+                    return this.get(serverId);
+                }
+                catch (IOException ex) {
+                    throw new CompletionException(ex);
+                }
+            }, this.connectService)
+            .thenCompose(c -> c.request(Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())), fields))
+            .orTimeout(timeoutMs, TimeUnit.MILLISECONDS);
+    }
+
+    private void checkHealth() {
+        for (String serverId : this.owner.idToServer.keySet()) {
+            MuxChannel chnl = this.idToChannel.get(serverId);
+
+            try {
+                if (chnl == null || !chnl.isOpen()) {
+                    // Reconnect in background so that writes do not pay the connect cost
+                    if (chnl != null) {
+                        this.get(serverId);
+                    }
+
+                    continue;
+                }
+
+                String response = chnl.request("SERVER", this.owner.id, "PING")
+                    .get(HEALTH_CHECK_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+
+                if (!response.equals("ACK:PONG")) {
+                    throw new IOException(String.format("unexpected ping response %s", response));
+                }
+            }
+            catch (Exception ex) {
+                LOGGER.info(String.format("health check failed for server %s: %s", serverId, ex.getMessage()));
+
+                if (chnl != null) {
+                    chnl.close();
+                }
+            }
+        }
+    }
+
+    public void close() {
+        if (this.healthService != null) {
+            this.healthService.shutdownNow();
+        }
+
+        this.connectService.shutdownNow();
+
+        for (MuxChannel chnl : this.idToChannel.values()) {
+            chnl.close();
+        }
+    }
+}
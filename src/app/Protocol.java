@@ -0,0 +1,53 @@
+package app;
+
+/**
+ * Helpers for the colon delimited text protocol. Fields that may contain delimiters are percent-escaped
+ * so that they survive split(":") and split(",") and fit on one line.
+ */
+public class Protocol {
+    private static String DELIMITERS = "%:,;\n\r";
+
+    public static String escape(String field) {
+        StringBuilder sb = null;
+
+        for (int i = 0; i < field.length(); i++) {
+            char c = field.charAt(i);
+
+            if (DELIMITERS.indexOf(c) >= 0) {
+                if (sb == null) {
+                    sb = new StringBuilder(field.length() + 8).append(field, 0, i);
+                }
+
+                sb.append(String.format("%%%02X", (int) c));
+            }
+            else if (sb != null) {
+                sb.append(c);
+            }
+        }
+
+        return sb == null ? field : sb.toString();
+    }
+
+    public static String unescape(String field) {
+        if (field.indexOf('%') < 0) {
+            return field;
+        }
+
+        StringBuilder sb = new StringBuilder(field.length());
+
+        for (int i = 0; i < field.length(); i++) {
+            char c = field.charAt(i);
+
+            if (c == '%' && i + 2 < field.length()) {
+                sb.append((char) Integer.parseInt(field.substring(i + 1, i + 3), 16));
+
+                i += 2;
+            }
+            else {
+                sb.append(c);
+            }
+        }
+
+        return sb.toString();
+    }
+}
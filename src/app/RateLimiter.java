@@ -0,0 +1,37 @@
+package app;
+
+import java.util.concurrent.*;
+
+/**
+ * Token bucket refilled at a rate of permits per second and holding at most one second of permits. A
+ * caller taking more than is available waits until the bucket has refilled the difference. Rate 0 means
+ * unlimited.
+ */
+class RateLimiter {
+    private long rate;
+    private double available;
+    private long refilledAt = System.nanoTime();
+
+    RateLimiter(long permitsPerSec) {
+        this.rate = permitsPerSec;
+        this.available = permitsPerSec;
+    }
+
+    synchronized void acquire(long permits) throws InterruptedException {
+        if (this.rate <= 0) {
+            return;
+        }
+
+        long now = System.nanoTime();
+
+        this.available = Math.min(this.rate, this.available + (now - this.refilledAt) * this.rate / 1e9);
+        this.refilledAt = now;
+
+        this.available -= permits;
+
+        // Wait out the debt, refill after waking pays it back
+        if (this.available < 0) {
+            TimeUnit.NANOSECONDS.sleep((long) (-this.available / this.rate * 1e9));
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package app;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.*;
+
+/**
+ * Online join and leave of a server while the cluster keeps serving.
+ *
+ * A joining server gossips JOINING, which puts it in the pending ring of every member. Clients then
+ * write to replicas of both rings, so writes made during the handover reach old and new owners alike.
+ * Once REBALANCE_SETTLE_MS has let that spread, the server pulls the ranges it takes over from every
+ * owner through anti-entropy against the pending ring, limited to REBALANCE_BYTES_PER_SEC, and turns
+ * NORMAL, which makes the pending ring current everywhere.
+ *
+ * A leaving server gossips LEAVING, waits the same, then hands every object off as hints to its owners
+ * in the pending ring that are not owners yet, see HintedHandoff, and turns LEFT once all are delivered.
+ * If they are not delivered within REBALANCE_LEAVE_TIMEOUT_MS, because a new owner is down, the leave
+ * is given up and the server turns NORMAL again, keeping its ranges and the hints for later replay.
+ * Reads go to the current ring until a change completes. Former owners keep their copies of moved
+ * objects.
+ */
+public class Rebalancer {
+    Server owner;
+
+    static long SETTLE_MS = Config.getLong("REBALANCE_SETTLE_MS", 3 * Membership.GOSSIP_INTERVAL_MS);
+    static long BYTES_PER_SEC = Config.getLong("REBALANCE_BYTES_PER_SEC", 4 << 20);
+    static long RETRY_MS = 1000;
+    static long LEAVE_TIMEOUT_MS = Config.getLong("REBALANCE_LEAVE_TIMEOUT_MS", 10 * 60 * 1000);
+
+    private RateLimiter byteLimiter = new RateLimiter(BYTES_PER_SEC);
+
+    private ExecutorService rebalanceService = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "rebalance");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final static Logger LOGGER = Logger.getLogger(Applog.class.getName());
+
+    public Rebalancer(Server own) {
+        this.owner = own;
+    }
+
+    /**
+     * Take over ranges of the pending ring in the background, this server must be JOINING
+     */
+    public void join() {
+        this.rebalanceService.submit(() -> {
+            this.runJoin();
+
+            return null;
+        });
+    }
+
+    /**
+     * Hand off ranges of this server in the background
+     */
+    public void leave() {
+        this.owner.membership.setStatus(Membership.LEAVING);
+
+        this.rebalanceService.submit(() -> {
+            this.runLeave();
+
+            return null;
+        });
+    }
+
+    public void close() {
+        this.rebalanceService.shutdownNow();
+    }
+
+    private void runJoin() throws InterruptedException {
+        long started = System.nanoTime();
+
+        // Owners must be writing to this server as well before their data is copied
+        Thread.sleep(SETTLE_MS);
+
+        int moved = 0;
+
+        for (String serverId : this.owner.ring.serverIds) {
+            if (serverId.equals(this.owner.id)) continue;
+
+            while (true) {
+                // Replicas of a down owner hold its ranges as well
+                if (this.owner.membership.isSuspected(serverId)) {
+                    LOGGER.info(String.format("skipping ranges of down server %s", serverId));
+
+                    break;
+                }
+
+                try {
+                    moved += this.owner.antiEntropy.syncWith(serverId, this.byteLimiter);
+
+                    break;
+                }
+                catch (IOException ex) {
+                    LOGGER.info(String.format("taking over ranges from %s failed, retrying: %s", serverId, ex.getMessage()));
+
+                    Thread.sleep(RETRY_MS);
+                }
+            }
+        }
+
+        this.owner.membership.setStatus(Membership.NORMAL);
+
+        this.owner.metrics.recordSince("rebalance.join_us", started);
+
+        LOGGER.info(String.format("joined in %s ms, took over %s objects", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started), moved));
+    }
+
+    private void runLeave() throws InterruptedException {
+        long started = System.nanoTime();
+
+        Thread.sleep(SETTLE_MS);
+
+        HashRing current = this.owner.ring;
+        HashRing target = this.owner.targetRing();
+
+        int handed = 0;
+
+        // Hints of this leave only, hints for other down servers must not hold it up
+        Map<String, Set<String>> handedOff = new HashMap<String, Set<String>>();
+
+        for (String obj : this.owner.storage.objects()) {
+            List<String> owners = current.replicasFor(obj);
+
+            for (String serverId : target.replicasFor(obj)) {
+                if (owners.contains(serverId)) continue;
+
+                try {
+                    this.owner.hints.add(serverId, obj);
+
+                    handedOff.computeIfAbsent(serverId, k -> new HashSet<String>()).add(obj);
+
+                    handed++;
+                }
+                catch (IOException ex) {
+                    LOGGER.info(String.format("failed to hand off object %s to %s: %s", obj, serverId, ex.getMessage()));
+                }
+            }
+        }
+
+        long deadline = started + TimeUnit.MILLISECONDS.toNanos(SETTLE_MS + LEAVE_TIMEOUT_MS);
+
+        for (int pending; (pending = this.owner.hints.pending(handedOff)) > 0; ) {
+            if (System.nanoTime() - deadline > 0) {
+                this.owner.membership.setStatus(Membership.NORMAL);
+
+                this.owner.metrics.increment("rebalance.leave_timeouts");
+
+                LOGGER.info(String.format("leave given up after %s ms, %s of %s objects not handed off", SETTLE_MS + LEAVE_TIMEOUT_MS, pending, handed));
+
+                return;
+            }
+
+            Thread.sleep(RETRY_MS);
+        }
+
+        this.owner.membership.setStatus(Membership.LEFT);
+
+        this.owner.metrics.recordSince("rebalance.leave_us", started);
+
+        LOGGER.info(String.format("left in %s ms, handed off %s objects", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started), handed));
+    }
+}
@@ -8,6 +8,7 @@ import java.util.logging.*;
 import java.security.*;
 import java.time.Instant;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 
 import javax.naming.NameNotFoundException;
 
@@ -15,35 +16,220 @@ import javax.naming.NameNotFoundException;
  * The primary class for running server instance. 
  */
 public class Server extends Node {
-    Map<String, Node> idToServer = new HashMap<String, Node>();
+    // Other servers, from config at startup and learned through gossip later
+    Map<String, Node> idToServer = new ConcurrentHashMap<String, Node>();
 
-    public Map<String, Object> objToLock;
-    public Map<String, Task> objToLockedTask;
+    // Placement of objects on servers that own ranges. While servers join or leave, pending ring is the
+    // placement once they are done and writes go to replicas in both, see Membership
+    volatile HashRing ring;
+    volatile HashRing pendingRing;
+
+    // Ordering state of objects with requests in flight. Idle objects are dropped
+    Map<String, KeyState> objToState = new ConcurrentHashMap<String, KeyState>();
 
     private final static Logger LOGGER = Logger.getLogger(Applog.class.getName());
-    private static ServerSocket serverSocket;
+    private ServerSocket serverSocket;
 
     public static Task NULL_TASK = new Task(null, null, null, null, (long)0);
 
-    Map<String, PriorityBlockingQueue<Task>> objToTaskQueue =
-        new ConcurrentHashMap<String, PriorityBlockingQueue<Task>>(Node.fileList.length);
+    // Number of objects listed with their queue depth in stats
+    static int STATS_TOP_KEYS = 10;
+
+    // Tasks queued behind the head of a key are committed with it as one batch of at most COALESCE_MAX,
+    // replicas vote on the whole batch and its writers are answered in batch order. A window above 0
+    // holds a new head that long after it was queued to gather more
+    static int COALESCE_MAX = Config.getInt("COALESCE_MAX", 32);
+    static long COALESCE_WINDOW_MS = Config.getLong("COALESCE_WINDOW_MS", 0);
+
+    // Deadline for a peer to answer a VOTE or RELEASE, a replica that misses it does not count
+    static long VOTE_TIMEOUT_MS = Config.getLong("VOTE_TIMEOUT_MS", 2000);
+
+    // Rounds that reach no quorum are retried VOTE_RETRIES times, waiting VOTE_BACKOFF_MS doubled on each
+    // retry, before the write fails and releases its key
+    static int VOTE_RETRIES = Config.getInt("VOTE_RETRIES", 5);
+    static long VOTE_BACKOFF_MS = Config.getLong("VOTE_BACKOFF_MS", 50);
+
+    // Number of executed tasks remembered for votes of replicas that are behind, see wasExecuted
+    static int RECENT_TASKS = Config.getInt("RECENT_TASKS", 65536);
+
+    private Set<String> recentTasks = ConcurrentHashMap.newKeySet();
+    private Queue<String> recentTaskOrder = new ConcurrentLinkedQueue<String>();
+    private AtomicInteger recentTaskCount = new AtomicInteger(); // size() of the queue walks every node
+
+    // Storage of objects owned by this server
+    StorageEngine storage;
+
+    // Lease mode sequences writes at the leaseholder of each key range instead of voting on every write
+    boolean leaseMode = Config.get("WRITE_MODE", "vote").equals("lease");
+    LeaseTable leases = new LeaseTable();
+
+    // Counters and latency histograms, reported by the STATS command
+    Metrics metrics = new Metrics();
+
+    // Pooled connections to other servers and threads serving requests arriving on them
+    PeerPool peerPool;
+
+    // Repairs objects this server missed from its peers in the background
+    AntiEntropy antiEntropy;
+
+    // Writes to replicas the client could not reach, handed off once they are back
+    HintedHandoff hints;
+
+    // Live members of the cluster and suspicion that they are down
+    Membership membership;
+
+    // Moves ranges to this server when it joins and away from it when it leaves
+    Rebalancer rebalancer;
+    ExecutorService peerService = Executors.newCachedThreadPool();
+
+    // Threads running requests that arrive concurrently on one connection, at most WORKER_THREADS. A
+    // request arriving while all are busy is refused rather than queued, as running requests may wait on
+    // it, see requestHandler.pipelineRequestHandler
+    static int WORKER_THREADS = Config.getInt("WORKER_THREADS", 512);
+
+    ExecutorService workerService = new ThreadPoolExecutor(0, WORKER_THREADS, 60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>());
 
-    public Server(String Id, String Ip, int P) {
+    public Server(String Id, String Ip, int P) throws IOException {
+        this(Id, Ip, P, new LogStorageEngine(
+            String.format("files/%s", Id), // TODO: obtain file path via ENV
+            WriteAheadLog.Sync.valueOf(Config.get("WAL_FSYNC", "group").toUpperCase()),
+            Config.getLong("WAL_GROUP_WINDOW_MS", 2)
+        ));
+    }
+
+    /**
+     * @param store storage of objects owned by this server
+     */
+    public Server(String Id, String Ip, int P, StorageEngine store) {
         super(Id, Ip, P);
 
-        this.objToLock = new ConcurrentHashMap<String, Object>(100);
-        this.objToLockedTask = new ConcurrentHashMap<String, Task>(100);
+        this.storage = store;
+
+        this.peerPool = new PeerPool(this);
+        this.antiEntropy = new AntiEntropy(this);
+        this.hints = new HintedHandoff(this, new File(String.format("files/%s", Id), ".hints"));
+        this.membership = new Membership(this);
+        this.rebalancer = new Rebalancer(this);
+    }
+
+    /**
+     * Get ordering state of an object, allocating it if the object is not active. Every call must be
+     * paired with releaseKey once the caller is done with the state.
+     */
+    public KeyState acquireKey(String obj) {
+        return this.objToState.compute(obj, (k, state) -> {
+            if (state == null) {
+                state = new KeyState();
+            }
+
+            state.users++;
+
+            return state;
+        });
+    }
+
+    /**
+     * Drop caller's use of object state, reclaiming the state once no request uses it.
+     */
+    public void releaseKey(String obj) {
+        this.objToState.computeIfPresent(obj, (k, state) -> {
+            state.users--;
+
+            return state.isIdle() ? null : state;
+        });
+    }
+
+    /**
+     * Remember that a task was executed here, forgetting the oldest once RECENT_TASKS are remembered
+     */
+    public void markExecuted(String obj, Task task) {
+        String taskKey = String.format("%s:%s:%s", obj, task.ownerId, task.timestamp);
+
+        if (!this.recentTasks.add(taskKey)) {
+            return;
+        }
+
+        this.recentTaskOrder.add(taskKey);
+
+        // Every add forgets at most one, racing adds each take their own oldest
+        if (this.recentTaskCount.incrementAndGet() > RECENT_TASKS) {
+            String oldest = this.recentTaskOrder.poll();
+
+            if (oldest != null) {
+                this.recentTasks.remove(oldest);
+                this.recentTaskCount.decrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * A write is decided by a quorum, so a slower replica may vote on a task after this server already
+     * executed and released it.
+     *
+     * @return true if task was executed here recently
+     */
+    public boolean wasExecuted(String obj, Task task) {
+        return this.recentTasks.contains(String.format("%s:%s:%s", obj, task.ownerId, task.timestamp));
+    }
+
+    /**
+     * Server metrics, storage metrics such as read cache hits, then the deepest task queues of objects
+     * with requests in flight.
+     */
+    public String stats() {
+        StringBuilder sb = new StringBuilder(this.metrics.snapshot());
+
+        sb.append(this.storage.stats());
+
+        List<Map.Entry<String, Integer>> depths = new ArrayList<Map.Entry<String, Integer>>();
+
+        for (Map.Entry<String, KeyState> entry : this.objToState.entrySet()) {
+            depths.add(new AbstractMap.SimpleEntry<String, Integer>(entry.getKey(), entry.getValue().taskQueue.size()));
+        }
+
+        depths.sort((a, b) -> b.getValue() - a.getValue());
+
+        sb.append(String.format("active_keys %s\n", depths.size()));
+
+        for (Map.Entry<String, Integer> depth : depths.subList(0, Math.min(STATS_TOP_KEYS, depths.size()))) {
+            sb.append(String.format("queue_depth.%s %s\n", depth.getKey(), depth.getValue()));
+        }
+
+        return sb.toString();
+    }
+
+    /**
+     * Placement objects are moving to, the current ring if no server is joining or leaving
+     */
+    public HashRing targetRing() {
+        HashRing pending = this.pendingRing;
+
+        return pending != null ? pending : this.ring;
+    }
+
+    /**
+     * Object names double as file names, allow only plain names.
+     */
+    public static boolean isValidKey(String obj) {
+        if (obj.isEmpty() || obj.startsWith(".")) {
+            return false;
+        }
 
-        for (String fileName : Node.fileList) {
-            this.objToTaskQueue.put(fileName, new PriorityBlockingQueue<Task>(20, new TaskComparator()));
+        for (int i = 0; i < obj.length(); i++) {
+            char c = obj.charAt(i);
 
-            this.objToLock.put(fileName, new Object());
+            if (!Character.isLetterOrDigit(c) && c != '_' && c != '-' && c != '.') {
+                return false;
+            }
         }
+
+        return true;
     }
 
     /**
      * Load and maintain configuration of other servers in cluster as a list. Skips adding own
-     * config to list.
+     * config to list. Servers not listed are added once learned through gossip. A server missing from
+     * its own config joins the cluster, taking over ranges from the servers listed.
      * 
      * @param fileName file to load config from
      */
@@ -52,11 +238,15 @@ public class Server extends Node {
         String line;
         String[] params;
 
+        List<String> serverIds = new ArrayList<String>();
+
         LOGGER.info("loading servers from config file");
 
         while ((line = inputBuffer.readLine()) != null) {
             params = line.split(" ");
 
+            serverIds.add(params[0]);
+
             if (!params[0].equals(this.id)) { // Skip adding itself to the server list
                 LOGGER.info(String.format("found server %s, ip=%s, port=%s", params[0], params[1], params[2]));
 
@@ -65,6 +255,13 @@ public class Server extends Node {
         }
 
         inputBuffer.close();
+
+        // Ring covers all servers, including this one unless it joins
+        this.ring = new HashRing(serverIds);
+
+        if (!serverIds.contains(this.id)) {
+            this.membership.status = Membership.JOINING;
+        }
     }
 
     /**
@@ -73,10 +270,17 @@ public class Server extends Node {
      * @param args[0] server id to uniquely identify server
      * @param args[1] ip for server to bind and listen on. TODO; remove, ip address not required for binding
      * @param args[2] port for server to bind and listen on
+     * @param args[3] file to load cluster config from
+     *
+     * Environment FRONT_END=nio selects the selector based front end instead of the fixed thread pool of
+     * POOL_SIZE threads. WAL_FSYNC selects always, group or os syncing of the write-ahead log, group
+     * commits wait up to WAL_GROUP_WINDOW_MS. WRITE_MODE=lease replaces vote rounds with leaseholder
+     * writes, see LeaseTable. ANTI_ENTROPY_INTERVAL_MS sets how often replicas are synced with peers, see
+     * AntiEntropy. Servers gossip every GOSSIP_INTERVAL_MS, see Membership.
      */
     public static void main(String[] args) throws IOException {
-        // Sets the thread pool size. TODO: make this parameter dynamic
-        int MAX_POOL_SIZE = 7;
+        // Sets the thread pool size for the blocking front end
+        int MAX_POOL_SIZE = Config.getInt("POOL_SIZE", 7);
         String configFile = "config.txt";
 
         if (args.length < 4) {
@@ -99,32 +303,89 @@ public class Server extends Node {
         // Get list of available file servers from config.txt file TODO: remove hard coded values
         selfServer.loadConfig(configFile);
 
+        // Start health checks on pooled server connections and gossip with the servers in config
+        selfServer.peerPool.start();
+        selfServer.membership.start();
+
+        // Start syncing objects with peers and handing off hints
+        selfServer.antiEntropy.start();
+        selfServer.hints.start();
+
+        // Take over ranges in the background, serving meanwhile
+        if (selfServer.membership.status.equals(Membership.JOINING)) {
+            selfServer.rebalancer.join();
+        }
+
+        // Selector based front end serves all connections without a thread per connection
+        if (Config.get("FRONT_END", "pool").equals("nio")) {
+            new NioServer(selfServer).serve();
+
+            return;
+        }
+
+        selfServer.serve(MAX_POOL_SIZE);
+    }
+
+    /**
+     * Accept connections on the blocking front end, each served by a thread of a fixed pool. Returns
+     * once the server is closed.
+     *
+     * @param poolSize number of threads serving client connections
+     */
+    public void serve(int poolSize) throws IOException {
         // Create a thread pool
-        final ExecutorService service = Executors.newFixedThreadPool(MAX_POOL_SIZE);
+        final ExecutorService service = Executors.newFixedThreadPool(poolSize);
 
         // Create a socket and bind to port. Listens on all ip addresses of host
-        Server.serverSocket = new ServerSocket(selfServer.port);
+        this.serverSocket = new ServerSocket(this.port);
+
+        try {
+            while (true) {
+                // Listen for incoming connection requests
+                Socket clientSocket = this.serverSocket.accept();
 
-        while (true) {
-            // Listen for incoming connection requests
-            Socket clientSocket = Server.serverSocket.accept();
+                // Create a channel 
+                Channel clientChannel = new Channel(clientSocket);
 
-            // Create a channel 
-            Channel clientChannel = new Channel(clientSocket);
+                LOGGER.info(String.format("received connection request from ip=%s, port=%s",
+                    clientSocket.getInetAddress(),
+                    clientSocket.getPort()
+                ));
 
-            LOGGER.info(String.format("received connection request from ip=%s, port=%s",
-                clientSocket.getInetAddress(),
-                clientSocket.getPort()
-            ));
+                requestHandler callobj = new requestHandler(
+                    clientChannel,
+                    this
+                );
 
-            requestHandler callobj = new requestHandler(
-                clientChannel,
-                selfServer
-            );
+                // Call thread to handle client connection
+                service.submit(callobj);
+            }
+        }
+        catch (SocketException ex) {
+            // Socket closed by close()
+            if (!this.serverSocket.isClosed()) throw ex;
+        }
+        finally {
+            service.shutdownNow();
+        }
+    }
 
-            // Call thread to handle client connection
-            service.submit(callobj);
+    /**
+     * Stop accepting connections, drop pooled connections and close storage.
+     */
+    public void close() throws IOException {
+        if (this.serverSocket != null) {
+            this.serverSocket.close();
         }
+
+        this.rebalancer.close();
+        this.membership.close();
+        this.antiEntropy.close();
+        this.hints.close();
+        this.peerPool.close();
+        this.peerService.shutdownNow();
+        this.workerService.shutdownNow();
+        this.storage.close();
     }
 }
 
@@ -134,6 +395,12 @@ class requestHandler implements Callable<Integer> {
     String requesterId,
         requesterType;
 
+    // Fields a client request needs for each action, counting CLIENT, id and action
+    static Map<String, Integer> CLIENT_FIELDS = Map.of(
+        "STATS", 3, "MEMBERS", 3, "LEAVE", 3, "MREAD", 4, "MWRITE", 5,
+        "READ", 4, "LREAD", 4, "WRITE", 7, "REPAIR", 7, "ABORT", 4
+    );
+
     private final static Logger LOGGER = Logger.getLogger(Applog.class.getName());
     
     public requestHandler(Channel chnl, Server own) {
@@ -141,376 +408,1286 @@ class requestHandler implements Callable<Integer> {
         this.owner = own;
     }
 
+    // Messages are formatted by the log writer thread, and only if INFO is enabled. Fixed arity overloads
+    // so that no argument array is allocated when it is not
     private void logInfo(String message) {
-        LOGGER.info(String.format("%s: %s: %s", this.requesterId, Thread.currentThread().getId(), message));
+        if (LOGGER.isLoggable(Level.INFO)) {
+            Applog.log(LOGGER, Level.INFO, this.requesterId, message, null, null);
+        }
+    }
+
+    private void logInfo(String format, Object arg) {
+        if (LOGGER.isLoggable(Level.INFO)) {
+            Applog.log(LOGGER, Level.INFO, this.requesterId, format, new Object[] { arg }, null);
+        }
+    }
+
+    private void logInfo(String format, Object arg1, Object arg2) {
+        if (LOGGER.isLoggable(Level.INFO)) {
+            Applog.log(LOGGER, Level.INFO, this.requesterId, format, new Object[] { arg1, arg2 }, null);
+        }
     }
 
-    private void logSevere(String message, Exception ex) {
-        LOGGER.log(Level.SEVERE, String.format("%s: %s: %s", this.requesterId, Thread.currentThread().getId(), message), ex);
-        ex.printStackTrace();
+    private void logInfo(String format, Object arg1, Object arg2, Object arg3) {
+        if (LOGGER.isLoggable(Level.INFO)) {
+            Applog.log(LOGGER, Level.INFO, this.requesterId, format, new Object[] { arg1, arg2, arg3 }, null);
+        }
     }
 
-    // Read the last line of file. Taken from https://stackoverflow.com/questions/686231/quickly-read-the-last-line-of-a-text-file
-    public String getLastLine(String file) throws FileNotFoundException, IOException {
-        RandomAccessFile fileHandler = null;
+    private void logSevere(Throwable ex, String format, Object... args) {
+        Applog.log(LOGGER, Level.SEVERE, this.requesterId, format, args, ex);
+    }
 
-        String filePath = String.format("files/%s/%s", owner.id, file);
+    /**
+     * Entry point for thread. Handles request, identifies requester and calls respective handler.
+     */
+    public Integer call() throws IOException, FileNotFoundException {
+        // Set once a pooled connection is handed to the peer thread pool, which closes it
+        boolean handedOff = false;
 
         try {
-            fileHandler = new RandomAccessFile(filePath, "r");
-            
-            long fileLength = fileHandler.length() - 1;
-            
-            StringBuilder sb = new StringBuilder();
-    
-            for(long filePointer = fileLength; filePointer != -1; filePointer--){
-                fileHandler.seek( filePointer );
+            Frame request = this.requesterChannel.recvRequest(false);
 
-                int readByte = fileHandler.readByte();
-    
-                if( readByte == 0xA ) {
-                    if( filePointer == fileLength ) {
-                        continue;
+            if (request == null) {
+                return 0;
+            }
+
+            if (!this.handshake(request.fields)) {
+                // Plain connection, serve requests one at a time until client disconnects
+                while (request != null) {
+                    this.requesterChannel.sendResponse(0, this.clientRequestHandler(request.fields));
+
+                    request = this.requesterChannel.recvRequest(false);
+                }
+            }
+            else if (this.requesterType.equals("SERVER")) {
+                // Pooled connections live as long as the peer, serve them outside the client thread pool
+                this.owner.peerService.execute(() -> {
+                    try {
+                        this.peerConnectionHandler();
                     }
-                    break;
-    
-                } else if( readByte == 0xD ) {
-                    if( filePointer == fileLength - 1 ) {
-                        continue;
+                    catch (IOException ex) {
+                        this.logInfo("pooled connection lost: %s", ex.getMessage());
                     }
-                    break;
-                }
-    
-                sb.append((char) readByte);
+                    finally {
+                        this.closeChannel();
+                    }
+                });
+
+                handedOff = true;
+            }
+            else {
+                this.pipelineConnectionHandler();
             }
-    
-            String lastLine = sb.reverse().toString();
 
-            return lastLine;
-        } 
+            return 1;
+        }
         finally {
-            if (fileHandler != null ) {
-                try {
-                    fileHandler.close();
-                } catch (IOException e) {
-                    /* ignore */
-                }
+            if (!handedOff) {
+                this.closeChannel();
             }
         }
     }
 
+    private void closeChannel() {
+        try {
+            this.requesterChannel.close();
+        }
+        catch (IOException ex) {
+            /* ignore */
+        }
+    }
+
     /**
-     * Entry point for thread. Handles request, identifies requester and calls respective handler.
+     * Identify requester from the first message received on a connection.
+     *
+     * @return true if the message opened a pooled server connection (SERVER:id:CONNECT) or a pipelined
+     * client connection (CLIENT:id:PIPELINE), false if it is a plain request to be handled
      */
-    public Integer call() throws IOException, FileNotFoundException {
-        String request = this.requesterChannel.recv();
-
-        String[] params = request.split(":");
+    public boolean handshake(String[] params) {
+        if (params.length < 3) {
+            return false;
+        }
 
         this.requesterType = params[0];
         this.requesterId = params[1];
-        String action = params[2];
-        String obj = params[3];
 
-        if (this.requesterType.equals("CLIENT")) {
-            this.logInfo(String.format("request from client with identifier %s", request));
+        if (this.requesterType.equals("SERVER") && params[2].equals("CONNECT")) {
+            this.logInfo("accepted pooled connection from file server");
 
-            String value;
-
-            if (action.equals("READ")) {
-                try {
-                    value = this.clientReadHandler(obj);
-  
-                    this.logInfo(String.format("server %s sends a successful ack to client %s", this.owner.id, this.requesterId));
-    
-                    // Send acknowledgement to client for successful task execution
-                    this.requesterChannel.send(String.format("ACK:%s", value));
-                }
-                catch (FileNotFoundException ex) {
-                    this.logInfo(String.format("ERR: Object %s not found %s", obj, ex.getMessage()));
-    
-                    this.requesterChannel.send(String.format("ERR: Object %s not found", obj));
-    
-                    return 0;
-                }
-                catch (IOException ex) {
-                    this.logInfo(String.format("ERR: Object %s could not be read %s", obj, ex.getMessage()));
-    
-                    this.requesterChannel.send(String.format("ERR: Object %s could not be read", obj));
-    
-                    return 0;
-                }
-                catch (Exception ex) {
-                    this.logSevere(ex.getMessage(), ex);
-    
-                    this.requesterChannel.send(String.format("ERR: %s", ex.getMessage()));
-    
-                    return 0;
-                }
-            }
-            else if (action.equals("WRITE")) {
-                try {
-                    this.clientWriteHandler(obj, params[4], Long.parseLong(params[5]), params[6].split(","));
-  
-                    this.logInfo(String.format("server %s sends a successful ack to client %s", this.owner.id, this.requesterId));
-    
-                    // Send acknowledgement to client for successful write to object
-                    this.requesterChannel.send("ACK");
-                }
-                catch (IOException ex) {
-                    this.logInfo(String.format("ERR: Object %s unable to write %s", obj, ex.getMessage()));
-    
-                    this.requesterChannel.send(String.format("ERR: Object %s unable to write", obj));
-    
-                    return 0;
-                }
-                catch (Exception ex) {
-                    this.logSevere(ex.getMessage(), ex);
-    
-                    this.requesterChannel.send(String.format("ERR: %s", ex.getMessage()));
-    
-                    return 0;
-                }
-            }
-            else if (action.equals("ABORT")) {
-                try {
-                    this.logInfo(String.format("server %s sends a successful abort ack to client %s", this.owner.id, this.requesterId));
-    
-                    // Send acknowledgement to client for successful write to object
-                    this.requesterChannel.send("ACK");
-                }
-                catch (Exception ex) {
-                    this.logSevere(ex.getMessage(), ex);
-    
-                    this.requesterChannel.send(String.format("ERR: %s", ex.getMessage()));
-    
-                    return 0;
-                }
-            }
+            return true;
         }
-        else if (this.requesterType.equals("SERVER")) {
-            this.logInfo(String.format("request from file server with identifier %s", request));
 
-            if (action.equals("VOTE")) {
-                try {
-                    this.serverVoteHandler(obj, params[4], Long.parseLong(params[5]));
-    
-                    this.logInfo(String.format("processed vote for request %s", request));
-                }
-                catch (Exception ex) {
-                    this.logSevere(
-                        String.format("ERR: %s Failed to handle vote request %s", ex.getMessage(), request), 
-                        ex
-                    );
+        if (this.requesterType.equals("CLIENT") && params[2].equals("PIPELINE")) {
+            this.logInfo("accepted pipelined connection from client");
 
-                    this.requesterChannel.send(String.format("ERR: %s", ex.getMessage()));
-    
-                    return 0;
-                }    
-            }
+            return true;
+        }
 
-            String response = this.requesterChannel.recv();
-            
-            if (response.equals("RELEASE")) {
-                try {
-                    this.serverReleaseHandler(obj, params[4], Long.parseLong(params[5]));
+        return false;
+    }
 
-                    this.logInfo(String.format("confirmed release for request %s", request));
-                }
-                catch (Exception ex) {
-                    this.logSevere(
-                        String.format("ERR: %s Failed to handle release request %s", ex.getMessage(), this.requesterId), 
-                        ex
-                    );
-    
-                    this.requesterChannel.send(String.format("ERR: %s", ex.getMessage()));
-    
-                    return 0;
-                } 
-            }
+    /**
+     * Handle a single request received from a client.
+     *
+     * @return response to send to client
+     */
+    public String clientRequestHandler(String[] params) {
+        if (params.length < 3) {
+            return "ERR: malformed request";
         }
 
-        return 1;
-    }
+        String action = params[2];
 
-    private String clientReadHandler(String obj) throws FileNotFoundException, IOException {
-        return getLastLine(obj);
-    }
+        if (!CLIENT_FIELDS.containsKey(action)) {
+            return String.format("ERR: unknown action %s", action);
+        }
 
-    private void clientWriteHandler(String obj, String value, long ts, String[] replicas) throws IOException, InterruptedException {
-        Task task = new Task(this.requesterId, this.owner.id, obj, value, ts);
+        if (params.length < CLIENT_FIELDS.get(action)) {
+            return String.format("ERR: %s request needs %s fields, got %s", action, CLIENT_FIELDS.get(action), params.length);
+        }
 
-        // Add task to queue
-        this.owner.objToTaskQueue.get(obj).add(task);
+        this.logInfo("request from client with identifier %s", params);
 
-        boolean executed = false;
+        if (action.equals("STATS")) {
+            return String.format("ACK:%s", Protocol.escape(this.owner.stats()));
+        }
+        else if (action.equals("MEMBERS")) {
+            return String.format("ACK:%s", this.owner.membership.members());
+        }
+        else if (action.equals("LEAVE")) {
+            LOGGER.info(String.format("leave of server %s requested by %s", params.length > 3 ? params[3] : null, this.requesterId));
 
-        // Keep trying until task succeeds
-        while (!executed) {
-            // Wait for task to reach head of queue
-            while (!this.owner.objToTaskQueue.get(obj).peek().equals(task)) {
-                Thread.sleep(10); // TODO: switch to wait-notify pattern
+            // Named explicitly, so that a request sent to the wrong address does not take a server out
+            if (params.length < 4 || !params[3].equals(this.owner.id)) {
+                return String.format("ERR: leave must name this server %s", this.owner.id);
             }
 
-            // Lock on object
-            synchronized(this.owner.objToLock.get(obj)) {
-                List<Channel> serverChnls = new ArrayList<>();
-
-                // Store task in locked variable for obj
-                this.owner.objToLockedTask.put(obj, task);
+            if (!this.owner.membership.status.equals(Membership.NORMAL)) {
+                return String.format("ERR: server %s is %s", this.owner.id, this.owner.membership.status);
+            }
 
-                // Send vote to replica servers
-                for (String serverId : replicas) {
-                    if (serverId.equals(this.owner.id)) continue; // Skip self from replica list
+            this.owner.rebalancer.leave();
 
-                    Node selectedServer = this.owner.idToServer.get(serverId);
+            return String.format("ACK:%s", Membership.LEAVING);
+        }
+        else if (action.equals("MREAD")) {
+            return this.clientMultiReadHandler(params[3].split(","));
+        }
+        else if (action.equals("MWRITE")) {
+            return this.clientMultiWriteHandler(Long.parseLong(params[3]), params[4].split(","));
+        }
 
-                    try {
-                        Channel chnl = new Channel(selectedServer.ip, selectedServer.port, selectedServer.id);
+        String obj = params[3];
 
-                        chnl.send(String.format("SERVER:%s:VOTE:%s:%s:%s", this.owner.id, obj, this.requesterId, ts));
+        if (!Server.isValidKey(obj)) {
+            return String.format("ERR: Object name %s is invalid", obj);
+        }
 
-                        serverChnls.add(chnl);
-                    }
-                    catch (IOException ex) {
-                        this.logInfo(String.format("failed to connect to server %s for voting task %s", selectedServer.id, task));
-                    }
-                }
+        if (action.equals("LREAD") && !this.holdsLease(obj)) {
+            // Reader falls back to a quorum read
+            return String.format("ERR: server %s holds no lease on object %s", this.owner.id, obj);
+        }
 
-                int voteCount = 0;
+        if (action.equals("READ") || action.equals("LREAD")) {
+            try {
+                Versioned value = this.clientReadHandler(obj);
 
-                boolean reject = false;
+                this.logInfo("server %s sends a successful ack to client %s", this.owner.id, this.requesterId);
 
-                // Wait for response from reachable replicas
-                for (Channel chnl : serverChnls) {
-                    String response = chnl.recv();
+                // Send value with its version, so that clients can pick the newest of many replicas
+                return String.format("ACK:%s:%s:%s", value.timestamp, value.ownerId, value.value);
+            }
+            catch (FileNotFoundException ex) {
+                this.logInfo("ERR: Object %s not found %s", obj, ex.getMessage());
 
-                    String[] params = response.split(":");
+                return String.format("ERR: Object %s not found", obj);
+            }
+            catch (IOException ex) {
+                this.logInfo("ERR: Object %s could not be read %s", obj, ex.getMessage());
 
-                    if (params[0].equals("ACK")) {
-                        if (params[1].equals("ACCEPT")) {
-                            voteCount++;
+                return String.format("ERR: Object %s could not be read", obj);
+            }
+            catch (Exception ex) {
+                this.logSevere(ex, "%s", ex.getMessage());
 
-                            this.logInfo(String.format("received accept from %s for task %s", chnl.id, task));
-                        }
-                        else if (params[1].equals("REJECT")) {
-                            reject = true;
+                return String.format("ERR: %s", ex.getMessage());
+            }
+        }
+        else if (action.equals("WRITE")) {
+            try {
+                this.clientWriteHandler(obj, params[4], Long.parseLong(params[5]), params[6].split(","));
 
-                            // TODO: log extra info received for reject
-                            this.logInfo(String.format("received reject from %s for task %s", chnl.id, task)); 
-                        }
-                    }
-                    else {
-                        this.logInfo(String.format("server %s failed to process vote for task %s", chnl.id, task));
-                    }
-                }
-                
-                // If anyone REJECT
-                if (reject) {
-                    this.logInfo(String.format("task %s rejected, exiting lock", task));
+                this.logInfo("server %s sends a successful ack to client %s", this.owner.id, this.requesterId);
 
-                    for (Channel chnl : serverChnls) {
-                        this.logInfo(String.format("sending reject ack for task %s", task));
+                // Send acknowledgement to client for successful write to object, with clock for client to merge
+                return String.format("ACK:%s", this.owner.clock.now());
+            }
+            catch (IOException ex) {
+                this.logInfo("ERR: Object %s unable to write %s", obj, ex.getMessage());
 
-                        chnl.send("ACK:REJECT");
-                    }
+                return String.format("ERR: Object %s unable to write", obj);
+            }
+            catch (Exception ex) {
+                this.logSevere(ex, "%s", ex.getMessage());
 
-                    // Unlock and retry. Note that retry happens by default until executed = true
-                    this.owner.objToLockedTask.remove(obj);
-                }
-                else if (voteCount >= 1) { // If enough replicas ACCEPT
-                    this.logInfo(String.format("task %s accepted, executing...", task));
+                return String.format("ERR: %s", ex.getMessage());
+            }
+        }
+        else if (action.equals("REPAIR")) {
+            try {
+                long ts = Long.parseLong(params[5]);
 
-                    // Perform write
-                    task.execute();
+                this.owner.clock.update(ts);
 
-                    // Remove task from queue
-                    this.owner.objToTaskQueue.get(obj).remove(task);
+                this.clientRepairHandler(obj, new Versioned(params[4], ts, params[6]));
 
-                    // Send release message to reachable replicas. TODO: Convert to multicast function (DRY)
-                    for (Channel chnl : serverChnls) {
-                        this.logInfo(String.format("sending release for task %s", task));
+                return "ACK";
+            }
+            catch (IOException ex) {
+                this.logInfo("ERR: Object %s unable to repair %s", obj, ex.getMessage());
 
-                        chnl.send("RELEASE");
-                    }
+                return String.format("ERR: Object %s unable to repair", obj);
+            }
+            catch (Exception ex) {
+                this.logSevere(ex, "%s", ex.getMessage());
 
-                    // Get Ack from all reachable replicas
-                    for (Channel chnl : serverChnls) {
-                        this.logInfo(String.format("waiting for release ack for task %s", task));
+                return String.format("ERR: %s", ex.getMessage());
+            }
+        }
+        else if (action.equals("ABORT")) {
+            this.logInfo("server %s sends a successful abort ack to client %s", this.owner.id, this.requesterId);
 
-                        String response = chnl.recv();
+            // Send acknowledgement to client for successful abort
+            return String.format("ACK:%s", this.owner.clock.now());
+        }
 
-                        if (!response.equals("ACK:RELEASE")) {
-                            this.logInfo(String.format("failed ack response from server %s", chnl.id));
-                        }
+        return String.format("ERR: unknown action %s", action);
+    }
 
-                        chnl.close();
+    /**
+     * Read many objects in one request. Response is ACK: followed by one comma separated item per object,
+     * +value for a read value or -message for a failed read, fields escaped with Protocol.escape.
+     */
+    private String clientMultiReadHandler(String[] objs) {
+        StringBuilder response = new StringBuilder("ACK:");
+
+        for (int i = 0; i < objs.length; i++) {
+            String obj = Protocol.unescape(objs[i]);
+
+            if (i > 0) response.append(',');
+
+            try {
+                if (!Server.isValidKey(obj)) {
+                    throw new IOException(String.format("Object name %s is invalid", obj));
+                }
+
+                response.append('+').append(Protocol.escape(this.clientReadHandler(obj).value));
+            }
+            catch (FileNotFoundException ex) {
+                response.append('-').append(Protocol.escape(String.format("Object %s not found", obj)));
+            }
+            catch (IOException ex) {
+                response.append('-').append(Protocol.escape(ex.getMessage()));
+            }
+        }
+
+        return response.toString();
+    }
+
+    /**
+     * Write many objects in one request, each entry is obj;value;replicas with escaped fields. Writes to
+     * different objects run concurrently. Response is ACK: followed by one comma separated item per
+     * entry, + for a successful write or -message for a failed one.
+     */
+    private String clientMultiWriteHandler(long ts, String[] entries) {
+        List<Future<String>> results = new ArrayList<Future<String>>();
+
+        for (String entry : entries) {
+            String[] fields = entry.split(";");
+
+            if (fields.length < 3) {
+                results.add(CompletableFuture.completedFuture("-" + Protocol.escape(String.format("malformed entry %s", entry))));
+
+                continue;
+            }
+
+            String obj = Protocol.unescape(fields[0]);
+            String value = Protocol.unescape(fields[1]);
+            String[] replicas = Protocol.unescape(fields[2]).split(",");
+
+            FutureTask<String> write = new FutureTask<String>(() -> {
+                try {
+                    if (!Server.isValidKey(obj)) {
+                        throw new IOException(String.format("Object name %s is invalid", obj));
                     }
 
+                    this.clientWriteHandler(obj, value, ts, replicas);
+
+                    return "+";
+                }
+                catch (Exception ex) {
+                    this.logInfo("ERR: Object %s unable to write %s", obj, ex.getMessage());
+
+                    return "-" + Protocol.escape(String.format("Object %s unable to write", obj));
+                }
+            });
+
+            try {
+                this.owner.workerService.execute(write);
+            }
+            catch (RejectedExecutionException ex) {
+                // Every worker busy, write on this thread instead of failing the entry
+                write.run();
+            }
+
+            results.add(write);
+        }
+
+        StringBuilder response = new StringBuilder("ACK:");
+
+        for (int i = 0; i < results.size(); i++) {
+            if (i > 0) response.append(',');
+
+            try {
+                response.append(results.get(i).get());
+            }
+            catch (InterruptedException | ExecutionException ex) {
+                response.append('-').append(Protocol.escape(ex.getMessage()));
+            }
+        }
+
+        return response.toString();
+    }
+
+    /**
+     * Serve a pipelined client connection until the client disconnects.
+     */
+    private void pipelineConnectionHandler() throws IOException {
+        Frame frame;
+
+        while ((frame = this.requesterChannel.recvRequest(true)) != null) {
+            this.pipelineRequestHandler(frame.requestId, frame.fields);
+        }
+
+        this.logInfo("pipelined connection closed by client");
+    }
+
+    /**
+     * Handle a request frame received on a pipelined client connection. Requests run concurrently and
+     * each response is sent tagged with its request id as soon as it completes. A request arriving while
+     * every worker is busy is answered with an error at once.
+     */
+    public void pipelineRequestHandler(long requestId, String[] params) {
+        try {
+            this.owner.workerService.execute(() -> {
+                String response;
+
+                try {
+                    response = this.clientRequestHandler(params);
+                }
+                catch (RuntimeException ex) {
+                    this.logSevere(ex, "ERR: failed to handle request %s", String.join(":", params));
+
+                    response = String.format("ERR: %s", ex.getMessage());
+                }
+
+                this.respond(requestId, response);
+            });
+        }
+        catch (RejectedExecutionException ex) {
+            this.owner.metrics.increment("requests.refused");
+
+            this.respond(requestId, String.format("ERR: server %s busy", this.owner.id));
+        }
+    }
+
+    /**
+     * Send response to a pipelined request, a client gone meanwhile is only logged
+     */
+    private void respond(long requestId, String response) {
+        try {
+            this.requesterChannel.sendResponse(requestId, response);
+        }
+        catch (IOException ex) {
+            this.logInfo("failed to send response %s: %s", response, ex.getMessage());
+        }
+    }
+
+    /**
+     * Serve requests multiplexed over a pooled server connection until the peer disconnects.
+     */
+    private void peerConnectionHandler() throws IOException {
+        Frame frame;
+
+        while ((frame = this.requesterChannel.recvRequest(true)) != null) {
+            this.peerRequestHandler(frame.requestId, frame.fields);
+        }
+
+        this.logInfo("pooled connection closed by file server");
+    }
+
+    /**
+     * Handle a request frame received on a pooled server connection. The response is sent, tagged with
+     * the request id, once the request completes. No thread is held while a vote or release waits.
+     */
+    public void peerRequestHandler(long requestId, String[] params) {
+        this.serverRequestHandler(params).thenAccept(response -> {
+            try {
+                this.requesterChannel.sendResponse(requestId, response);
+            }
+            catch (IOException ex) {
+                this.logInfo("failed to send response %s: %s", response, ex.getMessage());
+            }
+        });
+    }
+
+    /**
+     * Handle a single request received from another server.
+     *
+     * @return future completed with the response to send back
+     */
+    private CompletableFuture<String> serverRequestHandler(String[] params) {
+        String action = params[2];
+
+        if (action.equals("PING")) {
+            return CompletableFuture.completedFuture("ACK:PONG");
+        }
+
+        this.logInfo("request from file server with identifier %s", params);
+
+        String obj = params[3];
+
+        CompletableFuture<String> response;
+
+        try {
+            // VOTE, RELEASE and REJECT carry the timestamp of the task
+            if (params.length > 5) {
+                this.owner.clock.update(Long.parseLong(params[5]));
+            }
+
+            // While a key is leased only its leaseholder may vote on it or replicate to it. Keys are never
+            // leased in vote mode, skip hashing the key then
+            boolean leaseChecked = this.owner.leaseMode && (action.equals("VOTE") || action.equals("REPLICATE"));
+
+            String holder = leaseChecked ? this.leaseholderOf(obj) : null;
+
+            if (holder != null && !holder.equals(params[1])) {
+                this.owner.metrics.increment("lease.refused");
+
+                response = CompletableFuture.completedFuture(String.format("ERR: object %s is leased to %s", obj, holder));
+            }
+            else if (action.equals("VOTE")) {
+                response = this.serverVoteHandler(obj, params[1], params[4], Long.parseLong(params[5]), batchOf(params))
+                    .thenApply(vote -> {
+                        this.logInfo("processed vote for request %s", params);
+
+                        return vote;
+                    });
+            }
+            else if (action.equals("RELEASE")) {
+                response = this.serverReleaseHandler(obj, params[1], params[4], Long.parseLong(params[5]), batchOf(params))
+                    .thenApply(release -> {
+                        this.logInfo("confirmed release for request %s", params);
+
+                        return release;
+                    });
+            }
+            else if (action.equals("LEASE")) {
+                response = CompletableFuture.completedFuture(
+                    this.owner.leases.grant(obj, params[1]) ? "ACK:GRANTED" : "ACK:DENIED"
+                );
+            }
+            else if (action.equals("REPLICATE")) {
+                // Off the connection thread, as the write waits for the write-ahead log
+                response = CompletableFuture.supplyAsync(() -> {
+                    try {
+                        return this.serverReplicateHandler(obj, params[4], Long.parseLong(params[5]), Long.parseLong(params[6]), params[7]);
+                    }
+                    catch (IOException ex) {
+                        throw new CompletionException(ex);
+                    }
+                }, this.owner.workerService);
+            }
+            else if (action.equals("TREE") || action.equals("ENTRIES") || action.equals("FETCH")) {
+                // Off the connection thread, as building a tree is rate limited
+                response = CompletableFuture.supplyAsync(() -> {
+                    try {
+                        if (action.equals("TREE")) {
+                            return this.owner.antiEntropy.treeHandler(params[1], Integer.parseInt(params[3]), params[4]);
+                        }
+
+                        if (action.equals("ENTRIES")) {
+                            return this.owner.antiEntropy.entriesHandler(params[1], params[3]);
+                        }
+
+                        return this.owner.antiEntropy.fetchHandler(params[3]);
+                    }
+                    catch (InterruptedException ex) {
+                        throw new CompletionException(ex);
+                    }
+                }, this.owner.workerService);
+            }
+            else if (action.equals("GOSSIP")) {
+                response = CompletableFuture.completedFuture(this.owner.membership.gossipHandler(params[3]));
+            }
+            else if (action.equals("HINTS")) {
+                response = CompletableFuture.supplyAsync(() -> {
+                    try {
+                        return this.serverHintsHandler(params[3]);
+                    }
+                    catch (IOException ex) {
+                        throw new CompletionException(ex);
+                    }
+                }, this.owner.workerService);
+            }
+            else if (action.equals("REJECT")) {
+                this.logInfo("received reject ack for request %s", params);
+
+                this.serverRejectHandler(obj, params[1], params[4], Long.parseLong(params[5]));
+
+                response = CompletableFuture.completedFuture("ACK:REJECT");
+            }
+            else {
+                response = CompletableFuture.completedFuture(String.format("ERR: unknown action %s", action));
+            }
+        }
+        catch (Exception ex) {
+            response = CompletableFuture.failedFuture(ex);
+        }
+
+        return response.exceptionally(ex -> {
+            this.logSevere(ex, "ERR: %s Failed to handle %s request %s", ex.getMessage(), action, params);
+
+            return String.format("ERR: %s", ex.getMessage());
+        });
+    }
+
+    private Versioned clientReadHandler(String obj) throws FileNotFoundException, IOException {
+        return this.owner.storage.read(obj);
+    }
+
+    /**
+     * Server holding a live lease on the range of obj, this server or one it granted the lease to, null
+     * if none does
+     */
+    private String leaseholderOf(String obj) {
+        long position = HashRing.hash(obj);
+
+        if (this.owner.leases.holdsAt(position)) {
+            return this.owner.id;
+        }
+
+        return this.owner.leases.holderAt(position);
+    }
+
+    /**
+     * @return true if this server holds the lease on the range of obj, so it has every acknowledged write
+     */
+    private boolean holdsLease(String obj) {
+        HashRing ring = this.owner.ring;
+
+        return this.owner.leaseMode && this.owner.leases.isHeld(LeaseTable.rangeId(ring.rangeFor(obj)), ring.replicasFor(obj));
+    }
+
+    /**
+     * Store a newer version of obj found on other replicas by a quorum read. Applied directly rather than
+     * through a write round, storage ignores it if this server already has the version or a newer one.
+     */
+    private void clientRepairHandler(String obj, Versioned value) throws IOException {
+        if (this.owner.storage.append(obj, value)) {
+            this.logInfo("repaired object %s to version %s", obj, value);
+
+            this.owner.metrics.increment("read.repairs");
+        }
+    }
+
+    private void clientWriteHandler(String obj, String value, long ts, String[] replicas) throws IOException, InterruptedException {
+        // The timestamp versions the stored value and identifies the task on every replica, so it cannot be
+        // clamped here. A client clock far ahead would make its writes win over every later one, refuse them
+        if (HybridClock.isTooFarAhead(ts)) {
+            this.owner.metrics.increment("write.future_ts");
+
+            throw new IOException(String.format("timestamp of write to %s is more than %s ms ahead", obj, HybridClock.MAX_DRIFT_MS));
+        }
+
+        this.owner.clock.update(ts);
+
+        Task task = new Task(this.requesterId, this.owner.id, obj, value, ts);
+
+        try {
+            this.writeTask(task, replicas);
+        }
+        finally {
+            // Tasks committed after this one in a batch are answered once this one is
+            task.answered.complete(null);
+        }
+    }
+
+    private void writeTask(Task task, String[] replicas) throws IOException, InterruptedException {
+        String obj = task.fileName;
+
+        KeyState state = this.owner.acquireKey(obj);
+
+        try {
+            // In lease mode the primary of the key sequences the write, unless the client could not reach it
+            String leader = this.owner.leaseMode ? this.owner.ring.replicasFor(obj).get(0) : null;
+
+            if (leader != null && Arrays.asList(replicas).contains(leader)) {
+                if (leader.equals(this.owner.id)) {
+                    this.leaseWrite(state, task, replicas);
+                }
+                else {
+                    this.followWrite(state, task, leader);
+                }
+            }
+            else {
+                this.executeTask(state, task, replicas);
+            }
+        }
+        finally {
+            this.owner.releaseKey(obj);
+        }
+
+        // Replicas the client could not reach missed the write. The first replica it reached keeps the hints
+        if (replicas[0].equals(this.owner.id)) {
+            for (String serverId : this.owner.targetRing().replicasFor(obj)) {
+                if (Arrays.asList(replicas).contains(serverId)) continue;
+
+                try {
+                    this.owner.hints.add(serverId, obj);
+                }
+                catch (IOException ex) {
+                    // Write succeeded, anti-entropy still repairs the replica
+                    this.logInfo("failed to store hint for %s on object %s: %s", serverId, obj, ex.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * @return true if task was committed in the batch of another task and that round has finished
+     */
+    private boolean isCoalesced(KeyState state, Task task) {
+        return !state.lockedBatch.contains(task) && this.owner.wasExecuted(task.fileName, task);
+    }
+
+    /**
+     * Leaseholder side of a lease mode write. The write is given a version after every write sequenced
+     * here before it and sent to followers, in version order for each key as sends happen under the lock
+     * of the key. Completes once a majority of replicas stored it, without any vote round.
+     */
+    private void leaseWrite(KeyState state, Task task, String[] replicas) throws IOException, InterruptedException {
+        String obj = task.fileName;
+
+        if (!this.acquireLease(LeaseTable.rangeId(this.owner.ring.rangeFor(obj)), this.owner.ring.replicasFor(obj))) {
+            throw new IOException(String.format("server %s holds no lease on the range of %s", this.owner.id, obj));
+        }
+
+        Map<String, CompletableFuture<String>> serverAcks = new LinkedHashMap<>();
+
+        Versioned value;
+
+        synchronized (state.lock) {
+            value = new Versioned(task.message, this.owner.clock.update(task.timestamp), task.ownerId);
+
+            for (String serverId : replicas) {
+                if (serverId.equals(this.owner.id)) continue; // Skip self from replica list
+
+                serverAcks.put(
+                    serverId,
+                    this.owner.peerPool.request(
+                        serverId,
+                        Server.VOTE_TIMEOUT_MS,
+                        "SERVER", this.owner.id, "REPLICATE", obj, task.ownerId, Long.toString(task.timestamp), Long.toString(value.timestamp), value.value
+                    )
+                );
+            }
+        }
+
+        long executing = System.nanoTime();
+
+        this.owner.storage.append(obj, value);
+
+        this.owner.metrics.recordSince("task.execute_us", executing);
+
+        // This server stored the write already and counts towards the majority
+        if (!this.tally(task, serverAcks, "ACK:REPLICATED", replicas.length / 2 + 1).join().equals("ACCEPT")) {
+            throw new IOException(String.format("task %s not replicated to a majority", task));
+        }
+
+        this.owner.metrics.increment("write.leased");
+    }
+
+    /**
+     * Follower side of a lease mode write, wait until the leaseholder replicated the task here
+     */
+    private void followWrite(KeyState state, Task task, String leader) throws IOException, InterruptedException {
+        CompletableFuture<String> replicated = state.event.when(() -> this.owner.wasExecuted(task.fileName, task) ? "ACK" : null);
+
+        try {
+            replicated.get(LeaseTable.LEASE_MS, TimeUnit.MILLISECONDS);
+        }
+        catch (TimeoutException ex) {
+            replicated.cancel(false);
+
+            throw new IOException(String.format("leaseholder %s did not replicate task %s", leader, task));
+        }
+        catch (ExecutionException ex) {
+            throw new IOException(ex.getCause());
+        }
+    }
+
+    /**
+     * Make sure this server holds the lease on a range, asking every other server for it when it is
+     * missing or half expired. Grants arriving after the wait still count towards the lease.
+     *
+     * @param rangeId range of the key being written, see LeaseTable
+     * @param replicas replicas of the key being written
+     * @return true if lease is held
+     */
+    private boolean acquireLease(String rangeId, List<String> replicas) throws InterruptedException {
+        LeaseTable leases = this.owner.leases;
+
+        if (leases.isHeld(rangeId, replicas) && !leases.needsRenewal(rangeId)) {
+            return true;
+        }
+
+        synchronized (leases.renewal(rangeId)) {
+            if (leases.isHeld(rangeId, replicas) && !leases.needsRenewal(rangeId)) {
+                return true;
+            }
+
+            long askedAt = System.nanoTime();
+
+            Set<String> granters = ConcurrentHashMap.newKeySet();
+
+            List<CompletableFuture<Void>> grants = new ArrayList<>();
+
+            for (String serverId : this.owner.idToServer.keySet()) {
+                grants.add(
+                    this.owner.peerPool.request(serverId, Server.VOTE_TIMEOUT_MS, "SERVER", this.owner.id, "LEASE", rangeId)
+                        .thenAccept(response -> {
+                            if (response.equals("ACK:GRANTED")) {
+                                granters.add(serverId);
+                            }
+                        })
+                );
+            }
+
+            // Wait a fraction of the lease only, an unreachable server must not use it up
+            try {
+                CompletableFuture.allOf(grants.toArray(new CompletableFuture<?>[0])).get(LeaseTable.LEASE_MS / 4, TimeUnit.MILLISECONDS);
+            }
+            catch (ExecutionException | TimeoutException ex) {
+                this.logInfo("lease request not granted by every server: %s", ex);
+            }
+
+            leases.hold(rangeId, askedAt, granters);
+
+            this.owner.metrics.increment("lease.renewals");
+
+            return leases.isHeld(rangeId, replicas);
+        }
+    }
+
+    /**
+     * Store a write sequenced by the leaseholder and wake the client request waiting for it
+     */
+    private String serverReplicateHandler(String obj, String taskOwner, long ts, long version, String value) throws IOException {
+        this.owner.storage.append(obj, new Versioned(value, version, taskOwner));
+
+        KeyState state = this.owner.acquireKey(obj);
+
+        this.owner.markExecuted(obj, new Task(taskOwner, null, null, null, ts));
+
+        state.event.signal();
+
+        this.owner.releaseKey(obj);
+
+        return "ACK:REPLICATED";
+    }
+
+    /**
+     * Store values of writes this server missed, handed off by the server that kept hints for them.
+     * Values not newer than the stored one are ignored.
+     */
+    private String serverHintsHandler(String entries) throws IOException {
+        int applied = 0;
+
+        for (String entry : entries.split(",")) {
+            String[] fields = entry.split(";");
+
+            Versioned value = new Versioned(Protocol.unescape(fields[3]), Long.parseLong(fields[1]), Protocol.unescape(fields[2]));
+
+            this.owner.clock.update(value.timestamp);
+
+            if (this.owner.storage.append(Protocol.unescape(fields[0]), value)) {
+                this.owner.metrics.increment("hints.applied");
+
+                applied++;
+            }
+        }
+
+        this.logInfo("applied %s handed off writes", applied);
+
+        return String.format("ACK:%s", applied);
+    }
+
+    /**
+     * Queue task and run vote rounds with replicas until it is executed.
+     */
+    private void executeTask(KeyState state, Task task, String[] replicas) throws IOException, InterruptedException {
+        // Add task to queue
+        state.enqueue(task);
+
+        this.owner.metrics.record("queue.depth", state.taskQueue.size());
+
+        boolean executed = false;
+
+        try {
+            this.voteRounds(state, task, replicas);
+
+            executed = true;
+        }
+        finally {
+            // Do not leave a failed task blocking the queue
+            if (!executed) {
+                if (task.equals(state.lockedTask)) {
+                    state.unlock();
+                }
+
+                state.dequeue(task);
+            }
+        }
+    }
+
+    private void voteRounds(KeyState state, Task task, String[] replicas) throws IOException, InterruptedException {
+        String obj = task.fileName;
+        long ts = task.timestamp;
+
+        boolean executed = false;
+
+        long enqueued = System.nanoTime();
+
+        // Set while this task holds the lock on obj, rounds without a decision keep the lock
+        long locked = 0;
+
+        // Rounds in a row without a decision
+        int undecided = 0;
+
+        // Set after a round without a decision or a rejected one, possibly as a replica lacks a task of the
+        // batch or holds one the batch skips. Two replicas rejecting each other's batch must not retry forever
+        boolean alone = false;
+
+        // Keep trying until task succeeds
+        while (!executed) {
+            // Wait for task to reach head of queue, or to be committed in the batch of an earlier task
+            state.event.await(() -> task.equals(state.taskQueue.peek()) || this.isCoalesced(state, task));
+
+            if (this.isCoalesced(state, task)) {
+                this.owner.metrics.increment("write.coalesced");
+
+                // Answer writers of a batch in batch order, the first one once its round finished
+                CompletableFuture<Void> previous = task.previous;
+
+                if (previous != null) {
+                    previous.join();
+                }
+
+                if (task.superseded) {
+                    throw new IOException(String.format("task %s is older than the stored version of %s", task, obj));
+                }
+
+                return;
+            }
+
+            if (enqueued != 0) {
+                this.owner.metrics.recordSince("queue.wait_us", enqueued);
+
+                // Give writes arriving shortly after this one a chance to join its batch
+                long remaining = enqueued + TimeUnit.MILLISECONDS.toNanos(Server.COALESCE_WINDOW_MS) - System.nanoTime();
+
+                enqueued = 0;
+
+                if (remaining > 0) {
+                    TimeUnit.NANOSECONDS.sleep(remaining);
+
+                    continue; // An earlier task may have arrived meanwhile
+                }
+            }
+
+            long backoffMs = 0;
+
+            // Lock on object
+            synchronized(state.lock) {
+                Map<String, CompletableFuture<String>> serverVotes = new LinkedHashMap<>();
+
+                // Store task in locked variable for obj, with the tasks behind it committed in the same round
+                List<Task> batch = state.batch(task, alone ? 1 : Server.COALESCE_MAX);
+
+                // Replicas vote on the whole batch, so that none of its tasks skips a write they have queued
+                String members = batch.size() > 1 ? Task.encodeAll(batch.subList(1, batch.size())) : null;
+
+                state.lock(task, batch);
+
+                if (locked == 0) {
+                    locked = System.nanoTime();
+                }
+
+                // Send vote to every replica server at once, connecting in the background where needed
+                for (String serverId : replicas) {
+                    if (serverId.equals(this.owner.id)) continue; // Skip self from replica list
+
+                    long sent = System.nanoTime();
+
+                    serverVotes.put(
+                        serverId,
+                        this.owner.peerPool.request(serverId, Server.VOTE_TIMEOUT_MS, this.roundRequest("VOTE", task, members))
+                            .whenComplete((r, ex) -> this.owner.metrics.recordSince(this.owner.peerPool.rttMetric(serverId), sent))
+                    );
+                }
+
+                // Majority of replicas, this server accepts its own task and counts as one
+                int quorum = replicas.length / 2 + 1;
+
+                // Decide as soon as a quorum accepted or anyone rejected, without waiting for slower replicas
+                String decision = this.tally(task, serverVotes, "ACK:ACCEPT", quorum).join();
+
+                // If anyone REJECT
+                if (decision.equals("REJECT")) {
+                    this.logInfo("task %s rejected, exiting lock", task);
+
+                    // Replicas still deciding drop their vote on REJECT
+                    for (String serverId : serverVotes.keySet()) {
+                        this.logInfo("sending reject ack for task %s", task);
+
+                        this.owner.peerPool.request(serverId, Server.VOTE_TIMEOUT_MS, "SERVER", this.owner.id, "REJECT", obj, this.requesterId, Long.toString(ts));
+                    }
+
+                    // Unlock and retry. Note that retry happens by default until executed = true
+                    state.unlock();
+
+                    this.owner.metrics.recordSince("lock.hold_us", locked);
+                    this.owner.metrics.increment("write.rejects");
+
+                    locked = 0;
+                    undecided = 0;
+                    alone = true;
+                }
+                else if (decision.equals("ACCEPT")) { // If enough replicas ACCEPT
+                    this.logInfo("task %s accepted, executing...", task);
+
+                    // Perform writes of batch in timestamp order with one append. The append drops tasks older
+                    // than the version stored, as anti-entropy may have stored a newer one meanwhile, fail them
+                    long executing = System.nanoTime();
+
+                    this.executeBatch(state, batch);
+
+                    this.owner.metrics.recordSince("task.execute_us", executing);
+                    this.owner.metrics.record("batch.size", batch.size());
+
+                    for (int i = 1; i < batch.size(); i++) {
+                        batch.get(i).previous = batch.get(i - 1).answered;
+                    }
+
+                    for (Task batched : batch) {
+                        this.owner.markExecuted(obj, batched);
+                    }
+
+                    // Remove batch from queue, its other tasks return once the lock is released
+                    state.dequeue(batch);
+
+                    Map<String, CompletableFuture<String>> serverReleases = new LinkedHashMap<>();
+
+                    // Send release message to every replica voted, including those that did not answer yet
+                    for (String serverId : serverVotes.keySet()) {
+                        this.logInfo("sending release for task %s", task);
+
+                        serverReleases.put(
+                            serverId,
+                            this.owner.peerPool.request(serverId, Server.VOTE_TIMEOUT_MS, this.roundRequest("RELEASE", task, members))
+                        );
+                    }
+
+                    // Hold the lock until a quorum acknowledged release or the rest missed their deadline
+                    this.logInfo("waiting for release ack for task %s", task);
+
+                    this.tally(task, serverReleases, "ACK:RELEASE", quorum).join();
+
                     // Release lock
-                    this.owner.objToLockedTask.remove(obj);
+                    state.unlock();
+
+                    this.owner.metrics.recordSince("lock.hold_us", locked);
+                    this.owner.metrics.increment("write.executed");
 
                     // Task completed, exit retry loop
                     executed = true;
+
+                    if (task.superseded) {
+                        throw new IOException(String.format("task %s is older than the stored version of %s", task, obj));
+                    }
+                }
+                else if (++undecided > Server.VOTE_RETRIES) {
+                    // Replicas unreachable for too long, stop waiting on votes and fail the write. The lock is
+                    // released as the task leaves the queue, see executeTask
+                    for (String serverId : serverVotes.keySet()) {
+                        this.owner.peerPool.request(serverId, Server.VOTE_TIMEOUT_MS, "SERVER", this.owner.id, "REJECT", obj, this.requesterId, Long.toString(ts));
+                    }
+
+                    this.owner.metrics.recordSince("lock.hold_us", locked);
+                    this.owner.metrics.increment("write.unreachable");
+
+                    throw new IOException(String.format("no quorum for task %s after %s rounds", task, undecided));
+                }
+                else {
+                    // No quorum reachable, keep lock and vote again after a backoff
+                    this.owner.metrics.increment("write.retries");
+
+                    alone = true;
+
+                    backoffMs = Math.min(Server.VOTE_TIMEOUT_MS, Server.VOTE_BACKOFF_MS << (undecided - 1));
                 }
             }
+
+            if (backoffMs > 0) {
+                TimeUnit.MILLISECONDS.sleep(backoffMs);
+            }
+        }
+    }
+
+    /**
+     * Store tasks of batch in timestamp order with one append, marking the tasks the append dropped as
+     * superseded. Stored tasks are newer than every dropped one, so the dropped ones are the oldest.
+     */
+    private void executeBatch(KeyState state, List<Task> batch) throws IOException {
+        List<Task> ordered = new ArrayList<Task>(batch);
+
+        ordered.sort(state.taskQueue.comparator());
+
+        int appended = Task.executeAll(this.owner.storage, ordered);
+
+        for (Task dropped : ordered.subList(0, ordered.size() - appended)) {
+            dropped.superseded = true;
+
+            this.owner.metrics.increment("write.superseded");
         }
     }
 
-    private void serverVoteHandler(String obj, String taskOwner, long ts) throws InterruptedException {
+    /**
+     * Fields of a VOTE or RELEASE for task, followed by the other tasks of its batch if any
+     */
+    private String[] roundRequest(String action, Task task, String members) {
+        String ts = Long.toString(task.timestamp);
+
+        return members == null
+            ? new String[] { "SERVER", this.owner.id, action, task.fileName, this.requesterId, ts }
+            : new String[] { "SERVER", this.owner.id, action, task.fileName, this.requesterId, ts, members };
+    }
+
+    /**
+     * Tasks committed along with the task of a VOTE or RELEASE, empty if it carries none
+     */
+    private static List<Task> batchOf(String[] params) {
+        return params.length > 6 ? Task.decodeAll(params[6]) : Collections.<Task>emptyList();
+    }
+
+    /**
+     * Count responses of replicas as they arrive.
+     *
+     * @param ack response counted towards the quorum
+     * @param quorum number of replicas that must ack, counting this server as one
+     * @return future completed with ACCEPT once quorum replicas acked, REJECT on an ACK:REJECT before
+     *  that, or NONE if every replica answered or missed its deadline without either
+     */
+    private CompletableFuture<String> tally(Task task, Map<String, CompletableFuture<String>> responses, String ack, int quorum) {
+        CompletableFuture<String> decision = new CompletableFuture<String>();
+
+        AtomicInteger acks = new AtomicInteger(1); // This server
+        AtomicInteger remaining = new AtomicInteger(responses.size());
+
+        if (acks.get() >= quorum) {
+            decision.complete("ACCEPT");
+        }
+        else if (responses.isEmpty()) {
+            decision.complete("NONE");
+        }
+
+        for (Map.Entry<String, CompletableFuture<String>> entry : responses.entrySet()) {
+            String serverId = entry.getKey();
+
+            entry.getValue().whenComplete((response, ex) -> {
+                if (ex != null) {
+                    this.logInfo("no response from server %s for task %s: %s", serverId, task, ex);
+                }
+                else if (response.equals(ack)) {
+                    this.logInfo("received %s from %s for task %s", response, serverId, task);
+
+                    if (acks.incrementAndGet() >= quorum) {
+                        decision.complete("ACCEPT");
+                    }
+                }
+                else if (response.equals("ACK:REJECT")) {
+                    // TODO: log extra info received for reject
+                    this.logInfo("received reject from %s for task %s", serverId, task);
+
+                    decision.complete("REJECT");
+                }
+                else {
+                    this.logInfo("failed response %s from server %s for task %s", response, serverId, task);
+                }
+
+                if (remaining.decrementAndGet() == 0) {
+                    decision.complete("NONE");
+                }
+            });
+        }
+
+        return decision;
+    }
+
+    /**
+     * @param serverId server running the vote round
+     * @param batch tasks committed along with the task in the same round
+     */
+    private CompletableFuture<String> serverVoteHandler(String obj, String serverId, String taskOwner, long ts, List<Task> batch) {
         Task voteTask = new Task(taskOwner, null, null, null, ts);
 
-        // Loop until ACCEPT or REJECT
-        while (true) {
-            // Get locked task
-            Task lockedTask = this.owner.objToLockedTask.get(obj);
+        KeyState state = this.owner.acquireKey(obj);
 
-            // Check if locked task is null, then sleep and try again
-            if (lockedTask == null) {
-                Thread.sleep(10);
+        // Decide ACCEPT or REJECT, re-checking whenever the locked task or queue of obj changes
+        CompletableFuture<String> vote = state.event.when(() -> {
+            String decision = this.voteDecision(obj, state, voteTask);
 
-                continue;
-            }
+            return decision != null && decision.equals("ACK:ACCEPT") && !batch.isEmpty()
+                ? this.batchDecision(obj, state, voteTask, batch)
+                : decision;
+        });
 
-            // Check if locked task same as task being voted, if yes send ACK:ACCEPT
-            if (lockedTask.equals(voteTask)) {
-                this.logInfo(String.format("accepting vote for task %s", voteTask));
+        // A server that died never sends REJECT or RELEASE. Past the deadline it stopped waiting for the
+        // vote anyway, drop it so that obj is not held forever
+        vote.completeOnTimeout("ACK:EXPIRED", Server.VOTE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
 
-                this.requesterChannel.send("ACK:ACCEPT");
+        // Tracked so that a REJECT or RELEASE of the same server for the task answers it if that server stops waiting
+        state.addVote(serverId, taskOwner, ts, vote);
 
-                break;
-            }
+        vote.whenComplete((response, ex) -> this.owner.releaseKey(obj));
+
+        return vote;
+    }
+
+    /**
+     * Voter rejected its round for a task, answer any vote on it still waiting here
+     */
+    private void serverRejectHandler(String obj, String serverId, String taskOwner, long ts) {
+        KeyState state = this.owner.acquireKey(obj);
+
+        state.cancelVote(serverId, taskOwner, ts);
+
+        this.owner.releaseKey(obj);
+    }
 
-            // Check if task being voted is behind earliest task in queue, if yes send ACK:REJECT
-            Task earliestTask = this.owner.objToTaskQueue.get(obj).peek();
+    /**
+     * Decide vote for a task based on current state of obj.
+     *
+     * @return ACK:ACCEPT or ACK:REJECT, null if vote cannot be decided yet
+     */
+    private String voteDecision(String obj, KeyState state, Task voteTask) {
+        // Task already executed here after a quorum accepted it, voter is catching up
+        if (this.owner.wasExecuted(obj, voteTask)) {
+            this.logInfo("accepting vote for executed task %s", voteTask);
+
+            return "ACK:ACCEPT";
+        }
+
+        // Get locked task
+        Task lockedTask = state.lockedTask;
+
+        // Check if locked task is null, then wait for it to change
+        if (lockedTask == null) {
+            return null;
+        }
 
-            if (earliestTask == null ||
-                earliestTask.timestamp < voteTask.timestamp || 
-               (earliestTask.timestamp == voteTask.timestamp && earliestTask.ownerId.compareTo(voteTask.ownerId) < 0)) {
+        // Check if locked task, or a task committed with it, same as task being voted, if yes send ACK:ACCEPT
+        if (lockedTask.equals(voteTask) || state.lockedBatch.contains(voteTask)) {
+            this.logInfo("accepting vote for task %s", voteTask);
+
+            return "ACK:ACCEPT";
+        }
+
+        // Check if task being voted is behind earliest task in queue, if yes send ACK:REJECT
+        Task earliestTask = state.taskQueue.peek();
+
+        if (earliestTask == null ||
+            earliestTask.timestamp < voteTask.timestamp || 
+           (earliestTask.timestamp == voteTask.timestamp && earliestTask.ownerId.compareTo(voteTask.ownerId) < 0)) {
+        
+            this.logInfo("rejecting vote for task %s", voteTask);
             
-                this.logInfo(String.format("rejecting vote for task %s", voteTask));
-                
-                this.requesterChannel.send("ACK:REJECT"); 
+            return "ACK:REJECT";
+        }
+
+        // Wait hoping that locked task becomes same as task being voted
+        return null;
+    }
 
-                break;
+    /**
+     * Decide vote for the tasks committed along with an accepted task. Every one must be queued here, or
+     * executed already, and no task queued here may be skipped by the batch.
+     *
+     * @param batch tasks after head, in queue order
+     * @return ACK:ACCEPT or ACK:REJECT, null if a task of the batch has not arrived here yet
+     */
+    private String batchDecision(String obj, KeyState state, Task head, List<Task> batch) {
+        for (Task member : batch) {
+            if (!state.taskQueue.contains(member) && !this.owner.wasExecuted(obj, member)) {
+                return null;
             }
+        }
 
-            // Sleep and try again hoping that locked task is same as task being voted
-            Thread.sleep(10);
+        Task last = batch.get(batch.size() - 1);
+
+        for (Task queued : state.taskQueue) {
+            if (state.taskQueue.comparator().compare(queued, last) < 0 && !queued.equals(head) && !batch.contains(queued)) {
+                this.logInfo("rejecting batch of task %s skipping task %s", head, queued);
+
+                return "ACK:REJECT";
+            }
         }
+
+        return "ACK:ACCEPT";
     }
 
-    private void serverReleaseHandler(String obj, String taskOwner, long ts) {
+    /**
+     * @param batch tasks committed along with the released task, released once none of them is queued
+     */
+    private CompletableFuture<String> serverReleaseHandler(String obj, String serverId, String taskOwner, long ts, List<Task> batch) {
         Task releaseTask = new Task(taskOwner, null, null, null, ts);
 
-        this.logInfo(String.format("Releasing request for task %s", releaseTask));
+        this.logInfo("Releasing request for task %s", releaseTask);
 
-        // Loop until released task not present in queue
-        while (this.owner.objToTaskQueue.get(obj).contains(releaseTask)) continue;
+        KeyState state = this.owner.acquireKey(obj);
 
-        this.logInfo(String.format("Sending release ack for task %s", releaseTask));
-        
-        // Send ACK
-        this.requesterChannel.send("ACK:RELEASE");
+        // Voter decided without this server, a vote on the task still waiting is no longer needed
+        state.cancelVote(serverId, taskOwner, ts);
+
+        // Complete once released task not present in queue
+        CompletableFuture<String> release = state.event.when(() -> {
+            if (state.taskQueue.contains(releaseTask)) {
+                return null;
+            }
+
+            for (Task member : batch) {
+                if (state.taskQueue.contains(member)) return null;
+            }
+
+            this.logInfo("Sending release ack for task %s", releaseTask);
+
+            return "ACK:RELEASE";
+        });
+
+        release.whenComplete((response, ex) -> this.owner.releaseKey(obj));
+
+        return release;
     }
-}
\ No newline at end of file
+}
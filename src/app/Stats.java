@@ -0,0 +1,36 @@
+package app;
+
+import java.security.InvalidParameterException;
+
+/**
+ * Print metrics of a running server, fetched with the STATS command.
+ */
+public class Stats {
+    /**
+     * @param args[0] ip of server
+     * @param args[1] port of server
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            throw new InvalidParameterException("required parameters <ip> <port>");
+        }
+
+        Channel chnl = new Channel(args[0], Integer.parseInt(args[1]));
+
+        chnl.sendRequest(0, "CLIENT", "stats", "STATS");
+
+        String response = chnl.recvResponse();
+
+        chnl.close();
+
+        String[] params = response.split(":", 2);
+
+        if (!params[0].equals("ACK")) {
+            System.err.println(response);
+
+            System.exit(1);
+        }
+
+        System.out.print(Protocol.unescape(params[1]));
+    }
+}
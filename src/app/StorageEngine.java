@@ -0,0 +1,57 @@
+package app;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Storage of object values on a server. Tasks write through it and request handlers read through it.
+ */
+public interface StorageEngine {
+    /**
+     * Read the latest value of an object, the one with the newest version.
+     *
+     * @param obj object name
+     * @throws FileNotFoundException if object does not exist
+     */
+    Versioned read(String obj) throws IOException;
+
+    /**
+     * Read the version of the latest value of an object, without the value.
+     *
+     * @param obj object name
+     * @throws FileNotFoundException if object does not exist
+     */
+    Versioned version(String obj) throws IOException;
+
+    /**
+     * Append a new value to an object, making it the latest value unless the object already holds a
+     * newer or the same version.
+     *
+     * @param obj object name
+     * @param value value to append with its version
+     * @return false if value was ignored as not newer
+     */
+    boolean append(String obj, Versioned value) throws IOException;
+
+    /**
+     * Append values to an object in order as one write, made durable together. Values not newer than
+     * the latest value at that point are ignored.
+     *
+     * @param obj object name
+     * @param values values to append with their versions
+     * @return number of values appended
+     */
+    int appendAll(String obj, List<Versioned> values) throws IOException;
+
+    /**
+     * Names of stored objects. The view may change while iterated.
+     */
+    Set<String> objects();
+
+    /**
+     * Metrics of the engine, one "name value" per line like Metrics.snapshot()
+     */
+    String stats();
+
+    void close() throws IOException;
+}
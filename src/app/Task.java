@@ -2,6 +2,7 @@ package app;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 /**
  * Maintains information regarding a task
@@ -13,6 +14,14 @@ public class Task {
         fileName,
         message;
 
+    // Completed once the writer of the task is answered. A task committed in the batch of another waits
+    // for the task before it in the batch, so writers are answered in batch order
+    CompletableFuture<Void> answered = new CompletableFuture<Void>();
+    volatile CompletableFuture<Void> previous;
+
+    // Set when a newer version was stored before the task committed, the task is failed rather than dropped
+    volatile boolean superseded;
+
     public Task(String oid, String eid, String fname, String message, long ts) {
         this.ownerId = oid;
         this.executorId = eid;
@@ -21,15 +30,56 @@ public class Task {
         this.timestamp = ts;
     }
 
-    public void execute() throws IOException {
-        // TODO: handle failure when file does not exist
-        PrintWriter fileObj = new PrintWriter(
-            new FileWriter(String.format("files/%s/%s", this.executorId, this.fileName), true) // TODO: obtain file path via ENV
-        );
+    /**
+     * Store message as the value of fileName, versioned by timestamp and owner of the task
+     */
+    public void execute(StorageEngine storage) throws IOException {
+        storage.append(this.fileName, new Versioned(this.message, this.timestamp, this.ownerId));
+    }
+
+    /**
+     * Store messages of tasks on one object in list order with a single append
+     *
+     * @return number of tasks stored, the others were not newer than the value stored before them
+     */
+    public static int executeAll(StorageEngine storage, List<Task> tasks) throws IOException {
+        List<Versioned> values = new ArrayList<Versioned>(tasks.size());
+
+        for (Task task : tasks) {
+            values.add(new Versioned(task.message, task.timestamp, task.ownerId));
+        }
+
+        return storage.appendAll(tasks.get(0).fileName, values);
+    }
+
+    /**
+     * Tasks as "owner;timestamp" entries separated by commas, see decodeAll
+     */
+    public static String encodeAll(List<Task> tasks) {
+        StringBuilder sb = new StringBuilder();
+
+        for (Task task : tasks) {
+            if (sb.length() > 0) sb.append(',');
+
+            sb.append(Protocol.escape(task.ownerId)).append(';').append(task.timestamp);
+        }
+
+        return sb.toString();
+    }
+
+    /**
+     * Tasks identified by owner and timestamp only, as compared by equals
+     */
+    public static List<Task> decodeAll(String entries) {
+        List<Task> tasks = new ArrayList<Task>();
 
-        fileObj.println(this.message);
+        for (String entry : entries.split(",")) {
+            String[] fields = entry.split(";");
 
-        fileObj.close();
+            tasks.add(new Task(Protocol.unescape(fields[0]), null, null, null, Long.parseLong(fields[1])));
+        }
+
+        return tasks;
     }
 
     @Override
@@ -54,13 +104,19 @@ public class Task {
         // Task is same if timestamp and owner are same  
         return t.timestamp == this.timestamp && t.ownerId.equals(this.ownerId);
     }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(this.timestamp, this.ownerId);
+    }
 };
 
 /**
  * Comparator function to be used for ordering task in the priority queue.
  */
 class TaskComparator implements Comparator<Task> {
-    // Overriding compare()method of Comparator for tasks by ascending timestamp, ties broken by ascending serverIds
+    // Overriding compare()method of Comparator for tasks by ascending timestamp, ties broken by ascending owner ids.
+    // Same task compares equal, consistent with Task.equals
     public int compare(Task t1, Task t2) { 
         if (t1.timestamp > t2.timestamp) {
             return 1;
@@ -69,12 +125,7 @@ class TaskComparator implements Comparator<Task> {
             return -1; 
         }
         else {
-            if (t1.ownerId.compareTo(t2.ownerId) > 0) {
-                return 1;
-            }
-            else {
-                return -1;
-            }
+            return t1.ownerId.compareTo(t2.ownerId);
         }
     }
 } 
\ No newline at end of file
@@ -0,0 +1,304 @@
+package app;
+
+import java.util.*;
+
+/**
+ * Latest values of recently read objects, bounded by the bytes they take. Objects are spread by hash over
+ * segments with a lock and an equal share of the capacity each, so reads of different objects rarely
+ * wait for one another.
+ *
+ * Eviction within a segment is segmented LRU: objects enter a probation segment and move to a protected
+ * segment, at most PROTECTED_PERCENT of the capacity, when read again. Protected objects pushed out go
+ * back to probation, and objects are evicted from probation first, so a scan of objects read once only
+ * cycles through probation and leaves the popular ones cached.
+ *
+ * Values only ever replace older versions, a put racing with a newer one cannot bring the older back.
+ */
+public class ValueCache {
+    long capacity;
+
+    private Segment[] segments;
+
+    static int PROTECTED_PERCENT = Config.getInt("READ_CACHE_PROTECTED_PERCENT", 80);
+    static int SEGMENTS = Config.getInt("READ_CACHE_SEGMENTS", 16);
+
+    // Estimated bytes taken by an entry besides its strings: map node, Versioned and String headers
+    static int ENTRY_OVERHEAD = 128;
+
+    /**
+     * @param capacityBytes bytes of entries to hold at most, 0 caches nothing
+     */
+    public ValueCache(long capacityBytes) {
+        this(capacityBytes, PROTECTED_PERCENT);
+    }
+
+    /**
+     * @param protectedPercent share of capacity for objects read more than once, 0 makes a plain LRU
+     */
+    public ValueCache(long capacityBytes, int protectedPercent) {
+        this(capacityBytes, protectedPercent, SEGMENTS);
+    }
+
+    /**
+     * @param segments number of separately locked segments, each holding capacityBytes / segments
+     */
+    public ValueCache(long capacityBytes, int protectedPercent, int segments) {
+        this.capacity = capacityBytes;
+        this.segments = new Segment[segments];
+
+        for (int i = 0; i < segments; i++) {
+            this.segments[i] = new Segment(capacityBytes / segments, capacityBytes / segments * protectedPercent / 100);
+        }
+    }
+
+    /**
+     * @return cached value of obj, null on a miss
+     */
+    public Versioned get(String obj) {
+        return this.segmentOf(obj).get(obj);
+    }
+
+    /**
+     * Cache value of obj unless a newer version is cached already
+     */
+    public void put(String obj, Versioned value) {
+        this.segmentOf(obj).put(obj, new Entry(value, weight(obj, value)));
+    }
+
+    /**
+     * Drop obj if value is the one cached
+     */
+    public void remove(String obj, Versioned value) {
+        this.segmentOf(obj).remove(obj, value);
+    }
+
+    private Segment segmentOf(String obj) {
+        int hash = obj.hashCode();
+
+        // Spread high bits, similar keys such as k1, k2 differ in the low ones only
+        return this.segments[((hash ^ (hash >>> 16)) & 0x7fffffff) % this.segments.length];
+    }
+
+    /**
+     * Bytes an entry takes, with its strings counted as encoded in UTF-8 on disk and on the wire
+     */
+    static long weight(String obj, Versioned value) {
+        return ENTRY_OVERHEAD + utf8Length(obj) + utf8Length(value.ownerId) + (value.value != null ? utf8Length(value.value) : 0);
+    }
+
+    /**
+     * Length of s encoded in UTF-8, without encoding it
+     */
+    static long utf8Length(String s) {
+        long length = 0;
+
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+
+            if (c < 0x80) {
+                length += 1;
+            }
+            else if (c < 0x800) {
+                length += 2;
+            }
+            else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+                length += 4; // Pair of chars, one code point
+
+                i++;
+            }
+            else {
+                length += 3;
+            }
+        }
+
+        return length;
+    }
+
+    /**
+     * Hits, misses, evictions and occupancy, one "name value" per line like Metrics.snapshot()
+     */
+    public String stats() {
+        long hits = 0, misses = 0, evictions = 0, entries = 0, bytes = 0, protectedBytes = 0;
+
+        for (Segment segment : this.segments) {
+            synchronized (segment) {
+                hits += segment.hits;
+                misses += segment.misses;
+                evictions += segment.evictions;
+                entries += segment.probation.size() + segment.protectedSegment.size();
+                bytes += segment.probationBytes + segment.protectedBytes;
+                protectedBytes += segment.protectedBytes;
+            }
+        }
+
+        long reads = hits + misses;
+
+        return String.format(
+            "read_cache.hits %s\nread_cache.misses %s\nread_cache.hit_ratio %.3f\nread_cache.evictions %s\n"
+                + "read_cache.entries %s\nread_cache.bytes %s\nread_cache.protected_bytes %s\nread_cache.capacity_bytes %s\n",
+            hits,
+            misses,
+            reads == 0 ? 0.0 : (double) hits / reads,
+            evictions,
+            entries,
+            bytes,
+            protectedBytes,
+            this.capacity
+        );
+    }
+
+    /**
+     * Cached value with its weight, computed once when cached
+     */
+    private static class Entry {
+        Versioned value;
+        long weight;
+
+        Entry(Versioned value, long weight) {
+            this.value = value;
+            this.weight = weight;
+        }
+    }
+
+    /**
+     * Segmented LRU over a share of the objects. Guarded by itself
+     */
+    private static class Segment {
+        long capacity;
+        long protectedCapacity;
+
+        // Least recently used first
+        LinkedHashMap<String, Entry> probation = new LinkedHashMap<String, Entry>();
+        LinkedHashMap<String, Entry> protectedSegment = new LinkedHashMap<String, Entry>();
+
+        long probationBytes;
+        long protectedBytes;
+
+        long hits;
+        long misses;
+        long evictions;
+
+        Segment(long capacity, long protectedCapacity) {
+            this.capacity = capacity;
+            this.protectedCapacity = protectedCapacity;
+        }
+
+        synchronized Versioned get(String obj) {
+            Entry entry = this.protectedSegment.remove(obj);
+
+            if (entry != null) {
+                this.protectedSegment.put(obj, entry);
+            }
+            else {
+                entry = this.probation.remove(obj);
+
+                if (entry == null) {
+                    this.misses++;
+
+                    return null;
+                }
+
+                // Read a second time, promote
+                this.probationBytes -= entry.weight;
+
+                this.protectedSegment.put(obj, entry);
+                this.protectedBytes += entry.weight;
+
+                this.demote();
+            }
+
+            this.hits++;
+
+            return entry.value;
+        }
+
+        synchronized void put(String obj, Entry entry) {
+            if (entry.weight > this.capacity) {
+                return;
+            }
+
+            Entry cached = this.protectedSegment.get(obj);
+
+            if (cached != null) {
+                if (entry.value.isNewerThan(cached.value)) {
+                    this.protectedSegment.put(obj, entry);
+                    this.protectedBytes += entry.weight - cached.weight;
+
+                    this.demote();
+                }
+            }
+            else {
+                cached = this.probation.get(obj);
+
+                if (cached != null && !entry.value.isNewerThan(cached.value)) {
+                    return;
+                }
+
+                this.probation.put(obj, entry);
+                this.probationBytes += entry.weight - (cached != null ? cached.weight : 0);
+            }
+
+            this.evict();
+        }
+
+        synchronized void remove(String obj, Versioned value) {
+            Entry cached = this.probation.get(obj);
+
+            if (cached != null && cached.value == value) {
+                this.probation.remove(obj);
+                this.probationBytes -= cached.weight;
+
+                return;
+            }
+
+            cached = this.protectedSegment.get(obj);
+
+            if (cached != null && cached.value == value) {
+                this.protectedSegment.remove(obj);
+                this.protectedBytes -= cached.weight;
+            }
+        }
+
+        /**
+         * Move least recently used protected objects back to probation while protected is over its share
+         */
+        private void demote() {
+            Iterator<Map.Entry<String, Entry>> it = this.protectedSegment.entrySet().iterator();
+
+            while (this.protectedBytes > this.protectedCapacity && it.hasNext()) {
+                Map.Entry<String, Entry> eldest = it.next();
+
+                it.remove();
+
+                this.protectedBytes -= eldest.getValue().weight;
+
+                this.probation.put(eldest.getKey(), eldest.getValue());
+                this.probationBytes += eldest.getValue().weight;
+            }
+        }
+
+        /**
+         * Drop least recently used objects, from probation first, until within capacity
+         */
+        private void evict() {
+            while (this.probationBytes + this.protectedBytes > this.capacity) {
+                boolean fromProbation = !this.probation.isEmpty();
+
+                Iterator<Map.Entry<String, Entry>> it = (fromProbation ? this.probation : this.protectedSegment).entrySet().iterator();
+
+                Map.Entry<String, Entry> eldest = it.next();
+
+                it.remove();
+
+                if (fromProbation) {
+                    this.probationBytes -= eldest.getValue().weight;
+                }
+                else {
+                    this.protectedBytes -= eldest.getValue().weight;
+                }
+
+                this.evictions++;
+            }
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package app;
+
+/**
+ * Value of an object with its version, the timestamp and owner of the write that stored it. Versions
+ * are ordered like tasks, by timestamp with ties broken by owner, so the newest value of an object is
+ * the one with the greatest version on any replica.
+ */
+public class Versioned {
+    public String value;
+    public long timestamp;
+    public String ownerId;
+
+    // Owner of values stored before versions were recorded, which read as version 0
+    static String UNKNOWN_OWNER = "";
+
+    public Versioned(String val, long ts, String oid) {
+        this.value = val;
+        this.timestamp = ts;
+        this.ownerId = oid;
+    }
+
+    /**
+     * @return true if this version is newer than other, any version is newer than null
+     */
+    public boolean isNewerThan(Versioned other) {
+        if (other == null) {
+            return true;
+        }
+
+        if (this.timestamp != other.timestamp) {
+            return this.timestamp > other.timestamp;
+        }
+
+        return this.ownerId.compareTo(other.ownerId) > 0;
+    }
+
+    /**
+     * Version of this value without the value itself
+     */
+    public Versioned version() {
+        return new Versioned(null, this.timestamp, this.ownerId);
+    }
+
+    /**
+     * Line stored in an object file: timestamp, owner and value separated by tabs. The value is escaped,
+     * see Protocol.escape, so line breaks in it do not split the line.
+     */
+    public String encode() {
+        return String.format("%s\t%s\t%s", this.timestamp, this.ownerId, Protocol.escape(this.value));
+    }
+
+    /**
+     * Parse a line stored by encode(). A line without a version is a value stored before versions were
+     * recorded.
+     */
+    public static Versioned decode(String line) {
+        String[] fields = line.split("\t", 3);
+
+        if (fields.length == 3) {
+            try {
+                return new Versioned(Protocol.unescape(fields[2]), Long.parseLong(fields[0]), fields[1]);
+            }
+            catch (NumberFormatException ex) {
+                // Not a version, fall through
+            }
+        }
+
+        return new Versioned(line, 0, UNKNOWN_OWNER);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("(%s:%s:%s)", this.ownerId, this.timestamp, this.value);
+    }
+}
@@ -0,0 +1,269 @@
+package app;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.function.*;
+import java.util.logging.*;
+import java.util.zip.CRC32;
+
+/**
+ * Single write-ahead log per server. Every write is appended to the log before it is applied to its
+ * object file. Concurrent commits are made durable together by one force() of the log file, how often
+ * depends on the fsync mode:
+ *
+ *   ALWAYS  commit waits for a force covering its record. Writers that arrive while a force is running
+ *           are covered by the next one, so concurrent commits still share a force.
+ *   GROUP   a flusher thread forces at most once per window, commits wait for the force after them.
+ *   OS      commit does not wait, the OS decides when data reaches disk.
+ *
+ * Record layout: [int payload length][int crc32 of payload][int obj length][obj][int value length][value]
+ */
+public class WriteAheadLog {
+    public enum Sync { ALWAYS, GROUP, OS }
+
+    File file;
+    Sync mode;
+    long groupWindowMs;
+
+    private FileChannel channel;
+    private volatile long writtenSeq = 0;
+    private volatile long syncedSeq = 0;
+    private volatile IOException syncError;
+    private final Object syncMonitor = new Object();
+
+    private final static Logger LOGGER = Logger.getLogger(Applog.class.getName());
+
+    /**
+     * @param logFile file to write log to, created if missing
+     * @param syncMode when commits are forced to disk
+     * @param windowMs how long a group waits for more commits, used with GROUP mode only
+     */
+    public WriteAheadLog(File logFile, Sync syncMode, long windowMs) throws IOException {
+        this.file = logFile;
+        this.mode = syncMode;
+        this.groupWindowMs = windowMs;
+
+        this.channel = FileChannel.open(
+            logFile.toPath(),
+            StandardOpenOption.CREATE,
+            StandardOpenOption.READ,
+            StandardOpenOption.WRITE
+        );
+
+        this.channel.position(this.channel.size());
+
+        if (this.mode == Sync.GROUP) {
+            Thread flusher = new Thread(this::flushLoop, String.format("wal-flusher-%s", logFile.getParentFile().getName()));
+            flusher.setDaemon(true);
+            flusher.start();
+        }
+    }
+
+    /**
+     * Append a record and wait until it is durable according to the fsync mode.
+     */
+    public void commit(String obj, String value) throws IOException {
+        this.sync(this.append(obj, value));
+    }
+
+    /**
+     * Append a record without waiting for it to be durable.
+     *
+     * @return sequence number of record, to be passed to sync()
+     */
+    public synchronized long append(String obj, String value) throws IOException {
+        byte[] objBytes = obj.getBytes(StandardCharsets.UTF_8);
+        byte[] valueBytes = value.getBytes(StandardCharsets.UTF_8);
+
+        int payloadLength = 8 + objBytes.length + valueBytes.length;
+
+        ByteBuffer record = ByteBuffer.allocate(8 + payloadLength);
+
+        record.putInt(payloadLength);
+        record.putInt(0); // Placeholder for checksum
+        record.putInt(objBytes.length).put(objBytes);
+        record.putInt(valueBytes.length).put(valueBytes);
+
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), 8, payloadLength);
+        record.putInt(4, (int) crc.getValue());
+
+        record.flip();
+
+        while (record.hasRemaining()) {
+            this.channel.write(record);
+        }
+
+        return ++this.writtenSeq;
+    }
+
+    /**
+     * Wait until record with given sequence number is durable according to the fsync mode.
+     */
+    public void sync(long seq) throws IOException {
+        if (this.mode == Sync.OS) {
+            return;
+        }
+
+        if (this.mode == Sync.ALWAYS) {
+            this.force(seq);
+
+            return;
+        }
+
+        synchronized (this.syncMonitor) {
+            // Wake flusher in case it is idle
+            this.syncMonitor.notifyAll();
+
+            while (this.syncedSeq < seq) {
+                if (this.syncError != null) {
+                    throw this.syncError;
+                }
+
+                try {
+                    this.syncMonitor.wait();
+                }
+                catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+
+                    throw new InterruptedIOException("interrupted waiting for log sync");
+                }
+            }
+        }
+    }
+
+    private void force(long seq) throws IOException {
+        synchronized (this.syncMonitor) {
+            // A force issued while this thread waited may already cover its record
+            if (this.syncedSeq >= seq) {
+                return;
+            }
+
+            long target = this.writtenSeq;
+
+            this.channel.force(false);
+
+            this.syncedSeq = target;
+        }
+    }
+
+    private void flushLoop() {
+        while (true) {
+            try {
+                synchronized (this.syncMonitor) {
+                    while (this.syncedSeq == this.writtenSeq) {
+                        this.syncMonitor.wait();
+                    }
+                }
+
+                // Let more commits join the group before forcing
+                if (this.groupWindowMs > 0) {
+                    Thread.sleep(this.groupWindowMs);
+                }
+
+                long target = this.writtenSeq;
+
+                this.channel.force(false);
+
+                synchronized (this.syncMonitor) {
+                    this.syncedSeq = target;
+
+                    this.syncMonitor.notifyAll();
+                }
+            }
+            catch (InterruptedException ex) {
+                return;
+            }
+            catch (IOException ex) {
+                LOGGER.log(Level.SEVERE, String.format("failed to sync log %s", this.file), ex);
+
+                synchronized (this.syncMonitor) {
+                    this.syncError = ex;
+
+                    this.syncMonitor.notifyAll();
+                }
+
+                return;
+            }
+        }
+    }
+
+    /**
+     * Read every complete record in the log from the start, in order. Stops at the first torn or corrupt
+     * record and cuts the log there.
+     *
+     * @param consumer receives object and value of every record
+     */
+    public synchronized void replay(BiConsumer<String, String> consumer) throws IOException {
+        long position = 0;
+        long size = this.channel.size();
+
+        ByteBuffer header = ByteBuffer.allocate(8);
+
+        while (position + 8 <= size) {
+            header.clear();
+            this.channel.read(header, position);
+            header.flip();
+
+            int payloadLength = header.getInt();
+            int checksum = header.getInt();
+
+            if (payloadLength < 8 || position + 8 + payloadLength > size) break;
+
+            ByteBuffer payload = ByteBuffer.allocate(payloadLength);
+            this.channel.read(payload, position + 8);
+
+            CRC32 crc = new CRC32();
+            crc.update(payload.array(), 0, payloadLength);
+
+            if ((int) crc.getValue() != checksum) break;
+
+            payload.flip();
+
+            byte[] objBytes = new byte[payload.getInt()];
+            payload.get(objBytes);
+
+            byte[] valueBytes = new byte[payload.getInt()];
+            payload.get(valueBytes);
+
+            consumer.accept(new String(objBytes, StandardCharsets.UTF_8), new String(valueBytes, StandardCharsets.UTF_8));
+
+            position += 8 + payloadLength;
+        }
+
+        if (position < size) {
+            LOGGER.info(String.format("discarding %s bytes of incomplete log records in %s", size - position, this.file));
+
+            this.truncate(position);
+        }
+    }
+
+    /**
+     * Cut log down to given length. Used once everything before it is durable elsewhere.
+     */
+    public synchronized void truncate(long length) throws IOException {
+        this.channel.truncate(length);
+        this.channel.position(length);
+        this.channel.force(true);
+    }
+
+    /**
+     * Sequence number of the last record appended, syncing it makes every record before it durable too
+     */
+    public long lastSeq() {
+        return this.writtenSeq;
+    }
+
+    public long size() throws IOException {
+        return this.channel.size();
+    }
+
+    public synchronized void close() throws IOException {
+        this.channel.force(false);
+        this.channel.close();
+    }
+}
@@ -0,0 +1,73 @@
+package app;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.*;
+
+import org.junit.jupiter.api.*;
+
+public class FrameTest {
+    @Test
+    public void requestRoundTripsWithActionAsOpcode() {
+        String[] fields = { "CLIENT", "C1", "WRITE", "k1", "value: with\nbreaks", "42" };
+
+        ByteBuffer buf = Frame.encodeRequest(null, 7, fields);
+
+        // Action is carried by the opcode, not as a field
+        assertEquals(Frame.ACTIONS.indexOf("WRITE") + 1, buf.get(4));
+
+        Frame frame = decode(buf);
+
+        assertEquals(7, frame.requestId);
+        assertArrayEquals(fields, frame.fields);
+    }
+
+    @Test
+    public void unknownActionIsSentAsField() {
+        String[] fields = { "CLIENT", "C1", "NOSUCH", "k1" };
+
+        ByteBuffer buf = Frame.encodeRequest(null, 1, fields);
+
+        assertEquals(Frame.OP_FIELDS, buf.get(4));
+        assertArrayEquals(fields, decode(buf).fields);
+    }
+
+    @Test
+    public void responseRoundTripsMultibyteText() {
+        String response = "é€😀 and a long tail ".repeat(100);
+
+        // Too small, grown to fit
+        ByteBuffer buf = Frame.encodeResponse(ByteBuffer.allocate(16), 3, response);
+
+        assertEquals(buf.limit() - 4, buf.getInt(0));
+
+        Frame frame = decode(buf);
+
+        assertEquals(3, frame.requestId);
+        assertArrayEquals(new String[] { response }, frame.fields);
+    }
+
+    @Test
+    public void textLineRoundTripsRequestId() {
+        String line = Frame.formatText(12, "SERVER", "S1", "VOTE", "k1", "C1", "42");
+
+        Frame frame = Frame.parseText(line, true, true);
+
+        assertEquals(12, frame.requestId);
+        assertArrayEquals(new String[] { "SERVER", "S1", "VOTE", "k1", "C1", "42" }, frame.fields);
+
+        // Responses are kept whole, colons included
+        assertArrayEquals(new String[] { "ERR: busy" }, Frame.parseText(Frame.formatText(0, "ERR: busy"), false, false).fields);
+    }
+
+    /**
+     * Frame after the length prefix of an encoded buffer
+     */
+    private static Frame decode(ByteBuffer buf) {
+        ByteBuffer body = buf.duplicate();
+
+        body.position(4);
+
+        return Frame.decode(body);
+    }
+}
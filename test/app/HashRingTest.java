@@ -0,0 +1,107 @@
+package app;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.*;
+
+import org.junit.jupiter.api.*;
+
+public class HashRingTest {
+    static List<String> SERVERS = Arrays.asList("S1", "S2", "S3", "S4");
+
+    @Test
+    public void placementDoesNotDependOnServerOrder() {
+        List<String> shuffled = new ArrayList<String>(SERVERS);
+
+        Collections.reverse(shuffled);
+
+        HashRing ring = new HashRing(SERVERS);
+        HashRing other = new HashRing(shuffled);
+
+        for (int i = 0; i < 1000; i++) {
+            String key = String.format("k%s", i);
+
+            List<String> replicas = ring.replicasFor(key);
+
+            assertEquals(3, new HashSet<String>(replicas).size());
+            assertEquals(replicas, other.replicasFor(key));
+        }
+    }
+
+    @Test
+    public void addingServerOnlyMovesKeysToIt() {
+        HashRing before = new HashRing(SERVERS);
+
+        List<String> grown = new ArrayList<String>(SERVERS);
+
+        grown.add("S5");
+
+        HashRing after = new HashRing(grown);
+
+        int keys = 10000;
+        int moved = 0;
+
+        for (int i = 0; i < keys; i++) {
+            String key = String.format("k%s", i);
+
+            String primary = after.replicasFor(key, 1).get(0);
+
+            if (!primary.equals(before.replicasFor(key, 1).get(0))) {
+                assertEquals("S5", primary, String.format("%s moved between old servers", key));
+
+                moved++;
+            }
+        }
+
+        // About a fifth of the keys, virtual nodes keep the share close to even
+        assertTrue(moved > keys / 10 && moved < keys * 3 / 10, String.format("%s of %s keys moved", moved, keys));
+    }
+
+    @Test
+    public void returnsEveryServerWhenFewerThanWanted() {
+        HashRing ring = new HashRing(Arrays.asList("S1", "S2"));
+
+        assertEquals(new HashSet<String>(Arrays.asList("S1", "S2")), new HashSet<String>(ring.replicasFor("k1")));
+        assertTrue(new HashRing(Collections.emptyList()).replicasFor("k1").isEmpty());
+    }
+
+    @Test
+    public void keysOfOneRangeShareReplicas() {
+        HashRing ring = new HashRing(SERVERS, 8);
+
+        Map<String, List<String>> rangeToReplicas = new HashMap<String, List<String>>();
+
+        for (int i = 0; i < 1000; i++) {
+            String key = String.format("k%s", i);
+
+            long[] range = ring.rangeFor(key);
+
+            assertTrue(HashRing.inRange(range, HashRing.hash(key)));
+
+            List<String> replicas = rangeToReplicas.putIfAbsent(Arrays.toString(range), ring.replicasFor(key));
+
+            if (replicas != null) {
+                assertEquals(replicas, ring.replicasFor(key));
+            }
+        }
+
+        // Ranges end at virtual nodes
+        assertTrue(rangeToReplicas.size() > 1 && rangeToReplicas.size() <= SERVERS.size() * 8);
+    }
+
+    @Test
+    public void rangesWrapAroundEndOfRing() {
+        long[] wrapping = { 100, -100 };
+
+        assertTrue(HashRing.inRange(wrapping, Long.MAX_VALUE));
+        assertTrue(HashRing.inRange(wrapping, -100));
+        assertFalse(HashRing.inRange(wrapping, 0));
+        assertFalse(HashRing.inRange(wrapping, 100));
+
+        assertTrue(HashRing.inRange(new long[] { 7, 7 }, 0));
+
+        assertTrue(HashRing.overlaps(wrapping, new long[] { 50, 150 }));
+        assertTrue(HashRing.overlaps(wrapping, new long[] { -150, -50 }));
+        assertFalse(HashRing.overlaps(wrapping, new long[] { -100, 100 }));
+    }
+}
@@ -0,0 +1,36 @@
+package app;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.*;
+
+public class HybridClockTest {
+    @Test
+    public void updateMergesTimestampWithinDrift() {
+        HybridClock clock = new HybridClock();
+
+        long received = (System.currentTimeMillis() + 1000) << HybridClock.LOGICAL_BITS;
+
+        assertTrue(clock.update(received) > received);
+        assertTrue(clock.now() > received);
+    }
+
+    @Test
+    public void updateIgnoresTimestampBeyondDrift() {
+        HybridClock clock = new HybridClock();
+
+        long received = (System.currentTimeMillis() + HybridClock.MAX_DRIFT_MS + 60000) << HybridClock.LOGICAL_BITS;
+
+        assertTrue(clock.update(received) < received);
+        assertTrue(clock.now() < received);
+    }
+
+    @Test
+    public void isTooFarAheadOnlyBeyondDrift() {
+        long now = System.currentTimeMillis();
+
+        assertFalse(HybridClock.isTooFarAhead(now << HybridClock.LOGICAL_BITS));
+        assertFalse(HybridClock.isTooFarAhead((now + 1000) << HybridClock.LOGICAL_BITS));
+        assertTrue(HybridClock.isTooFarAhead((now + HybridClock.MAX_DRIFT_MS + 60000) << HybridClock.LOGICAL_BITS));
+    }
+}
@@ -0,0 +1,167 @@
+package app;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.TempDir;
+
+public class LogStorageEngineTest {
+    @TempDir
+    Path dir;
+
+    @Test
+    public void storageReadsValuesLongerThanReadWindow() throws IOException {
+        LogStorageEngine storage = new LogStorageEngine(this.dir.toString(), WriteAheadLog.Sync.OS, 0);
+
+        try {
+            String value = "v".repeat(LogStorageEngine.READ_WINDOW * 3);
+
+            storage.append("f1", new Versioned("short", 1, "S1"));
+            storage.append("f1", new Versioned(value, 2, "S1"));
+
+            String line = LogStorageEngine.getLastLineRead(this.dir.resolve("f1").toFile());
+
+            assertEquals(value, Versioned.decode(line).value);
+            assertEquals(2, Versioned.decode(line).timestamp);
+        }
+        finally {
+            storage.close();
+        }
+    }
+
+    @Test
+    public void storageCutsTornLastLine() throws IOException {
+        Path file = this.dir.resolve("f1");
+
+        Files.writeString(file, String.format("%s\n%s", new Versioned("whole", 1, "S1").encode(), "2|S1|tor"));
+
+        LogStorageEngine storage = new LogStorageEngine(this.dir.toString(), WriteAheadLog.Sync.OS, 0);
+
+        try {
+            assertEquals("whole", storage.read("f1").value);
+            assertEquals(String.format("%s\n", new Versioned("whole", 1, "S1").encode()), Files.readString(file));
+
+            storage.append("f1", new Versioned("next", 3, "S1"));
+
+            assertEquals("next", storage.read("f1").value);
+        }
+        finally {
+            storage.close();
+        }
+    }
+
+    @Test
+    public void storageRoundTripsLineBreaksAcrossRestart() throws IOException {
+        LogStorageEngine storage = new LogStorageEngine(this.dir.toString(), WriteAheadLog.Sync.OS, 0);
+
+        storage.append("f1", new Versioned("a\nb", 1, "S1"));
+        storage.append("f1", new Versioned("c\nd\n", 2, "S1"));
+
+        assertEquals("c\nd\n", storage.read("f1").value);
+
+        storage.close();
+
+        // Index is rebuilt from the last line of the object file
+        storage = new LogStorageEngine(this.dir.toString(), WriteAheadLog.Sync.OS, 0);
+
+        try {
+            assertEquals("c\nd\n", storage.read("f1").value);
+            assertEquals(2, storage.version("f1").timestamp);
+        }
+        finally {
+            storage.close();
+        }
+    }
+
+    @Test
+    public void storageReplaysLogIntoObjectFilesOnRestart() throws IOException {
+        LogStorageEngine storage = new LogStorageEngine(this.dir.toString(), WriteAheadLog.Sync.OS, 0);
+
+        storage.append("f1", new Versioned("first", 1, "S1"));
+        storage.append("f1", new Versioned("second", 2, "S1"));
+        storage.append("f2", new Versioned("only", 3, "S1"));
+
+        storage.close();
+
+        // Crash after logging but before the object files were written
+        Files.writeString(this.dir.resolve("f1"), String.format("%s\n", new Versioned("first", 1, "S1").encode()));
+        Files.delete(this.dir.resolve("f2"));
+
+        storage = new LogStorageEngine(this.dir.toString(), WriteAheadLog.Sync.OS, 0);
+
+        try {
+            assertEquals("second", storage.read("f1").value);
+            assertEquals(2, storage.version("f1").timestamp);
+            assertEquals("only", storage.read("f2").value);
+
+            // Log is emptied once the object files hold its records
+            assertEquals(0, Files.size(this.dir.resolve(".wal")));
+        }
+        finally {
+            storage.close();
+        }
+    }
+
+    @Test
+    public void compactionKeepsNewestValue() throws IOException {
+        long minBytes = LogStorageEngine.COMPACT_MIN_BYTES;
+
+        LogStorageEngine.COMPACT_MIN_BYTES = 0;
+
+        LogStorageEngine storage = new LogStorageEngine(this.dir.toString(), WriteAheadLog.Sync.OS, 0);
+
+        try {
+            for (int i = 1; i <= 50; i++) {
+                storage.append("f1", new Versioned(String.format("v%s", i), i, "S1"));
+            }
+
+            assertTrue(storage.compact() > 0);
+
+            assertEquals(Collections.singletonList(new Versioned("v50", 50, "S1").encode()), Files.readAllLines(this.dir.resolve("f1")));
+            assertEquals("v50", storage.read("f1").value);
+
+            // Appends after the swap go to the compacted file
+            storage.append("f1", new Versioned("v51", 51, "S1"));
+
+            storage.close();
+
+            storage = new LogStorageEngine(this.dir.toString(), WriteAheadLog.Sync.OS, 0);
+
+            assertEquals("v51", storage.read("f1").value);
+            assertEquals(2, Files.readAllLines(this.dir.resolve("f1")).size());
+        }
+        finally {
+            LogStorageEngine.COMPACT_MIN_BYTES = minBytes;
+
+            storage.close();
+        }
+    }
+
+    @Test
+    public void checkpointEmptiesLogAndKeepsValues() throws IOException {
+        LogStorageEngine storage = new LogStorageEngine(this.dir.toString(), WriteAheadLog.Sync.OS, 0);
+
+        storage.append("f1", new Versioned("first", 1, "S1"));
+        storage.append("f2", new Versioned("second", 2, "S1"));
+
+        storage.checkpoint();
+
+        assertEquals(0, Files.size(this.dir.resolve(".wal")));
+
+        storage.close();
+
+        storage = new LogStorageEngine(this.dir.toString(), WriteAheadLog.Sync.OS, 0);
+
+        try {
+            assertEquals("first", storage.read("f1").value);
+            assertEquals("second", storage.read("f2").value);
+        }
+        finally {
+            storage.close();
+        }
+    }
+}
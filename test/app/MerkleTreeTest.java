@@ -0,0 +1,105 @@
+package app;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.*;
+
+import org.junit.jupiter.api.*;
+
+public class MerkleTreeTest {
+    @Test
+    public void sameObjectsInAnyOrderGiveSameTree() {
+        List<String> objs = new ArrayList<String>();
+
+        for (int i = 0; i < 500; i++) {
+            objs.add(String.format("k%s", i));
+        }
+
+        MerkleTree tree = build(objs, Collections.emptyMap());
+
+        Collections.shuffle(objs, new Random(1));
+
+        MerkleTree shuffled = build(objs, Collections.emptyMap());
+
+        assertEquals(tree.hash(0, 0), shuffled.hash(0, 0));
+        assertTrue(differingLeaves(tree, shuffled).isEmpty());
+    }
+
+    @Test
+    public void descentFindsLeavesOfDifferingObjects() {
+        List<String> objs = new ArrayList<String>();
+
+        for (int i = 0; i < 500; i++) {
+            objs.add(String.format("k%s", i));
+        }
+
+        MerkleTree tree = build(objs, Collections.emptyMap());
+
+        // One newer version, one object the other replica lacks
+        MerkleTree other = build(objs.subList(0, 499), Collections.singletonMap("k7", new Versioned("v", 2, "S2")));
+
+        assertNotEquals(tree.hash(0, 0), other.hash(0, 0));
+
+        Set<Integer> expected = new HashSet<Integer>(Arrays.asList(MerkleTree.leafOf("k7"), MerkleTree.leafOf("k499")));
+
+        assertEquals(expected, new HashSet<Integer>(differingLeaves(tree, other)));
+
+        assertTrue(other.objects(MerkleTree.leafOf("k7")).contains("k7"));
+        assertTrue(tree.objects(MerkleTree.leafOf("k499")).contains("k499"));
+    }
+
+    @Test
+    public void versionsOfSameTimestampFromOtherOwnersDiffer() {
+        List<String> objs = Collections.singletonList("k1");
+
+        MerkleTree tree = build(objs, Collections.emptyMap());
+        MerkleTree other = build(objs, Collections.singletonMap("k1", new Versioned("v", 1, "S2")));
+
+        assertEquals(Collections.singletonList(MerkleTree.leafOf("k1")), differingLeaves(tree, other));
+    }
+
+    /**
+     * Tree of objects at version 1 of S1, unless given another version
+     */
+    private static MerkleTree build(List<String> objs, Map<String, Versioned> objToVersion) {
+        MerkleTree tree = new MerkleTree();
+
+        for (String obj : objs) {
+            tree.add(obj, objToVersion.getOrDefault(obj, new Versioned("v", 1, "S1")));
+        }
+
+        tree.seal();
+
+        return tree;
+    }
+
+    /**
+     * Leaves found walking down from the root through differing nodes only, as anti-entropy does
+     */
+    private static List<Integer> differingLeaves(MerkleTree a, MerkleTree b) {
+        List<Integer> differing = Collections.singletonList(0);
+
+        for (int level = 0; level <= MerkleTree.DEPTH && !differing.isEmpty(); level++) {
+            List<Integer> indexes = new ArrayList<Integer>();
+
+            for (int parent : differing) {
+                if (level == 0) {
+                    indexes.add(parent);
+                }
+                else {
+                    for (int i = 0; i < MerkleTree.FANOUT; i++) indexes.add(parent * MerkleTree.FANOUT + i);
+                }
+            }
+
+            differing = new ArrayList<Integer>();
+
+            for (int index : indexes) {
+                if (a.hash(level, index) != b.hash(level, index)) {
+                    differing.add(index);
+                }
+            }
+        }
+
+        return differing;
+    }
+}
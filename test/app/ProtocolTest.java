@@ -0,0 +1,38 @@
+package app;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.*;
+
+public class ProtocolTest {
+    @Test
+    public void escapeRoundTripsDelimiters() {
+        for (String field : new String[] { "", "plain", "a:b,c;d", "100%", "%3A", "line\nbreak\r\n", "é€😀:" }) {
+            String escaped = Protocol.escape(field);
+
+            for (char c : ":,;\n\r".toCharArray()) {
+                assertEquals(-1, escaped.indexOf(c), String.format("%s escaped as %s", field, escaped));
+            }
+
+            assertEquals(field, Protocol.unescape(escaped));
+        }
+    }
+
+    @Test
+    public void escapedFieldsSurviveSplit() {
+        String line = String.join(":", "CLIENT", "C1", "WRITE", "k1", Protocol.escape("x:y,z"), "42");
+
+        String[] fields = line.split(":");
+
+        assertEquals(6, fields.length);
+        assertEquals("x:y,z", Protocol.unescape(fields[4]));
+    }
+
+    @Test
+    public void plainFieldsAreNotCopied() {
+        String field = "no delimiters here";
+
+        assertSame(field, Protocol.escape(field));
+        assertSame(field, Protocol.unescape(field));
+    }
+}
@@ -0,0 +1,108 @@
+package app;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.*;
+
+/**
+ * Eviction of a single segment, so that which objects share capacity does not depend on their hash
+ */
+public class ValueCacheTest {
+    static Versioned VALUE = new Versioned("v".repeat(100), 1, "S1");
+
+    // Weight of an object with a one character name and VALUE
+    static long WEIGHT = ValueCache.weight("a", VALUE);
+
+    @Test
+    public void evictsLeastRecentlyUsedByWeight() {
+        ValueCache cache = new ValueCache(3 * WEIGHT, 0, 1);
+
+        cache.put("a", VALUE);
+        cache.put("b", VALUE);
+        cache.put("c", VALUE);
+
+        assertNotNull(cache.get("a"));
+
+        cache.put("d", VALUE);
+
+        assertNull(cache.get("b"));
+        assertNotNull(cache.get("a"));
+        assertNotNull(cache.get("c"));
+        assertNotNull(cache.get("d"));
+    }
+
+    @Test
+    public void heavyValueEvictsSeveralLightOnes() {
+        ValueCache cache = new ValueCache(4 * WEIGHT, 0, 1);
+
+        for (String obj : new String[] { "a", "b", "c", "d" }) {
+            cache.put(obj, VALUE);
+        }
+
+        // Weighs one and a half light objects, so two have to make room
+        Versioned heavy = new Versioned(VALUE.value + "h".repeat((int) (WEIGHT / 2)), 1, "S1");
+
+        cache.put("e", heavy);
+
+        assertNull(cache.get("a"));
+        assertNull(cache.get("b"));
+        assertNotNull(cache.get("c"));
+        assertNotNull(cache.get("d"));
+        assertSame(heavy, cache.get("e"));
+    }
+
+    @Test
+    public void weighsStringsByUtf8Bytes() {
+        assertEquals(3, ValueCache.utf8Length("abc"));
+        assertEquals(2 + 3 + 4, ValueCache.utf8Length("é€😀"));
+
+        Versioned ascii = new Versioned("aaaa", 1, "S1");
+        Versioned wide = new Versioned("€€€€", 1, "S1");
+
+        assertEquals(ValueCache.weight("a", ascii) + 8, ValueCache.weight("a", wide));
+    }
+
+    @Test
+    public void skipsValueHeavierThanCapacity() {
+        ValueCache cache = new ValueCache(WEIGHT, 0, 1);
+
+        cache.put("a", VALUE);
+        cache.put("b", new Versioned(VALUE.value + "v", 1, "S1"));
+
+        assertNull(cache.get("b"));
+        assertNotNull(cache.get("a"));
+    }
+
+    @Test
+    public void scanOfObjectsReadOnceKeepsProtectedObjects() {
+        ValueCache cache = new ValueCache(10 * WEIGHT, 80, 1);
+
+        cache.put("a", VALUE);
+
+        // Read again, promoted to protected
+        assertNotNull(cache.get("a"));
+
+        for (int i = 0; i < 100; i++) {
+            cache.put(String.format("s%s", i), VALUE);
+        }
+
+        assertNotNull(cache.get("a"));
+    }
+
+    @Test
+    public void keepsNewerVersion() {
+        ValueCache cache = new ValueCache(10 * WEIGHT, 80, 1);
+
+        Versioned newer = new Versioned("new", 2, "S1");
+
+        cache.put("a", newer);
+        cache.put("a", new Versioned("old", 1, "S1"));
+
+        assertSame(newer, cache.get("a"));
+
+        // Same once protected
+        cache.put("a", new Versioned("old", 1, "S1"));
+
+        assertSame(newer, cache.get("a"));
+    }
+}
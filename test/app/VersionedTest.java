@@ -0,0 +1,31 @@
+package app;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.*;
+
+public class VersionedTest {
+    @Test
+    public void encodeRoundTripsLineBreaks() {
+        Versioned value = new Versioned("first\nsecond\r\nthird%3A\t;", 42, "S1");
+
+        String line = value.encode();
+
+        assertFalse(line.contains("\n"));
+        assertFalse(line.contains("\r"));
+
+        Versioned decoded = Versioned.decode(line);
+
+        assertEquals(value.value, decoded.value);
+        assertEquals(42, decoded.timestamp);
+        assertEquals("S1", decoded.ownerId);
+    }
+
+    @Test
+    public void decodeKeepsUnversionedLines() {
+        Versioned decoded = Versioned.decode("plain value");
+
+        assertEquals("plain value", decoded.value);
+        assertEquals(0, decoded.timestamp);
+    }
+}
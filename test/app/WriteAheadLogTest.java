@@ -0,0 +1,130 @@
+package app;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.TempDir;
+
+public class WriteAheadLogTest {
+    @TempDir
+    Path dir;
+
+    @Test
+    public void replayReadsRecordsInOrderAndCutsTornTail() throws IOException {
+        File file = this.dir.resolve(".wal").toFile();
+
+        WriteAheadLog wal = new WriteAheadLog(file, WriteAheadLog.Sync.OS, 0);
+
+        wal.commit("a", "1");
+        wal.commit("b", "x:y\nz");
+        wal.commit("a", "2");
+
+        long whole = wal.size();
+
+        wal.close();
+
+        // Crash while appending a fourth record
+        Files.write(file.toPath(), new byte[] { 0, 0, 0, 40, 1, 2, 3 }, StandardOpenOption.APPEND);
+
+        wal = new WriteAheadLog(file, WriteAheadLog.Sync.OS, 0);
+
+        try {
+            List<String> replayed = new ArrayList<String>();
+
+            wal.replay((obj, value) -> replayed.add(String.format("%s=%s", obj, value)));
+
+            assertEquals(Arrays.asList("a=1", "b=x:y\nz", "a=2"), replayed);
+            assertEquals(whole, wal.size());
+        }
+        finally {
+            wal.close();
+        }
+    }
+
+    @Test
+    public void replayStopsAtCorruptRecord() throws IOException {
+        File file = this.dir.resolve(".wal").toFile();
+
+        WriteAheadLog wal = new WriteAheadLog(file, WriteAheadLog.Sync.OS, 0);
+
+        wal.commit("a", "1");
+
+        long first = wal.size();
+
+        wal.commit("b", "2");
+        wal.commit("c", "3");
+        wal.close();
+
+        // Flip the last byte of the second record's value, its checksum no longer matches
+        byte[] bytes = Files.readAllBytes(file.toPath());
+
+        bytes[(int) (first * 2 - 1)] ^= 1;
+
+        Files.write(file.toPath(), bytes);
+
+        wal = new WriteAheadLog(file, WriteAheadLog.Sync.OS, 0);
+
+        try {
+            List<String> replayed = new ArrayList<String>();
+
+            wal.replay((obj, value) -> replayed.add(obj));
+
+            assertEquals(Collections.singletonList("a"), replayed);
+            assertEquals(first, wal.size());
+        }
+        finally {
+            wal.close();
+        }
+    }
+
+    @Test
+    public void groupCommitSharesWindowAcrossConcurrentCommits() throws Exception {
+        int writers = 16;
+        long windowMs = 200;
+
+        WriteAheadLog wal = new WriteAheadLog(this.dir.resolve(".wal").toFile(), WriteAheadLog.Sync.GROUP, windowMs);
+
+        ExecutorService service = Executors.newFixedThreadPool(writers);
+
+        try {
+            CountDownLatch ready = new CountDownLatch(writers);
+
+            List<Future<?>> commits = new ArrayList<Future<?>>();
+
+            long start = System.nanoTime();
+
+            for (int i = 0; i < writers; i++) {
+                final int writer = i;
+
+                commits.add(service.submit(() -> {
+                    ready.countDown();
+                    ready.await();
+
+                    wal.commit(String.format("f%s", writer), "v");
+
+                    return null;
+                }));
+            }
+
+            for (Future<?> commit : commits) {
+                commit.get(10, TimeUnit.SECONDS);
+            }
+
+            long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+            // Commits waiting a window each would take writers * windowMs
+            assertTrue(elapsedMs < 5 * windowMs, String.format("%s commits took %s ms with a %s ms window", writers, elapsedMs, windowMs));
+            assertEquals(writers, wal.lastSeq());
+        }
+        finally {
+            service.shutdown();
+
+            wal.close();
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package app;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.*;
+import java.net.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.*;
+import java.util.regex.*;
+
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Concurrent writes to one key on a cluster of three servers in this process, committed in batches
+ */
+public class WriteCoalescingTest {
+    static int CLIENTS = 8;
+    static int WRITES = 25;
+
+    @TempDir
+    Path dir;
+
+    List<Server> servers = new ArrayList<Server>();
+    List<Client> clients = new ArrayList<Client>();
+
+    long coalesceWindowMs;
+
+    @BeforeEach
+    public void startCluster() throws Exception {
+        Logger.getLogger(Applog.class.getName()).setLevel(Level.WARNING);
+
+        // Hold a new head of the queue long enough for writes to pile up behind it
+        this.coalesceWindowMs = Server.COALESCE_WINDOW_MS;
+        Server.COALESCE_WINDOW_MS = 5;
+
+        StringBuilder config = new StringBuilder();
+
+        for (int i = 1; i <= 3; i++) {
+            try (ServerSocket probe = new ServerSocket(0)) {
+                config.append(String.format("S%s 127.0.0.1 %s\n", i, probe.getLocalPort()));
+            }
+        }
+
+        Path configFile = this.dir.resolve("config.txt");
+
+        Files.writeString(configFile, config.toString());
+
+        for (String line : config.toString().split("\n")) {
+            String[] params = line.split(" ");
+
+            Server server = new Server(
+                params[0], params[1], Integer.parseInt(params[2]),
+                new LogStorageEngine(this.dir.resolve(params[0]).toString(), WriteAheadLog.Sync.OS, 0)
+            );
+
+            server.loadConfig(configFile.toString());
+
+            Thread serving = new Thread(() -> {
+                try {
+                    server.serve(CLIENTS * 2);
+                }
+                catch (IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+            });
+
+            serving.setDaemon(true);
+            serving.start();
+
+            this.servers.add(server);
+
+            awaitListening(server.port);
+        }
+
+        for (int i = 0; i < CLIENTS; i++) {
+            Client client = new Client(String.format("C%s", i));
+
+            client.loadConfig(configFile.toString());
+
+            this.clients.add(client);
+        }
+    }
+
+    @AfterEach
+    public void stopCluster() throws IOException {
+        Server.COALESCE_WINDOW_MS = this.coalesceWindowMs;
+
+        for (Client client : this.clients) {
+            for (MuxChannel chnl : client.idToChannel.values()) chnl.close();
+        }
+
+        for (Server server : this.servers) {
+            server.close();
+        }
+    }
+
+    @Test
+    public void batchedWritesAreStoredOnEveryReplicaInOrder() throws Exception {
+        ExecutorService writers = Executors.newFixedThreadPool(CLIENTS);
+
+        List<Future<List<Long>>> results = new ArrayList<Future<List<Long>>>();
+
+        for (Client client : this.clients) {
+            results.add(writers.submit(() -> {
+                List<Long> acked = new ArrayList<Long>();
+
+                for (int i = 0; i < WRITES; i++) {
+                    long ts = client.nextTimestamp();
+
+                    // A write older than one another client already committed fails instead of being dropped
+                    try {
+                        if (client.write("hot", String.format("%s-%s", client.id, i), ts)) {
+                            acked.add(ts);
+                        }
+                    }
+                    catch (IOException ex) {
+                        continue;
+                    }
+                }
+
+                return acked;
+            }));
+        }
+
+        Map<String, Set<Long>> ownerToAcked = new HashMap<String, Set<Long>>();
+
+        for (int i = 0; i < CLIENTS; i++) {
+            ownerToAcked.put(this.clients.get(i).id, new HashSet<Long>(results.get(i).get(60, TimeUnit.SECONDS)));
+        }
+
+        writers.shutdown();
+
+        int coalesced = 0;
+
+        for (Server server : this.servers) {
+            List<String> lines = Files.readAllLines(this.dir.resolve(server.id).resolve("hot"));
+
+            Versioned previous = null;
+
+            Map<String, Set<Long>> ownerToStored = new HashMap<String, Set<Long>>();
+
+            for (String line : lines) {
+                Versioned value = Versioned.decode(line);
+
+                assertTrue(previous == null || value.isNewerThan(previous), String.format("%s stored %s after %s", server.id, value, previous));
+
+                ownerToStored.computeIfAbsent(value.ownerId, k -> new HashSet<Long>()).add(value.timestamp);
+
+                previous = value;
+            }
+
+            // No acknowledged write was dropped as older than one stored before it
+            for (Map.Entry<String, Set<Long>> entry : ownerToAcked.entrySet()) {
+                assertTrue(
+                    ownerToStored.getOrDefault(entry.getKey(), Collections.emptySet()).containsAll(entry.getValue()),
+                    String.format("%s misses acknowledged writes of %s", server.id, entry.getKey())
+                );
+            }
+
+            coalesced += counter(server.metrics.snapshot(), "write.coalesced");
+        }
+
+        assertTrue(coalesced > 0, "no write was committed in a batch");
+    }
+
+    private static long counter(String snapshot, String name) {
+        Matcher matcher = Pattern.compile(String.format("(?m)^%s (\\d+)", Pattern.quote(name))).matcher(snapshot);
+
+        return matcher.find() ? Long.parseLong(matcher.group(1)) : 0;
+    }
+
+    private static void awaitListening(int port) throws InterruptedException {
+        for (int i = 0; i < 100; i++) {
+            try (Socket socket = new Socket("127.0.0.1", port)) {
+                return;
+            }
+            catch (IOException ex) {
+                Thread.sleep(20);
+            }
+        }
+
+        fail(String.format("server on port %s not listening", port));
+    }
+}